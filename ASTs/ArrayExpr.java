@@ -11,11 +11,16 @@ public class ArrayExpr extends Expr {
   public Var V;
   public Expr E; // index of array var
 
+  // true if the index has been proved to be always in range
+  // (see VC.Analyser.RangeAnalyser)
+  public boolean inBounds;
+
   public ArrayExpr (Var idAST, Expr indexAST, SourcePosition position) {
     super (position);
     V = idAST;
     E = indexAST;
     V.parent = E.parent = this;
+    inBounds = false;
   }
 
   public Object visit(Visitor v, Object o) {
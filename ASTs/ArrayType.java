@@ -40,7 +40,7 @@ public class ArrayType extends Type {
     else if (T instanceof FloatType)
       return "[F";
     else if (T instanceof BooleanType)
-      return "[B";
+      return "[Z";
     else if (T instanceof VoidType)
       return "[V";   // will be detected as semantic errors
     else  // should not happen
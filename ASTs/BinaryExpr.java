@@ -12,12 +12,17 @@ public class BinaryExpr extends Expr {
   public Expr E1, E2;
   public Operator O;
 
+  // true if this is a division whose divisor has been proved to be
+  // never zero (see VC.Analyser.RangeAnalyser)
+  public boolean nonZeroDivisor;
+
   public BinaryExpr(Expr e1AST, Operator oAST, Expr e2AST, SourcePosition Position) {
     super (Position);
     O = oAST;
     E1 = e1AST;
     E2 = e2AST;
     O.parent = E1.parent = E2.parent = this;
+    nonZeroDivisor = false;
   }
 
   public Object visit(Visitor v, Object o) {
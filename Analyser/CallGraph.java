@@ -0,0 +1,215 @@
+/*
+ * CallGraph.java
+ *
+ * A whole-program call graph and reference analysis over the checked
+ * AST. For every top-level declaration (function or global variable)
+ * it records the programmer-defined functions it calls, the built-in
+ * functions it calls and the global variables it refers to.
+ *
+ * The declarations that can take part in an execution of the program
+ * are those reachable from the roots:
+ *
+ *   (1) main, and
+ *   (2) every global variable whose initialiser contains a call, or an
+ *       integer division or array access, which may throw, since these
+ *       are executed by <clinit> whether or not the variable is used
+ *       afterwards.
+ *
+ * eliminateDeadDecls() unlinks all other declarations from the
+ * program so that they are not emitted.
+ *
+ * PRE: the program has been checked without errors, so that every
+ * applied occurrence of an identifier is linked to its declaration.
+ */
+
+package VC.Analyser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import VC.ASTs.*;
+
+public final class CallGraph extends Traverser {
+
+    private Program program;
+
+    // the top-level declarations in program order
+    private ArrayList<Decl> decls;
+
+    private HashMap<Decl, LinkedHashSet<FuncDecl>> callees;
+    private HashMap<Decl, LinkedHashSet<FuncDecl>> builtinCallees;
+    private HashMap<Decl, LinkedHashSet<GlobalVarDecl>> globals;
+    private HashSet<Decl> reachable;
+
+    // the global variables whose initialisers may throw
+    private HashSet<GlobalVarDecl> mayThrow;
+
+    public CallGraph(Program program) {
+        this.program = program;
+        decls = new ArrayList<Decl>();
+        callees = new HashMap<Decl, LinkedHashSet<FuncDecl>>();
+        builtinCallees = new HashMap<Decl, LinkedHashSet<FuncDecl>>();
+        globals = new HashMap<Decl, LinkedHashSet<GlobalVarDecl>>();
+        mayThrow = new HashSet<GlobalVarDecl>();
+
+        List list = program.FL;
+        while (!list.isEmpty()) {
+            DeclList dlAST = (DeclList) list;
+            decls.add(dlAST.D);
+            callees.put(dlAST.D, new LinkedHashSet<FuncDecl>());
+            builtinCallees.put(dlAST.D, new LinkedHashSet<FuncDecl>());
+            globals.put(dlAST.D, new LinkedHashSet<GlobalVarDecl>());
+            list = dlAST.DL;
+        }
+
+        // Each top-level declaration is visited with itself as the
+        // 2nd argument so that the references found in it can be
+        // attributed to it.
+        for (Decl d : decls)
+            d.visit(this, d);
+
+        computeReachable();
+    }
+
+    // Queries
+
+    // returns the top-level functions of the program in program order
+    public ArrayList<FuncDecl> functions() {
+        ArrayList<FuncDecl> result = new ArrayList<FuncDecl>();
+        for (Decl d : decls)
+            if (d instanceof FuncDecl)
+                result.add((FuncDecl) d);
+        return result;
+    }
+
+    // returns the global variables of the program in program order
+    public ArrayList<GlobalVarDecl> globalVars() {
+        ArrayList<GlobalVarDecl> result = new ArrayList<GlobalVarDecl>();
+        for (Decl d : decls)
+            if (d instanceof GlobalVarDecl)
+                result.add((GlobalVarDecl) d);
+        return result;
+    }
+
+    // the programmer-defined functions called directly by d
+    public Set<FuncDecl> callees(Decl d) {
+        return callees.get(d);
+    }
+
+    // the built-in functions called directly by d
+    public Set<FuncDecl> builtinCallees(Decl d) {
+        return builtinCallees.get(d);
+    }
+
+    // the global variables referred to directly by d
+    public Set<GlobalVarDecl> globals(Decl d) {
+        return globals.get(d);
+    }
+
+    public boolean isReachable(Decl d) {
+        return reachable.contains(d);
+    }
+
+    // returns true if f can call itself, directly or indirectly
+    public boolean isRecursive(FuncDecl f) {
+        HashSet<FuncDecl> visited = new HashSet<FuncDecl>();
+        ArrayList<FuncDecl> worklist = new ArrayList<FuncDecl>(callees.get(f));
+        while (!worklist.isEmpty()) {
+            FuncDecl g = worklist.remove(worklist.size() - 1);
+            if (g == f)
+                return true;
+            if (visited.add(g))
+                worklist.addAll(callees.get(g));
+        }
+        return false;
+    }
+
+    // Removes all unreachable top-level declarations from the program
+    // and returns them in program order.
+
+    public ArrayList<Decl> eliminateDeadDecls() {
+        ArrayList<Decl> removed = new ArrayList<Decl>();
+
+        AST last = program;
+        List list = program.FL;
+        while (!list.isEmpty()) {
+            DeclList dlAST = (DeclList) list;
+            if (reachable.contains(dlAST.D)) {
+                last = dlAST;
+            } else {
+                removed.add(dlAST.D);
+                if (last == program)
+                    program.FL = dlAST.DL;
+                else
+                    ((DeclList) last).DL = dlAST.DL;
+                dlAST.DL.parent = last;
+            }
+            list = dlAST.DL;
+        }
+
+        decls.removeAll(removed);
+        return removed;
+    }
+
+    private void computeReachable() {
+        reachable = new HashSet<Decl>();
+        ArrayList<Decl> worklist = new ArrayList<Decl>();
+
+        for (Decl d : decls) {
+            if (d instanceof FuncDecl && d.I.spelling.equals("main"))
+                worklist.add(d);
+            else if (d instanceof GlobalVarDecl
+                     && (!callees.get(d).isEmpty() || !builtinCallees.get(d).isEmpty()
+                         || mayThrow.contains(d)))
+                worklist.add(d);
+        }
+
+        while (!worklist.isEmpty()) {
+            Decl d = worklist.remove(worklist.size() - 1);
+            if (!reachable.add(d))
+                continue;
+            worklist.addAll(callees.get(d));
+            worklist.addAll(globals.get(d));
+        }
+    }
+
+    // Only the applied occurrences of identifiers, and what may throw in
+    // the initialisers, are of interest
+
+    public Object visitCallExpr(CallExpr ast, Object o) {
+        Decl owner = (Decl) o;
+        if (ast.I.decl instanceof FuncDecl) {
+            FuncDecl fAST = (FuncDecl) ast.I.decl;
+            if (callees.containsKey(fAST))
+                callees.get(owner).add(fAST);
+            else
+                builtinCallees.get(owner).add(fAST);
+        }
+        return super.visitCallExpr(ast, o);
+    }
+
+    // a division by anything but a non-zero literal may throw
+    public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+        if (o instanceof GlobalVarDecl && ast.O.spelling.equals("i/")
+            && !(ast.E2 instanceof IntExpr && Integer.parseInt(((IntExpr) ast.E2).IL.spelling) != 0))
+            mayThrow.add((GlobalVarDecl) o);
+        return super.visitBinaryExpr(ast, o);
+    }
+
+    public Object visitArrayExpr(ArrayExpr ast, Object o) {
+        if (o instanceof GlobalVarDecl)
+            mayThrow.add((GlobalVarDecl) o);
+        return super.visitArrayExpr(ast, o);
+    }
+
+    public Object visitSimpleVar(SimpleVar ast, Object o) {
+        Decl owner = (Decl) o;
+        if (ast.I.decl instanceof GlobalVarDecl)
+            globals.get(owner).add((GlobalVarDecl) ast.I.decl);
+        return null;
+    }
+
+}
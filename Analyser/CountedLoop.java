@@ -0,0 +1,92 @@
+/*
+ * CountedLoop.java
+ *
+ * A for loop stepping an int variable by a constant,
+ *
+ *   for (E1; E2; i = i + c) S        (or i = c + i, i = i - c)
+ *
+ * where i is an int local variable or parameter assigned nowhere in E2
+ * and S. Such a loop is unrolled (see Unroller) if its trip count is
+ * known, and the products of i and constants in it are strength
+ * reduced by the Emitter.
+ *
+ * PRE: the program has been checked without errors.
+ */
+
+package VC.Analyser;
+
+import VC.ASTs.*;
+
+public final class CountedLoop {
+
+    // the induction variable i and its step c
+    public final Decl var;
+    public final long step;
+
+    private CountedLoop(Decl var, long step) {
+        this.var = var;
+        this.step = step;
+    }
+
+    // Returns the loop variable of ast and its step, or null if ast is
+    // not of the form above.
+
+    public static CountedLoop of(ForStmt ast) {
+        if (!(ast.E3 instanceof AssignExpr))
+            return null;
+        final Decl var = intLocal(((AssignExpr) ast.E3).E1);
+        Long step = var == null ? null : step(((AssignExpr) ast.E3).E2, var);
+        if (step == null)
+            return null;
+        final boolean[] assigned = { false };
+        Traverser finder = new Traverser() {
+            public Object visitAssignExpr(AssignExpr ast, Object o) {
+                if (intLocal(ast.E1) == var)
+                    assigned[0] = true;
+                return super.visitAssignExpr(ast, o);
+            }
+        };
+        ast.E2.visit(finder, null);
+        ast.S.visit(finder, null);
+        return assigned[0] ? null : new CountedLoop(var, step);
+    }
+
+    // the constant c added to var by next, or null
+    private static Long step(Expr next, Decl var) {
+        if (!(next instanceof BinaryExpr))
+            return null;
+        BinaryExpr b = (BinaryExpr) next;
+        Long c1 = intConstant(b.E1), c2 = intConstant(b.E2);
+        if (b.O.spelling.equals("i+") && intLocal(b.E1) == var && c2 != null)
+            return c2;
+        if (b.O.spelling.equals("i+") && intLocal(b.E2) == var && c1 != null)
+            return c1;
+        if (b.O.spelling.equals("i-") && intLocal(b.E1) == var && c2 != null)
+            return -c2;
+        return null;
+    }
+
+    // the int local variable or parameter that e consists of, or null
+    public static Decl intLocal(Expr e) {
+        if (!(e instanceof VarExpr) || !(((VarExpr) e).V instanceof SimpleVar))
+            return null;
+        AST decl = ((SimpleVar) ((VarExpr) e).V).I.decl;
+        if ((decl instanceof LocalVarDecl || decl instanceof ParaDecl) && ((Decl) decl).T.isIntType())
+            return (Decl) decl;
+        return null;
+    }
+
+    // the value of an int literal, possibly negated, or null
+    public static Long intConstant(Expr e) {
+        if (e instanceof IntExpr)
+            return Long.valueOf(((IntExpr) e).IL.spelling);
+        if (e instanceof UnaryExpr && ((UnaryExpr) e).O.spelling.equals("i-")) {
+            Long value = intConstant(((UnaryExpr) e).E);
+            return value == null ? null : -value;
+        }
+        if (e instanceof UnaryExpr && ((UnaryExpr) e).O.spelling.equals("i+"))
+            return intConstant(((UnaryExpr) e).E);
+        return null;
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * EffectAnalyser.java
+ *
+ * An interprocedural side-effect analysis over the checked AST. Every
+ * programmer-defined function is classified by
+ *
+ *   (1) the global variables it reads and writes,
+ *   (2) the array parameters it reads and writes through, and
+ *   (3) whether it calls the built-in I/O functions of VC.lang.System
+ *       (or any other intrinsic registered as performing I/O).
+ *
+ * The direct effects of each function are collected first. They are
+ * then propagated from callees to callers until nothing changes. An
+ * array parameter read or written by a callee is mapped back to the
+ * actual argument at each call site: a global array becomes a global
+ * read or write, an array parameter of the caller becomes a read or
+ * write through that parameter and a local array of the caller is
+ * invisible outside.
+ *
+ * PRE: the program has been checked without errors.
+ */
+
+package VC.Analyser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import VC.ASTs.*;
+import VC.Intrinsic;
+import VC.Prelude;
+
+public final class EffectAnalyser extends Traverser {
+
+    private LinkedHashMap<FuncDecl, FuncEffects> effects;
+
+    // the prelude the program has been checked with
+    private Prelude prelude;
+
+    // the call sites of programmer-defined functions in each function
+    private HashMap<FuncDecl, ArrayList<CallExpr>> calls;
+
+    // the function being scanned for its direct effects, and the number
+    // of loops around the point being scanned
+    private FuncEffects current;
+    private int loopDepth;
+
+    public EffectAnalyser(Program program, Prelude prelude) {
+        this.prelude = prelude;
+        effects = new LinkedHashMap<FuncDecl, FuncEffects>();
+        calls = new HashMap<FuncDecl, ArrayList<CallExpr>>();
+
+        List list = program.FL;
+        while (!list.isEmpty()) {
+            DeclList dlAST = (DeclList) list;
+            if (dlAST.D instanceof FuncDecl) {
+                FuncDecl fAST = (FuncDecl) dlAST.D;
+                effects.put(fAST, new FuncEffects(fAST));
+                calls.put(fAST, new ArrayList<CallExpr>());
+            }
+            list = dlAST.DL;
+        }
+
+        for (FuncEffects e : effects.values()) {
+            current = e;
+            e.decl.visit(this, null);
+        }
+        current = null;
+
+        propagate();
+    }
+
+    // returns the effects of a programmer-defined function or null if
+    // f is not one (e.g., it is a built-in function)
+    public FuncEffects effectsOf(FuncDecl f) {
+        return effects.get(f);
+    }
+
+    public Iterable<FuncEffects> allEffects() {
+        return effects.values();
+    }
+
+    // Prints one line per function, in program order.
+    public void report() {
+        System.out.println("Effects of the functions:");
+        for (FuncEffects e : effects.values())
+            System.out.println("  " + e.decl.I.spelling + ": " + e);
+    }
+
+    private void propagate() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FuncEffects caller : effects.values()) {
+                for (CallExpr call : calls.get(caller.decl)) {
+                    FuncEffects callee = effects.get((FuncDecl) call.I.decl);
+                    changed |= caller.reads.addAll(callee.reads);
+                    changed |= caller.writes.addAll(callee.writes);
+                    if (callee.performsIO && !caller.performsIO) {
+                        caller.performsIO = true;
+                        changed = true;
+                    }
+                    changed |= mapParams(caller, callee, call);
+                }
+            }
+        }
+    }
+
+    // Maps the array parameters read and written by callee to the
+    // corresponding actual arguments at call. Returns true if caller has
+    // changed.
+
+    private boolean mapParams(FuncEffects caller, FuncEffects callee, CallExpr call) {
+        boolean changed = false;
+        List pl = callee.decl.PL;
+        List al = call.AL;
+        while (!pl.isEmpty() && !al.isEmpty()) {
+            ParaDecl pAST = ((ParaList) pl).P;
+            Decl d = arrayOf(((ArgList) al).A.E);
+            if (callee.readParams.contains(pAST)) {
+                if (d instanceof GlobalVarDecl)
+                    changed |= caller.reads.add((GlobalVarDecl) d);
+                else if (d instanceof ParaDecl)
+                    changed |= caller.readParams.add((ParaDecl) d);
+            }
+            if (callee.writtenParams.contains(pAST)) {
+                if (d instanceof GlobalVarDecl)
+                    changed |= caller.writes.add((GlobalVarDecl) d);
+                else if (d instanceof ParaDecl)
+                    changed |= caller.writtenParams.add((ParaDecl) d);
+            }
+            pl = ((ParaList) pl).PL;
+            al = ((ArgList) al).AL;
+        }
+        return changed;
+    }
+
+    // returns the declaration of the array named by an argument, if any
+    private static Decl arrayOf(Expr eAST) {
+        if (eAST instanceof VarExpr && ((VarExpr) eAST).V instanceof SimpleVar) {
+            AST d = ((SimpleVar) ((VarExpr) eAST).V).I.decl;
+            if (d instanceof Decl && ((Decl) d).T.isArrayType())
+                return (Decl) d;
+        }
+        return null;
+    }
+
+    // Direct effects
+
+    public Object visitCallExpr(CallExpr ast, Object o) {
+        if (ast.I.decl instanceof FuncDecl) {
+            Intrinsic intrinsic = prelude.intrinsicOf((Decl) ast.I.decl);
+            if (effects.containsKey(ast.I.decl))
+                calls.get(current.decl).add(ast);
+            else if (intrinsic != null && intrinsic.performsIO)
+                current.performsIO = true;
+        }
+        return super.visitCallExpr(ast, o);
+    }
+
+    public Object visitWhileStmt(WhileStmt ast, Object o) {
+        loopDepth++;
+        super.visitWhileStmt(ast, o);
+        loopDepth--;
+        return null;
+    }
+
+    public Object visitForStmt(ForStmt ast, Object o) {
+        // the initialiser runs once
+        ast.E1.visit(this, o);
+        loopDepth++;
+        ast.E2.visit(this, o);
+        ast.E3.visit(this, o);
+        ast.S.visit(this, o);
+        loopDepth--;
+        return null;
+    }
+
+    public Object visitAssignExpr(AssignExpr ast, Object o) {
+        if (ast.E1 instanceof VarExpr) {
+            Var vAST = ((VarExpr) ast.E1).V;
+            if (vAST instanceof SimpleVar && ((SimpleVar) vAST).I.decl instanceof GlobalVarDecl) {
+                GlobalVarDecl d = (GlobalVarDecl) ((SimpleVar) vAST).I.decl;
+                current.writes.add(d);
+                access(d);
+            }
+        } else if (ast.E1 instanceof ArrayExpr) {
+            ArrayExpr aAST = (ArrayExpr) ast.E1;
+            if (aAST.V instanceof SimpleVar) {
+                AST d = ((SimpleVar) aAST.V).I.decl;
+                if (d instanceof GlobalVarDecl)
+                    current.writes.add((GlobalVarDecl) d);
+                else if (d instanceof ParaDecl)
+                    current.writtenParams.add((ParaDecl) d);
+            }
+            // the array reference itself is only read
+            aAST.V.visit(this, o);
+            aAST.E.visit(this, o);
+        } else {
+            ast.E1.visit(this, o);
+        }
+        ast.E2.visit(this, o);
+        return null;
+    }
+
+    // an element read; one assigned is left to visitAssignExpr
+    public Object visitArrayExpr(ArrayExpr ast, Object o) {
+        if (ast.V instanceof SimpleVar && ((SimpleVar) ast.V).I.decl instanceof ParaDecl)
+            current.readParams.add((ParaDecl) ((SimpleVar) ast.V).I.decl);
+        return super.visitArrayExpr(ast, o);
+    }
+
+    public Object visitSimpleVar(SimpleVar ast, Object o) {
+        if (ast.I.decl instanceof GlobalVarDecl) {
+            current.reads.add((GlobalVarDecl) ast.I.decl);
+            access((GlobalVarDecl) ast.I.decl);
+        }
+        return null;
+    }
+
+    private void access(GlobalVarDecl d) {
+        if (d.T.isArrayType())
+            return;
+        Integer n = current.accesses.get(d);
+        current.accesses.put(d, (n == null ? 0 : n) + (loopDepth > 0 ? FuncEffects.LOOP_WEIGHT : 1));
+    }
+
+}
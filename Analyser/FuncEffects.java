@@ -0,0 +1,121 @@
+/*
+ * FuncEffects.java
+ *
+ * The side-effect summary of a programmer-defined function, as
+ * computed by EffectAnalyser. The summary is transitive: it includes
+ * the effects of every function that may be called, directly or
+ * indirectly, by the function. Only the accesses to the scalar globals
+ * are those of the function itself.
+ */
+
+package VC.Analyser;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import VC.ASTs.Decl;
+import VC.ASTs.FuncDecl;
+import VC.ASTs.GlobalVarDecl;
+import VC.ASTs.ParaDecl;
+
+public final class FuncEffects {
+
+    public final FuncDecl decl;
+
+    // global variables (scalars or arrays) read and written
+    public final LinkedHashSet<GlobalVarDecl> reads;
+    public final LinkedHashSet<GlobalVarDecl> writes;
+
+    // array parameters whose elements may be read and assigned
+    public final LinkedHashSet<ParaDecl> readParams;
+    public final LinkedHashSet<ParaDecl> writtenParams;
+
+    // true if a built-in I/O function of VC.lang.System may be called
+    public boolean performsIO;
+
+    // the scalar globals used by name in the function, each with the
+    // number of its uses, a use inside a loop counting LOOP_WEIGHT
+    // times
+    public static final int LOOP_WEIGHT = 10;
+    public final LinkedHashMap<GlobalVarDecl, Integer> accesses;
+
+    FuncEffects(FuncDecl decl) {
+        this.decl = decl;
+        reads = new LinkedHashSet<GlobalVarDecl>();
+        writes = new LinkedHashSet<GlobalVarDecl>();
+        readParams = new LinkedHashSet<ParaDecl>();
+        writtenParams = new LinkedHashSet<ParaDecl>();
+        performsIO = false;
+        accesses = new LinkedHashMap<GlobalVarDecl, Integer>();
+    }
+
+    public boolean readsGlobals() {
+        return !reads.isEmpty();
+    }
+
+    public boolean writesGlobals() {
+        return !writes.isEmpty();
+    }
+
+    public boolean readsArrayParams() {
+        return !readParams.isEmpty();
+    }
+
+    public boolean writesArrayParams() {
+        return !writtenParams.isEmpty();
+    }
+
+    // A pure function neither observes nor changes any state other than
+    // its own locals, so that a call may be removed, duplicated or
+    // reordered with respect to any other computation. Reading through
+    // array parameters is not allowed: the result would then depend on
+    // the contents of the arrays passed.
+
+    public boolean isPure() {
+        return !readsGlobals() && !readsArrayParams() && !writesGlobals() && !writesArrayParams()
+            && !performsIO;
+    }
+
+    // Like isPure, but also allows reads of globals and through array
+    // parameters: calls may be reordered with respect to each other but
+    // not with respect to writes of the arrays and globals read.
+
+    public boolean isReadOnly() {
+        return !writesGlobals() && !writesArrayParams() && !performsIO;
+    }
+
+    public String toString() {
+        if (isPure())
+            return "pure";
+
+        StringBuffer sb = new StringBuffer();
+        if (readsGlobals())
+            append(sb, "reads globals " + names(reads));
+        if (writesGlobals())
+            append(sb, "writes globals " + names(writes));
+        if (readsArrayParams())
+            append(sb, "reads through parameters " + names(readParams));
+        if (writesArrayParams())
+            append(sb, "writes through parameters " + names(writtenParams));
+        if (performsIO)
+            append(sb, "performs I/O");
+        return sb.toString();
+    }
+
+    private static void append(StringBuffer sb, String s) {
+        if (sb.length() > 0)
+            sb.append("; ");
+        sb.append(s);
+    }
+
+    private static String names(Iterable<? extends Decl> decls) {
+        StringBuffer sb = new StringBuffer();
+        for (Decl d : decls) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(d.I.spelling);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Inliner.java
+ *
+ * Decides which calls of programmer-defined functions are inlined by
+ * the code generator. A call is inlined if the callee
+ *
+ *   (1) is not main and cannot call itself (see CallGraph.isRecursive),
+ *   (2) costs at most MAX_COST, its cost being the number of its
+ *       statements and expressions, a loop counting LOOP_COST more, and
+ *   (3) ends with a return if it returns a value, so that no path falls
+ *       off its end;
+ *
+ * and the caller has not already grown by BUDGET through inlining. The
+ * budget bounds the growth from calls inlined into inlined code.
+ *
+ * The inlined code itself is emitted by the Emitter, with the
+ * parameters and locals of the callee in fresh local variables of the
+ * caller and its returns as jumps to the end of the call.
+ *
+ * PRE: the program has been checked without errors and its unreachable
+ * declarations eliminated.
+ */
+
+package VC.Analyser;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import VC.ASTs.*;
+
+public final class Inliner {
+
+    public static final int MAX_COST = 24, LOOP_COST = 8, BUDGET = 200;
+
+    private CallGraph graph;
+
+    // the cost of each function, or -1 if it is never inlined
+    private HashMap<FuncDecl, Integer> costs;
+
+    // the cost inlined into each caller so far
+    private HashMap<FuncDecl, Integer> spent;
+
+    // the number of calls inlined, by "callee into caller"
+    private LinkedHashMap<String, Integer> inlined;
+
+    public Inliner(CallGraph graph) {
+        this.graph = graph;
+        costs = new HashMap<FuncDecl, Integer>();
+        spent = new HashMap<FuncDecl, Integer>();
+        inlined = new LinkedHashMap<String, Integer>();
+        for (FuncDecl f : graph.functions())
+            costs.put(f, inlinable(f) ? cost(f) : -1);
+    }
+
+    // Returns true if the call of callee in caller is to be inlined, and
+    // charges its cost to caller if so.
+
+    public boolean shouldInline(FuncDecl caller, FuncDecl callee) {
+        Integer cost = costs.get(callee);
+        if (caller == null || cost == null || cost < 0 || cost > MAX_COST)
+            return false;
+        Integer used = spent.get(caller);
+        used = used == null ? 0 : used;
+        if (used + cost > BUDGET)
+            return false;
+        spent.put(caller, used + cost);
+        String key = callee.I.spelling + " into " + caller.I.spelling;
+        Integer n = inlined.get(key);
+        inlined.put(key, n == null ? 1 : n + 1);
+        return true;
+    }
+
+    // Prints the calls inlined.
+    public void report() {
+        System.out.println("Inlined calls:");
+        if (inlined.isEmpty())
+            System.out.println("  none");
+        for (String key : inlined.keySet())
+            System.out.println("  " + key + ": " + inlined.get(key)
+                               + (inlined.get(key) == 1 ? " call" : " calls"));
+    }
+
+    private boolean inlinable(FuncDecl f) {
+        if (f.I.spelling.equals("main") || graph.isRecursive(f))
+            return false;
+        if (f.T.isVoidType())
+            return true;
+        // the last statement of the body must be a return
+        if (!(f.S instanceof CompoundStmt))
+            return false;
+        Stmt last = null;
+        List list = ((CompoundStmt) f.S).SL;
+        while (!list.isEmpty()) {
+            last = ((StmtList) list).S;
+            list = ((StmtList) list).SL;
+        }
+        return last instanceof ReturnStmt;
+    }
+
+    private static int cost(FuncDecl f) {
+        Counter counter = new Counter();
+        f.S.visit(counter, null);
+        return counter.cost;
+    }
+
+    // Counts the statements and expressions of a function body, or of
+    // any other phrase (see Unroller).
+    static class Counter extends Traverser {
+        int cost;
+
+        public Object visitIfStmt(IfStmt ast, Object o) {
+            cost++;
+            return super.visitIfStmt(ast, o);
+        }
+
+        public Object visitWhileStmt(WhileStmt ast, Object o) {
+            cost += 1 + LOOP_COST;
+            return super.visitWhileStmt(ast, o);
+        }
+
+        public Object visitForStmt(ForStmt ast, Object o) {
+            cost += 1 + LOOP_COST;
+            return super.visitForStmt(ast, o);
+        }
+
+        public Object visitReturnStmt(ReturnStmt ast, Object o) {
+            cost++;
+            return super.visitReturnStmt(ast, o);
+        }
+
+        public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+            cost++;
+            return super.visitLocalVarDecl(ast, o);
+        }
+
+        public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+            cost++;
+            return super.visitUnaryExpr(ast, o);
+        }
+
+        public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+            cost++;
+            return super.visitBinaryExpr(ast, o);
+        }
+
+        public Object visitInitExpr(InitExpr ast, Object o) {
+            cost++;
+            return super.visitInitExpr(ast, o);
+        }
+
+        public Object visitExprList(ExprList ast, Object o) {
+            cost++;
+            return super.visitExprList(ast, o);
+        }
+
+        public Object visitArrayExpr(ArrayExpr ast, Object o) {
+            cost++;
+            return super.visitArrayExpr(ast, o);
+        }
+
+        public Object visitCallExpr(CallExpr ast, Object o) {
+            cost++;
+            return super.visitCallExpr(ast, o);
+        }
+
+        public Object visitAssignExpr(AssignExpr ast, Object o) {
+            cost++;
+            return super.visitAssignExpr(ast, o);
+        }
+
+        public Object visitIntExpr(IntExpr ast, Object o) {
+            cost++;
+            return null;
+        }
+
+        public Object visitFloatExpr(FloatExpr ast, Object o) {
+            cost++;
+            return null;
+        }
+
+        public Object visitBooleanExpr(BooleanExpr ast, Object o) {
+            cost++;
+            return null;
+        }
+
+        public Object visitStringExpr(StringExpr ast, Object o) {
+            cost++;
+            return null;
+        }
+
+        public Object visitVarExpr(VarExpr ast, Object o) {
+            cost++;
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Range.java
+ *
+ * An interval [lo, hi] of int values, as used by RangeAnalyser. The
+ * bounds are kept as longs so that the arithmetic below can detect a
+ * result that does not fit in an int: such a result may wrap around
+ * at run time and is approximated by the full range.
+ */
+
+package VC.Analyser;
+
+public final class Range {
+
+    public static final Range FULL = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    public final long lo, hi;
+
+    private Range(long lo, long hi) {
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    public static Range of(long lo, long hi) {
+        if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE)
+            return FULL;
+        return new Range(lo, hi);
+    }
+
+    public static Range constant(long value) {
+        return of(value, value);
+    }
+
+    public boolean isFull() {
+        return lo == Integer.MIN_VALUE && hi == Integer.MAX_VALUE;
+    }
+
+    public boolean contains(long value) {
+        return lo <= value && value <= hi;
+    }
+
+    // true if every value is in [0, length)
+    public boolean within(long length) {
+        return lo >= 0 && hi < length;
+    }
+
+    public Range join(Range r) {
+        return of(Math.min(lo, r.lo), Math.max(hi, r.hi));
+    }
+
+    // Returns null if the intersection is empty.
+    public Range meet(long lo, long hi) {
+        lo = Math.max(this.lo, lo);
+        hi = Math.min(this.hi, hi);
+        return lo > hi ? null : new Range(lo, hi);
+    }
+
+    // Extrapolates an unstable bound of this range (the older one) to the
+    // corresponding bound of FULL, so that every loop analysis terminates.
+    public Range widen(Range r) {
+        return of(r.lo < lo ? Integer.MIN_VALUE : lo, r.hi > hi ? Integer.MAX_VALUE : hi);
+    }
+
+    // Arithmetic
+
+    public Range add(Range r) {
+        return of(lo + r.lo, hi + r.hi);
+    }
+
+    public Range sub(Range r) {
+        return of(lo - r.hi, hi - r.lo);
+    }
+
+    public Range neg() {
+        return of(-hi, -lo);
+    }
+
+    public Range mul(Range r) {
+        long a = lo * r.lo, b = lo * r.hi, c = hi * r.lo, d = hi * r.hi;
+        // the products of int bounds cannot overflow a long
+        return of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+    }
+
+    // Integer division, rounding towards zero as in Java.
+    public Range div(Range r) {
+        if (r.contains(0))
+            return FULL;
+        long a = lo / r.lo, b = lo / r.hi, c = hi / r.lo, d = hi / r.hi;
+        return of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+    }
+
+    public boolean equals(Object obj) {
+        return obj instanceof Range && ((Range) obj).lo == lo && ((Range) obj).hi == hi;
+    }
+
+    public int hashCode() {
+        return (int) (lo * 31 + hi);
+    }
+
+    public String toString() {
+        return "[" + lo + ", " + hi + "]";
+    }
+
+}
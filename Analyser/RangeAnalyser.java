@@ -0,0 +1,544 @@
+/*
+ * RangeAnalyser.java
+ *
+ * A value-range analysis of the int variables of a checked program by
+ * abstract interpretation over intervals (see Range). The analysis is
+ * intraprocedural and flow-sensitive: it follows the statements of a
+ * function in order, splits at conditions and joins the results at the
+ * end of an if and of a loop.
+ *
+ * Only the local variables and parameters of type int are tracked. A
+ * global variable, a parameter on entry, an array element and the
+ * result of a call may have any value.
+ *
+ * A loop is analysed by iterating its body until the ranges at its
+ * head are stable, extrapolating every growing bound to the int limits
+ * (widening) so that this terminates. The condition then bounds the
+ * variables again inside the body, so for a loop such as
+ *
+ *   for (i = 0; i < N; i = i + 1) ... a[i] ...
+ *
+ * the range of i in the body is [0, N - 1]. A final iteration from the
+ * stable state, after one step of narrowing, records the facts used.
+ *
+ * The facts are stored in the AST:
+ *
+ *   ArrayExpr.inBounds        the index is in [0, length) whenever the
+ *                             access is executed
+ *   BinaryExpr.nonZeroDivisor the divisor of an int division is never 0
+ *
+ * An access to an array parameter is never proved in range since its
+ * length is unknown.
+ *
+ * PRE: the program has been checked without errors.
+ */
+
+package VC.Analyser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Stack;
+
+import VC.ASTs.*;
+
+public final class RangeAnalyser extends Traverser {
+
+    // the ranges of the tracked variables at the current program point;
+    // a variable not in the map may have any value and a null map means
+    // that the point is unreachable
+    private HashMap<Decl, Range> state;
+
+    // the states at the break and continue statements of a loop
+    private static final class Loop {
+        HashMap<Decl, Range> breaks, continues;
+    }
+
+    private Stack<Loop> loops;
+
+    // the states at a condition being true and false
+    private static final class Branches {
+        HashMap<Decl, Range> t, f;
+
+        Branches(HashMap<Decl, Range> t, HashMap<Decl, Range> f) {
+            this.t = t;
+            this.f = f;
+        }
+    }
+
+    // An array subscript or an int division found in the program
+    private static final class Site {
+        Expr ast;
+        String function;
+        int loopDepth;
+        Range range;  // the index or the divisor, null if never reached
+    }
+
+    private LinkedHashMap<Expr, Site> sites;
+    private boolean recording;
+    private String function;
+
+    public RangeAnalyser(Program program) {
+        sites = new LinkedHashMap<Expr, Site>();
+        loops = new Stack<Loop>();
+        recording = true;
+        program.visit(this, null);
+
+        for (Site s : sites.values()) {
+            if (s.ast instanceof ArrayExpr) {
+                long length = lengthOf((ArrayExpr) s.ast);
+                ((ArrayExpr) s.ast).inBounds = s.range != null && length >= 0 && s.range.within(length);
+            } else {
+                ((BinaryExpr) s.ast).nonZeroDivisor = s.range != null && !s.range.contains(0);
+            }
+        }
+    }
+
+    // Prints how many facts have been proved and lists the array accesses
+    // and divisions inside loops that have not been.
+
+    public void report() {
+        int subscripts = 0, inBounds = 0, divisions = 0, nonZero = 0;
+        ArrayList<String> unproved = new ArrayList<String>();
+        for (Site s : sites.values()) {
+            boolean proved;
+            String what;
+            if (s.ast instanceof ArrayExpr) {
+                ArrayExpr aAST = (ArrayExpr) s.ast;
+                subscripts++;
+                proved = aAST.inBounds;
+                long length = lengthOf(aAST);
+                what = ((SimpleVar) aAST.V).I.spelling + "[] with index in " + s.range
+                    + (length >= 0 ? " and length " + length : " and unknown length");
+                if (proved)
+                    inBounds++;
+            } else {
+                divisions++;
+                proved = ((BinaryExpr) s.ast).nonZeroDivisor;
+                what = "division with divisor in " + s.range;
+                if (proved)
+                    nonZero++;
+            }
+            if (!proved && s.loopDepth > 0 && s.range != null)
+                unproved.add("    " + s.function + ", " + s.ast.position.lineStart + "("
+                             + s.ast.position.charStart + "): " + what
+                             + " (loop depth " + s.loopDepth + ")");
+        }
+
+        System.out.println("Ranges of the array subscripts and divisors:");
+        System.out.println("  " + inBounds + " of " + subscripts + " array subscripts proved in range");
+        System.out.println("  " + nonZero + " of " + divisions + " int divisors proved non-zero");
+        if (!unproved.isEmpty()) {
+            System.out.println("  not proved inside loops:");
+            for (String line : unproved)
+                System.out.println(line);
+        }
+    }
+
+    // Returns the length of the array accessed or -1 if it is unknown.
+    private static long lengthOf(ArrayExpr ast) {
+        Decl d = (Decl) ((SimpleVar) ast.V).I.decl;
+        Expr size = ((ArrayType) d.T).E;
+        if (d instanceof ParaDecl || !(size instanceof IntExpr))
+            return -1;
+        return Long.parseLong(((IntExpr) size).IL.spelling);
+    }
+
+    private void record(Expr ast, Range range) {
+        Site s = sites.get(ast);
+        if (s == null) {
+            s = new Site();
+            s.ast = ast;
+            s.function = function;
+            s.loopDepth = loops.size();
+            sites.put(ast, s);
+        }
+        if (recording && state != null)
+            s.range = (s.range == null) ? range : s.range.join(range);
+    }
+
+    // States
+
+    private static HashMap<Decl, Range> copy(HashMap<Decl, Range> s) {
+        return s == null ? null : new HashMap<Decl, Range>(s);
+    }
+
+    private static HashMap<Decl, Range> join(HashMap<Decl, Range> s1, HashMap<Decl, Range> s2) {
+        if (s1 == null)
+            return copy(s2);
+        if (s2 == null)
+            return copy(s1);
+        HashMap<Decl, Range> s = new HashMap<Decl, Range>();
+        for (Decl d : s1.keySet())
+            if (s2.containsKey(d))
+                s.put(d, s1.get(d).join(s2.get(d)));
+        return s;
+    }
+
+    private static HashMap<Decl, Range> widen(HashMap<Decl, Range> older, HashMap<Decl, Range> newer) {
+        if (older == null)
+            return copy(newer);
+        if (newer == null)
+            return copy(older);
+        HashMap<Decl, Range> s = new HashMap<Decl, Range>();
+        for (Decl d : older.keySet())
+            if (newer.containsKey(d))
+                s.put(d, older.get(d).widen(newer.get(d)));
+        return s;
+    }
+
+    private static boolean same(HashMap<Decl, Range> s1, HashMap<Decl, Range> s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private Range rangeOf(Decl d) {
+        Range r = (state == null) ? null : state.get(d);
+        return r == null ? Range.FULL : r;
+    }
+
+    private static boolean isTracked(AST d) {
+        return (d instanceof LocalVarDecl || d instanceof ParaDecl) && ((Decl) d).T.isIntType();
+    }
+
+    // returns the tracked variable e consists of, if any
+    private static Decl trackedVar(Expr e) {
+        if (e instanceof VarExpr && ((VarExpr) e).V instanceof SimpleVar) {
+            AST d = ((SimpleVar) ((VarExpr) e).V).I.decl;
+            if (isTracked(d))
+                return (Decl) d;
+        }
+        return null;
+    }
+
+    // Declarations
+
+    public Object visitFuncDecl(FuncDecl ast, Object o) {
+        function = ast.I.spelling;
+        state = new HashMap<Decl, Range>();
+        ast.S.visit(this, o);
+        function = null;
+        return null;
+    }
+
+    public Object visitGlobalVarDecl(GlobalVarDecl ast, Object o) {
+        function = "(global " + ast.I.spelling + ")";
+        state = new HashMap<Decl, Range>();
+        ast.E.visit(this, o);
+        function = null;
+        return null;
+    }
+
+    public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+        if (state == null)
+            return null;
+        Range r = (Range) ast.E.visit(this, o);
+        if (state != null) {
+            if (isTracked(ast) && r != null)
+                state.put(ast, r);
+            else
+                state.remove(ast);
+        }
+        return null;
+    }
+
+    // Statements
+
+    public Object visitIfStmt(IfStmt ast, Object o) {
+        if (state == null)
+            return null;
+        Branches b = branch(ast.E);
+        state = b.t;
+        ast.S1.visit(this, o);
+        HashMap<Decl, Range> afterThen = state;
+        state = b.f;
+        ast.S2.visit(this, o);
+        state = join(afterThen, state);
+        return null;
+    }
+
+    public Object visitWhileStmt(WhileStmt ast, Object o) {
+        if (state != null)
+            analyseLoop(ast.E, ast.S, null);
+        return null;
+    }
+
+    public Object visitForStmt(ForStmt ast, Object o) {
+        if (state == null)
+            return null;
+        ast.E1.visit(this, o);
+        if (state != null)
+            analyseLoop(ast.E2, ast.S, ast.E3);
+        return null;
+    }
+
+    private void analyseLoop(Expr cond, Stmt body, Expr step) {
+        HashMap<Decl, Range> entry = state;
+        boolean wasRecording = recording;
+        recording = false;
+
+        HashMap<Decl, Range> head = copy(entry);
+        while (true) {
+            HashMap<Decl, Range> next = widen(head, join(head, join(entry, iterate(head, cond, body, step).t)));
+            if (same(next, head))
+                break;
+            head = next;
+        }
+        // narrowing
+        head = join(entry, iterate(head, cond, body, step).t);
+
+        recording = wasRecording;
+        Branches b = iterate(head, cond, body, step);
+        state = b.f;
+    }
+
+    // Runs the condition, the body and the step of a loop once from the
+    // given state at its head. Returns the states at the end of the
+    // iteration and at the exit of the loop.
+
+    private Branches iterate(HashMap<Decl, Range> head, Expr cond, Stmt body, Expr step) {
+        Loop loop = new Loop();
+        loops.push(loop);
+        state = copy(head);
+        Branches b = cond.isEmptyExpr() ? new Branches(state, null) : branch(cond);
+        state = b.t;
+        body.visit(this, null);
+        state = join(state, loop.continues);
+        if (step != null && state != null)
+            step.visit(this, null);
+        loops.pop();
+        return new Branches(state, join(b.f, loop.breaks));
+    }
+
+    public Object visitBreakStmt(BreakStmt ast, Object o) {
+        if (state != null)
+            loops.peek().breaks = join(loops.peek().breaks, state);
+        state = null;
+        return null;
+    }
+
+    public Object visitContinueStmt(ContinueStmt ast, Object o) {
+        if (state != null)
+            loops.peek().continues = join(loops.peek().continues, state);
+        state = null;
+        return null;
+    }
+
+    public Object visitReturnStmt(ReturnStmt ast, Object o) {
+        if (state != null)
+            ast.E.visit(this, o);
+        state = null;
+        return null;
+    }
+
+    public Object visitExprStmt(ExprStmt ast, Object o) {
+        if (state != null)
+            ast.E.visit(this, o);
+        return null;
+    }
+
+    // Conditions
+
+    // Evaluates a boolean expression in the current state and returns the
+    // states in which it is true and false.
+
+    private Branches branch(Expr e) {
+        if (state == null)
+            return new Branches(null, null);
+
+        if (e instanceof BooleanExpr) {
+            if (((BooleanExpr) e).BL.spelling.equals("true"))
+                return new Branches(state, null);
+            else
+                return new Branches(null, state);
+        }
+
+        if (e instanceof UnaryExpr && ((UnaryExpr) e).O.spelling.equals("i!")) {
+            Branches b = branch(((UnaryExpr) e).E);
+            return new Branches(b.f, b.t);
+        }
+
+        if (e instanceof BinaryExpr) {
+            BinaryExpr bAST = (BinaryExpr) e;
+            String op = bAST.O.spelling;
+            if (op.equals("i&&")) {
+                Branches b1 = branch(bAST.E1);
+                state = b1.t;
+                Branches b2 = branch(bAST.E2);
+                return new Branches(b2.t, join(b1.f, b2.f));
+            } else if (op.equals("i||")) {
+                Branches b1 = branch(bAST.E1);
+                state = b1.f;
+                Branches b2 = branch(bAST.E2);
+                return new Branches(join(b1.t, b2.t), b2.f);
+            } else if (isComparison(op)) {
+                Range r1 = (Range) bAST.E1.visit(this, null);
+                Range r2 = (Range) bAST.E2.visit(this, null);
+                if (state == null || r1 == null || r2 == null)
+                    return new Branches(state, copy(state));
+                // the variable on the left is compared with its value
+                // before the right operand is evaluated
+                boolean leftStable = !assigns(bAST.E2);
+                HashMap<Decl, Range> t = copy(state), f = state;
+                op = op.substring(1);
+                if (leftStable) {
+                    t = constrain(t, bAST.E1, op, r2);
+                    f = constrain(f, bAST.E1, negate(op), r2);
+                }
+                t = constrain(t, bAST.E2, mirror(op), r1);
+                f = constrain(f, bAST.E2, mirror(negate(op)), r1);
+                return new Branches(t, f);
+            }
+        }
+
+        e.visit(this, null);
+        return new Branches(state, copy(state));
+    }
+
+    private static boolean isComparison(String op) {
+        return op.equals("i<") || op.equals("i<=") || op.equals("i>") || op.equals("i>=")
+            || op.equals("i==") || op.equals("i!=");
+    }
+
+    // the comparison that holds iff x op y does not hold
+    private static String negate(String op) {
+        switch (op) {
+        case "<":  return ">=";
+        case "<=": return ">";
+        case ">":  return "<=";
+        case ">=": return "<";
+        case "==": return "!=";
+        default:   return "==";
+        }
+    }
+
+    // the comparison that holds iff y op x holds
+    private static String mirror(String op) {
+        switch (op) {
+        case "<":  return ">";
+        case "<=": return ">=";
+        case ">":  return "<";
+        case ">=": return "<=";
+        default:   return op;
+        }
+    }
+
+    // Narrows the range of the variable e, if e is a tracked variable, to
+    // the values that satisfy e op other. Returns null if there are none.
+
+    private static HashMap<Decl, Range> constrain(HashMap<Decl, Range> s, Expr e, String op, Range other) {
+        Decl d = trackedVar(e);
+        if (s == null || d == null)
+            return s;
+        Range r = s.containsKey(d) ? s.get(d) : Range.FULL;
+        switch (op) {
+        case "<":  r = r.meet(Long.MIN_VALUE, other.hi - 1); break;
+        case "<=": r = r.meet(Long.MIN_VALUE, other.hi); break;
+        case ">":  r = r.meet(other.lo + 1, Long.MAX_VALUE); break;
+        case ">=": r = r.meet(other.lo, Long.MAX_VALUE); break;
+        case "==": r = r.meet(other.lo, other.hi); break;
+        default:
+            if (other.lo == other.hi && r.lo == other.lo)
+                r = r.meet(r.lo + 1, r.hi);
+            else if (other.lo == other.hi && r.hi == other.hi)
+                r = r.meet(r.lo, r.hi - 1);
+        }
+        if (r == null)
+            return null;
+        s.put(d, r);
+        return s;
+    }
+
+    // true if evaluating e may assign to a variable
+    private static boolean assigns(Expr e) {
+        final boolean[] found = { false };
+        e.visit(new Traverser() {
+            public Object visitAssignExpr(AssignExpr ast, Object o) {
+                found[0] = true;
+                return null;
+            }
+        }, null);
+        return found[0];
+    }
+
+    // Expressions: each returns the range of an int expression and null
+    // for any other expression, updating the state as a side effect.
+
+    public Object visitIntExpr(IntExpr ast, Object o) {
+        return Range.constant(Long.parseLong(ast.IL.spelling));
+    }
+
+    public Object visitEmptyExpr(EmptyExpr ast, Object o) {
+        return null;
+    }
+
+    public Object visitVarExpr(VarExpr ast, Object o) {
+        Decl d = trackedVar(ast);
+        if (d != null)
+            return rangeOf(d);
+        return ast.type != null && ast.type.isIntType() ? Range.FULL : null;
+    }
+
+    public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+        String op = ast.O.spelling;
+        if (op.equals("i!")) {
+            Branches b = branch(ast.E);
+            state = join(b.t, b.f);
+            return null;
+        }
+        Range r = (Range) ast.E.visit(this, o);
+        if (r == null || state == null)
+            return null;
+        if (op.equals("i-"))
+            return r.neg();
+        else if (op.equals("i+"))
+            return r;
+        return null;
+    }
+
+    public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+        String op = ast.O.spelling;
+        if (op.equals("i&&") || op.equals("i||") || isComparison(op)) {
+            Branches b = branch(ast);
+            state = join(b.t, b.f);
+            return null;
+        }
+        Range r1 = (Range) ast.E1.visit(this, o);
+        Range r2 = (Range) ast.E2.visit(this, o);
+        if (op.equals("i/"))
+            record(ast, r2 == null ? Range.FULL : r2);
+        if (r1 == null || r2 == null || state == null)
+            return null;
+        switch (op) {
+        case "i+": return r1.add(r2);
+        case "i-": return r1.sub(r2);
+        case "i*": return r1.mul(r2);
+        case "i/": return r1.div(r2);
+        default:   return null;
+        }
+    }
+
+    public Object visitArrayExpr(ArrayExpr ast, Object o) {
+        Range index = (Range) ast.E.visit(this, o);
+        record(ast, index == null ? Range.FULL : index);
+        Decl d = (Decl) ((SimpleVar) ast.V).I.decl;
+        return ((ArrayType) d.T).T.isIntType() ? Range.FULL : null;
+    }
+
+    public Object visitAssignExpr(AssignExpr ast, Object o) {
+        Decl d = trackedVar(ast.E1);
+        if (d == null)
+            ast.E1.visit(this, o);
+        Range r = (Range) ast.E2.visit(this, o);
+        if (state == null)
+            return null;
+        if (d != null)
+            state.put(d, r == null ? Range.FULL : r);
+        return r;
+    }
+
+    public Object visitCallExpr(CallExpr ast, Object o) {
+        ast.AL.visit(this, o);
+        return ((Decl) ast.I.decl).T.isIntType() ? Range.FULL : null;
+    }
+
+}
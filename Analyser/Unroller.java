@@ -0,0 +1,165 @@
+/*
+ * Unroller.java
+ *
+ * Decides which for loops are unrolled by the code generator. A loop is
+ * unrolled if it is counted, i.e., of the form
+ *
+ *   for (i = a; i op b; i = i + c) S        (or i = c + i, i = i - c)
+ *
+ * where the loop is a CountedLoop, a and b are int constants and op is
+ * one of <, <=, >, >= and != , so that its number of iterations (its
+ * trip count) is known. A loop whose i would overflow is not counted.
+ *
+ * The body and the step, S; i = i + c, are emitted several times, the
+ * cost of each copy being the number of its statements and expressions
+ * (see Inliner), an inner loop that is unrolled counting as all of its
+ * copies. A loop is
+ *
+ *   (1) fully unrolled if all of its iterations cost at most the budget,
+ *       and its condition is then never tested, or else
+ *   (2) unrolled FACTOR times, or 4 or 2 times, the most whose copies
+ *       cost at most the budget, if it runs at least twice as many
+ *       iterations.
+ *
+ * A break or continue in S is emitted as a jump past the loop or to the
+ * step of its own copy, so it needs no special care.
+ *
+ * PRE: the program has been checked without errors.
+ */
+
+package VC.Analyser;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+
+import VC.ASTs.*;
+
+public final class Unroller {
+
+    public static final int FACTOR = 8, BUDGET = 128;
+
+    private int budget;
+
+    // the decision for each loop asked about so far: the number of
+    // copies of its body, 0 if it is not unrolled
+    private IdentityHashMap<ForStmt, Integer> factors;
+
+    // the loops unrolled, in the order first asked about, with their
+    // trip counts
+    private LinkedHashMap<ForStmt, Long> unrolled;
+
+    public Unroller(int budget) {
+        this.budget = budget;
+        factors = new IdentityHashMap<ForStmt, Integer>();
+        unrolled = new LinkedHashMap<ForStmt, Long>();
+    }
+
+    // Returns the number of copies of the body of ast to be emitted per
+    // test of its condition, its trip count if it is fully unrolled, or
+    // 0 if it is not unrolled.
+
+    public int factor(ForStmt ast) {
+        Integer factor = factors.get(ast);
+        if (factor == null) {
+            factor = decide(ast);
+            factors.put(ast, factor);
+        }
+        return factor;
+    }
+
+    // Returns the trip count of ast, which is unrolled.
+    public int trips(ForStmt ast) {
+        return (int) (long) unrolled.get(ast);
+    }
+
+    // Prints the loops unrolled.
+    public void report() {
+        System.out.println("Unrolled loops:");
+        if (unrolled.isEmpty())
+            System.out.println("  none");
+        for (ForStmt ast : unrolled.keySet()) {
+            long trips = unrolled.get(ast);
+            int factor = factors.get(ast);
+            System.out.println("  line " + ast.position.lineStart + ": " + trips
+                               + (trips == 1 ? " iteration" : " iterations")
+                               + (factor == trips ? ", fully" : ", " + factor + " times"));
+        }
+    }
+
+    private int decide(ForStmt ast) {
+        long trips = tripCount(ast, CountedLoop.of(ast));
+        if (trips <= 0)
+            return 0;
+        Counter counter = new Counter();
+        ast.S.visit(counter, null);
+        ast.E3.visit(counter, null);
+        int cost = Math.max(counter.cost, 1);
+        int factor = 0;
+        if (trips * cost <= budget)
+            factor = (int) trips;
+        else
+            for (int f = FACTOR; f >= 2 && factor == 0; f /= 2)
+                if (f * cost <= budget && 2 * f <= trips)
+                    factor = f;
+        if (factor > 0)
+            unrolled.put(ast, trips);
+        return factor;
+    }
+
+    // the trip count of ast, of the shape loop, or -1 if it is not
+    // counted
+    private static long tripCount(ForStmt ast, CountedLoop loop) {
+        if (loop == null || !(ast.E1 instanceof AssignExpr) || !(ast.E2 instanceof BinaryExpr))
+            return -1;
+        AssignExpr init = (AssignExpr) ast.E1;
+        BinaryExpr cond = (BinaryExpr) ast.E2;
+        Long a = CountedLoop.intConstant(init.E2), b = CountedLoop.intConstant(cond.E2);
+        long c = loop.step;
+        if (CountedLoop.intLocal(init.E1) != loop.var || CountedLoop.intLocal(cond.E1) != loop.var
+            || a == null || b == null || c == 0)
+            return -1;
+        long trips;
+        switch (cond.O.spelling) {
+        case "i<":
+            trips = a >= b ? 0 : c < 0 ? -1 : (b - a + c - 1) / c;
+            break;
+        case "i<=":
+            trips = a > b ? 0 : c < 0 ? -1 : (b - a) / c + 1;
+            break;
+        case "i>":
+            trips = a <= b ? 0 : c > 0 ? -1 : (a - b - c - 1) / -c;
+            break;
+        case "i>=":
+            trips = a < b ? 0 : c > 0 ? -1 : (a - b) / -c + 1;
+            break;
+        case "i!=":
+            trips = (b - a) % c != 0 || (b - a) / c < 0 ? -1 : (b - a) / c;
+            break;
+        default:
+            return -1;
+        }
+        // i after the last step must not overflow
+        long last = a + trips * c;
+        if (trips < 0 || last < Integer.MIN_VALUE || last > Integer.MAX_VALUE)
+            return -1;
+        return trips;
+    }
+
+    // Counts an inner loop that is unrolled as all of its copies.
+    private final class Counter extends Inliner.Counter {
+        public Object visitForStmt(ForStmt ast, Object o) {
+            int factor = factor(ast);
+            if (factor == 0)
+                return super.visitForStmt(ast, o);
+            Counter body = new Counter();
+            ast.S.visit(body, null);
+            ast.E3.visit(body, null);
+            cost += 1 + factor * body.cost;
+            // the iterations before the loop unrolled partially
+            if (factor < trips(ast))
+                cost += trips(ast) % factor * body.cost;
+            return null;
+        }
+    }
+
+}
@@ -8,6 +8,7 @@ package VC.Checker;
 import VC.ASTs.*;
 import VC.Scanner.SourcePosition;
 import VC.ErrorReporter;
+import VC.Prelude;
 import VC.StdEnvironment;
 
 public final class Checker implements Visitor {
@@ -69,18 +70,48 @@ public final class Checker implements Visitor {
     // the corresponding declaration of that identifier.
     // (2) Each expression and variable is decorated by its type.
 
+    // The built-in functions are found in the given scope (normally the
+    // prelude), which the symbol table is layered over and which is
+    // never modified.
+
     public Checker(ErrorReporter reporter) {
+        this(reporter, Prelude.standard());
+    }
+
+    public Checker(ErrorReporter reporter, Scope outer) {
         this.reporter = reporter;
-        this.idTable = new SymbolTable();
+        this.idTable = new SymbolTable(outer);
         this.nestDepth = 0;
         this.funcWithReturn = true;
-        establishStdEnvironment();
     }
 
     public void check(AST ast) {
         ast.visit(this, null);
     }
 
+    // The following three methods check a program one top-level
+    // declaration at a time (see IncrementalChecker).
+
+    // Checks a single function or global variable declaration. The
+    // declaration itself is not entered into the symbol table: all
+    // top-level identifiers, including its own, are resolved through
+    // the enclosing scope given to the constructor.
+
+    public void checkDecl(Decl ast) {
+        if (ast instanceof FuncDecl)
+            checkFuncDecl((FuncDecl) ast);
+        else
+            checkGlobalVarDecl((GlobalVarDecl) ast);
+    }
+
+    // Enters a top-level declaration into the symbol table, reporting
+    // a redeclaration, without looking into its body or initialiser.
+    // checkMain() must be called after the last one has been entered.
+
+    public void declareTopLevel(Decl ast) {
+        declareVariable(ast.I, ast);
+    }
+
     // auxiliary methods
 
     private void declareVariable(Ident ident, Decl decl) {
@@ -97,13 +128,17 @@ public final class Checker implements Visitor {
 
     public Object visitProgram(Program ast, Object o) {
         ast.FL.visit(this, null);
+        checkMain(ast.position);
+        return null;
+    }
+
+    public void checkMain(SourcePosition position) {
         Decl binding = idTable.retrieve("main");
         if (binding == null) {
-            reporter.reportError(errMesg[0], "", ast.position);
+            reporter.reportError(errMesg[0], "", position);
         } else if (!binding.T.isIntType()) {
-            reporter.reportError(errMesg[1], "", ast.position);
+            reporter.reportError(errMesg[1], "", position);
         }
-        return null;
     }
 
     // Statements
@@ -435,7 +470,7 @@ public final class Checker implements Visitor {
             if (!t2.T.assignable(t)) {
                 reporter.reportError(errMesg[13], "", ast.position);
                 return ast;
-            } else if (t2.T.isFloatType()) {
+            } else if (t2.T.isFloatType() && t.isIntType()) {
                 ast.E = i2f(ast.E);
             }
         } else if (o instanceof LocalVarDecl) {
@@ -443,7 +478,7 @@ public final class Checker implements Visitor {
             ArrayType t2 = (ArrayType) vAST.T;
             if (!t2.T.assignable(t)) {
                 reporter.reportError(errMesg[13], "", ast.position);
-            } else if (t2.isFloatType()) {
+            } else if (t2.T.isFloatType() && t.isIntType()) {
                 ast.E = i2f(ast.E);
             }
         }
@@ -469,7 +504,8 @@ public final class Checker implements Visitor {
             reporter.reportError(errMesg[17], "", ast.position);
             return StdEnvironment.errorType;
         }
-        return ((ArrayType) t1).T;
+        ast.type = ((ArrayType) t1).T;
+        return ast.type;
     }
 
     public Object visitCallExpr(CallExpr ast, Object o) {
@@ -486,7 +522,8 @@ public final class Checker implements Visitor {
             return StdEnvironment.errorType;
         }
         ast.AL.visit(this, ((FuncDecl) binding).PL);
-        return binding.T;
+        ast.type = binding.T;
+        return ast.type;
     }
 
     public Object visitAssignExpr(AssignExpr ast, Object o) {
@@ -511,6 +548,7 @@ public final class Checker implements Visitor {
         if (t1.isFloatType() && t2.isIntType()) {
             ast.E2 = i2f(ast.E2);
         }
+        ast.type = t1;
         return t1;
     }
 
@@ -524,7 +562,11 @@ public final class Checker implements Visitor {
     public Object visitFuncDecl(FuncDecl ast, Object o) {
         // idTable.insert (ast.I.spelling, ast);
         declareVariable(ast.I, ast);
+        checkFuncDecl(ast);
+        return null;
+    }
 
+    private void checkFuncDecl(FuncDecl ast) {
         // Your code goes here
 
         // HINT
@@ -544,8 +586,6 @@ public final class Checker implements Visitor {
             reporter.reportError(errMesg[31], "", ast.position);
         }
         idTable.closeScope();
-
-        return null;
     }
 
     public Object visitDeclList(DeclList ast, Object o) {
@@ -560,7 +600,11 @@ public final class Checker implements Visitor {
 
     public Object visitGlobalVarDecl(GlobalVarDecl ast, Object o) {
         declareVariable(ast.I, ast);
+        checkGlobalVarDecl(ast);
+        return null;
+    }
 
+    private void checkGlobalVarDecl(GlobalVarDecl ast) {
         // declare void id
         if (ast.T.isVoidType()) {
             reporter.reportError(errMesg[3] + ": %", ast.I.spelling, ast.I.position);
@@ -572,7 +616,7 @@ public final class Checker implements Visitor {
                     reporter.reportError(errMesg[18], "", ast.position);
                 }
             }
-            return ast.T;
+            return;
         }
 
         // array
@@ -605,8 +649,6 @@ public final class Checker implements Visitor {
                 }
             }
         }
-
-        return null;
     }
 
     public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
@@ -794,24 +836,6 @@ public final class Checker implements Visitor {
         return null;
     }
 
-    // Creates a small AST to represent the "declaration" of each built-in
-    // function, and enters it in the symbol table.
-
-    private FuncDecl declareStdFunc(Type resultType, String id, List pl) {
-
-        FuncDecl binding;
-
-        binding = new FuncDecl(resultType, new Ident(id, dummyPos), pl, new EmptyStmt(dummyPos), dummyPos);
-        idTable.insert(id, binding);
-        return binding;
-    }
-
-    // Creates small ASTs to represent "declarations" of all
-    // build-in functions.
-    // Inserts these "declarations" into the symbol table.
-
-    private final static Ident dummyI = new Ident("x", dummyPos);
-
     // insert i2f for a int
     private Expr i2f(Expr E) {
         Operator op = new Operator("i2f", dummyPos);
@@ -820,43 +844,4 @@ public final class Checker implements Visitor {
         return eAST;
     }
 
-    private void establishStdEnvironment() {
-
-        // Define four primitive types
-        // errorType is assigned to ill-typed expressions
-
-        StdEnvironment.booleanType = new BooleanType(dummyPos);
-        StdEnvironment.intType = new IntType(dummyPos);
-        StdEnvironment.floatType = new FloatType(dummyPos);
-        StdEnvironment.stringType = new StringType(dummyPos);
-        StdEnvironment.voidType = new VoidType(dummyPos);
-        StdEnvironment.errorType = new ErrorType(dummyPos);
-
-        // enter into the declarations for built-in functions into the table
-
-        StdEnvironment.getIntDecl = declareStdFunc(StdEnvironment.intType, "getInt", new EmptyParaList(dummyPos));
-        StdEnvironment.putIntDecl = declareStdFunc(StdEnvironment.voidType, "putInt", new ParaList(
-                new ParaDecl(StdEnvironment.intType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-        StdEnvironment.putIntLnDecl = declareStdFunc(StdEnvironment.voidType, "putIntLn", new ParaList(
-                new ParaDecl(StdEnvironment.intType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-        StdEnvironment.getFloatDecl = declareStdFunc(StdEnvironment.floatType, "getFloat", new EmptyParaList(dummyPos));
-        StdEnvironment.putFloatDecl = declareStdFunc(StdEnvironment.voidType, "putFloat", new ParaList(
-                new ParaDecl(StdEnvironment.floatType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-        StdEnvironment.putFloatLnDecl = declareStdFunc(StdEnvironment.voidType, "putFloatLn", new ParaList(
-                new ParaDecl(StdEnvironment.floatType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-        StdEnvironment.putBoolDecl = declareStdFunc(StdEnvironment.voidType, "putBool", new ParaList(
-                new ParaDecl(StdEnvironment.booleanType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-        StdEnvironment.putBoolLnDecl = declareStdFunc(StdEnvironment.voidType, "putBoolLn", new ParaList(
-                new ParaDecl(StdEnvironment.booleanType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-
-        StdEnvironment.putStringLnDecl = declareStdFunc(StdEnvironment.voidType, "putStringLn", new ParaList(
-                new ParaDecl(StdEnvironment.stringType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-
-        StdEnvironment.putStringDecl = declareStdFunc(StdEnvironment.voidType, "putString", new ParaList(
-                new ParaDecl(StdEnvironment.stringType, dummyI, dummyPos), new EmptyParaList(dummyPos), dummyPos));
-
-        StdEnvironment.putLnDecl = declareStdFunc(StdEnvironment.voidType, "putLn", new EmptyParaList(dummyPos));
-
-    }
-
 }
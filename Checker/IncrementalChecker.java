@@ -0,0 +1,332 @@
+/*
+ * IncrementalChecker.java
+ *
+ * Checks successive versions of the same VC program, re-checking only
+ * the top-level declarations that may have been affected by an edit.
+ *
+ * Every version is parsed completely and passed to update(). A
+ * top-level declaration is identified across versions by its key, its
+ * name together with the number of earlier declarations with the same
+ * name. The checking is expressed as queries of a QueryEngine:
+ *
+ *   ORDER               the keys in program order              (input)
+ *   TEXT(k)             the source lines of declaration k      (input)
+ *   LAYOUT              the first line of every declaration    (input)
+ *   SIGNATURE(k)        the type of declaration k as a string
+ *   LOOKUP(k, id)       the key of the top-level declaration that id
+ *                       refers to inside declaration k, if any
+ *   CHECKED(k)          the errors found in declaration k
+ *   TOPLEVEL            the redeclaration errors and those about main,
+ *                       which are cheap to find and re-checked after
+ *                       any edit
+ *
+ * CHECKED(k) asks for LOOKUP and SIGNATURE of every top-level
+ * identifier used in k, so a function is re-checked only if its own
+ * text changes or the signature of something it uses changes. Editing
+ * the body of a function re-checks that function alone.
+ *
+ * Each key owns one Decl object for the lifetime of the checker. Its
+ * children are replaced by those of the latest version before it is
+ * re-checked, so the applied occurrences of it in other declarations,
+ * which are not re-checked, remain valid. program() returns a program
+ * made of these declarations.
+ *
+ * The errors of a declaration are remembered with line numbers
+ * relative to its first line, so a declaration that merely moves
+ * (e.g., because lines are inserted above it) is not re-checked. The
+ * source positions in its AST, however, are those of the version in
+ * which it was last checked.
+ */
+
+package VC.Checker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import VC.ASTs.*;
+import VC.ErrorReporter;
+import VC.Prelude;
+import VC.Scanner.SourcePosition;
+
+public final class IncrementalChecker {
+
+    // An error as reported by the checker
+    private static final class Diagnostic {
+        String message, tokenName;
+        SourcePosition position;
+        boolean relative;  // the lines are relative to the declaration
+
+        void replay(ErrorReporter reporter, int base) {
+            reporter.reportError(message, tokenName, relative ? shift(position, base) : position);
+        }
+    }
+
+    // An error reporter that records the errors instead of printing them
+    private static final class Recorder extends ErrorReporter {
+        ArrayList<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+        int base;
+
+        Recorder(int base) {
+            this.base = base;
+        }
+
+        public void reportError(String message, String tokenName, SourcePosition pos) {
+            Diagnostic d = new Diagnostic();
+            d.message = message;
+            d.tokenName = tokenName;
+            // dummy positions (line 0) belong to no declaration
+            d.relative = base > 0 && pos.lineStart > 0;
+            d.position = d.relative ? shift(pos, -base) : pos;
+            diagnostics.add(d);
+            numErrors++;
+        }
+    }
+
+    private static SourcePosition shift(SourcePosition pos, int lines) {
+        SourcePosition shifted = new SourcePosition(pos.lineStart + lines, pos.lineFinish + lines);
+        shifted.charStart = pos.charStart;
+        shifted.charFinish = pos.charFinish;
+        return shifted;
+    }
+
+    private static final class TopLevel {
+        HashMap<String, ArrayList<Diagnostic>> redeclarations;
+        ArrayList<Diagnostic> main;
+    }
+
+    private final QueryEngine engine;
+    private final Prelude prelude;
+
+    // the declarations of the latest version and their first lines
+    private LinkedHashMap<String, Decl> latest;
+    private HashMap<String, Integer> firstLines;
+    private SourcePosition programPos;
+
+    // the declaration object owned by each key
+    private HashMap<String, Decl> stable;
+    private HashMap<String, String> graftedTexts;
+
+    private int rechecked;
+
+    public IncrementalChecker() {
+        this(Prelude.standard());
+    }
+
+    public IncrementalChecker(Prelude prelude) {
+        this.engine = new QueryEngine();
+        this.prelude = prelude;
+        this.stable = new HashMap<String, Decl>();
+        this.graftedTexts = new HashMap<String, String>();
+        this.rechecked = 0;
+    }
+
+    // Inputs
+
+    private static final QueryEngine.Query<ArrayList<String>> ORDER =
+        new QueryEngine.Query<ArrayList<String>>("ORDER", null) { };
+
+    private static final QueryEngine.Query<ArrayList<Integer>> LAYOUT =
+        new QueryEngine.Query<ArrayList<Integer>>("LAYOUT", null) { };
+
+    private static QueryEngine.Query<String> text(String key) {
+        return new QueryEngine.Query<String>("TEXT", key) { };
+    }
+
+    // Makes a new version of the program current. lines are the lines of
+    // its source file.
+
+    public void update(Program program, java.util.List<String> lines) {
+        latest = new LinkedHashMap<String, Decl>();
+        firstLines = new HashMap<String, Integer>();
+        programPos = program.position;
+
+        HashMap<String, Integer> occurrences = new HashMap<String, Integer>();
+        List list = program.FL;
+        while (!list.isEmpty()) {
+            DeclList dlAST = (DeclList) list;
+            String name = dlAST.D.I.spelling;
+            Integer n = occurrences.get(name);
+            n = (n == null) ? 0 : n + 1;
+            occurrences.put(name, n);
+            latest.put(name + "#" + n, dlAST.D);
+            list = dlAST.DL;
+        }
+
+        engine.newRevision();
+        rechecked = 0;
+        ArrayList<Integer> layout = new ArrayList<Integer>();
+        for (String key : latest.keySet()) {
+            Decl d = latest.get(key);
+            int first = Math.min(d.position.lineStart, d.T.position.lineStart);
+            if (first <= 0)
+                first = d.position.lineStart;
+            firstLines.put(key, first);
+            layout.add(first);
+
+            StringBuffer sb = new StringBuffer();
+            for (int i = first; i <= d.position.lineFinish && i <= lines.size(); i++)
+                sb.append(lines.get(i - 1)).append('\n');
+            String text = sb.toString();
+            engine.set(text(key), text);
+
+            // the signature of a changed declaration must be visible to
+            // the declarations that use it even before it is re-checked
+            if (!text.equals(graftedTexts.get(key)))
+                graft(key);
+        }
+        engine.set(ORDER, new ArrayList<String>(latest.keySet()));
+        engine.set(LAYOUT, layout);
+    }
+
+    // Checks the current version, reporting all its errors to reporter.
+
+    public void check(ErrorReporter reporter) {
+        TopLevel top = engine.get(TOPLEVEL);
+        for (String key : latest.keySet()) {
+            ArrayList<Diagnostic> redeclared = top.redeclarations.get(key);
+            if (redeclared != null)
+                for (Diagnostic d : redeclared)
+                    d.replay(reporter, 0);
+            for (Diagnostic d : engine.get(checked(key)))
+                d.replay(reporter, firstLines.get(key));
+        }
+        for (Diagnostic d : top.main)
+            d.replay(reporter, 0);
+    }
+
+    // the number of declarations re-checked by the last call of check()
+    public int rechecked() {
+        return rechecked;
+    }
+
+    public int declarations() {
+        return latest.size();
+    }
+
+    // Returns the checked program.
+    // PRE: check() has been called for the current version.
+
+    public Program program() {
+        List list = new EmptyDeclList(programPos);
+        ArrayList<String> keys = new ArrayList<String>(latest.keySet());
+        for (int i = keys.size() - 1; i >= 0; i--)
+            list = new DeclList(stable.get(keys.get(i)), list, programPos);
+        return new Program(list, programPos);
+    }
+
+    // Derived queries
+
+    private QueryEngine.Query<String> signature(final String key) {
+        return new QueryEngine.Query<String>("SIGNATURE", key) {
+            protected String compute(QueryEngine engine) {
+                engine.get(text(key));
+                Decl d = latest.get(key);
+                StringBuffer sb = new StringBuffer(d.T.toString());
+                if (d instanceof FuncDecl) {
+                    sb.append('(');
+                    List pl = ((FuncDecl) d).PL;
+                    while (!pl.isEmpty()) {
+                        sb.append(((ParaList) pl).P.T.toString());
+                        pl = ((ParaList) pl).PL;
+                        if (!pl.isEmpty())
+                            sb.append(',');
+                    }
+                    sb.append(')');
+                }
+                return sb.toString();
+            }
+        };
+    }
+
+    private QueryEngine.Query<String> lookup(final String key, final String id) {
+        return new QueryEngine.Query<String>("LOOKUP", key + " " + id) {
+            protected String compute(QueryEngine engine) {
+                String found = null;
+                for (String k : engine.get(ORDER)) {
+                    if (k.substring(0, k.lastIndexOf('#')).equals(id))
+                        found = k;
+                    if (k.equals(key))
+                        break;
+                }
+                return found;
+            }
+        };
+    }
+
+    private QueryEngine.Query<ArrayList<Diagnostic>> checked(final String key) {
+        return new QueryEngine.Query<ArrayList<Diagnostic>>("CHECKED", key) {
+            protected ArrayList<Diagnostic> compute(final QueryEngine engine) {
+                engine.get(text(key));
+                // the checker decorates the AST it checks, so it must be
+                // given the unchecked children of the latest version
+                graft(key);
+                rechecked++;
+
+                Scope scope = new Scope() {
+                    public Decl retrieve(String id) {
+                        String k = engine.get(lookup(key, id));
+                        if (k == null)
+                            return prelude.retrieve(id);
+                        engine.get(signature(k));
+                        return stable.get(k);
+                    }
+                };
+                Recorder recorder = new Recorder(firstLines.get(key));
+                new Checker(recorder, scope).checkDecl(stable.get(key));
+                return recorder.diagnostics;
+            }
+        };
+    }
+
+    private final QueryEngine.Query<TopLevel> TOPLEVEL =
+        new QueryEngine.Query<TopLevel>("TOPLEVEL", null) {
+            protected TopLevel compute(QueryEngine engine) {
+                engine.get(LAYOUT);
+                TopLevel top = new TopLevel();
+                top.redeclarations = new HashMap<String, ArrayList<Diagnostic>>();
+
+                Recorder recorder = new Recorder(0);
+                Checker checker = new Checker(recorder, prelude);
+                for (String key : engine.get(ORDER)) {
+                    engine.get(text(key));
+                    checker.declareTopLevel(latest.get(key));
+                    if (!recorder.diagnostics.isEmpty()) {
+                        top.redeclarations.put(key, recorder.diagnostics);
+                        recorder.diagnostics = new ArrayList<Diagnostic>();
+                    }
+                }
+                checker.checkMain(programPos);
+                top.main = recorder.diagnostics;
+                return top;
+            }
+        };
+
+    // Moves the children of the latest version of a declaration into the
+    // declaration object owned by its key.
+
+    private void graft(String key) {
+        Decl fresh = latest.get(key);
+        Decl owned = stable.get(key);
+        graftedTexts.put(key, engine.get(text(key)));
+        if (owned == null || owned.getClass() != fresh.getClass()) {
+            stable.put(key, fresh);
+            return;
+        }
+        owned.T = fresh.T;
+        owned.I = fresh.I;
+        owned.position = fresh.position;
+        owned.T.parent = owned.I.parent = owned;
+        if (owned instanceof FuncDecl) {
+            FuncDecl f = (FuncDecl) owned;
+            f.PL = ((FuncDecl) fresh).PL;
+            f.S = ((FuncDecl) fresh).S;
+            f.PL.parent = f.S.parent = f;
+        } else {
+            GlobalVarDecl v = (GlobalVarDecl) owned;
+            v.E = ((GlobalVarDecl) fresh).E;
+            v.E.parent = v;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * QueryEngine.java
+ *
+ * A small demand-driven evaluator of memoized queries.
+ *
+ * A query is identified by a kind and an argument and computes a value,
+ * possibly by asking the engine for the values of other queries. The
+ * engine remembers the value of every query together with the queries
+ * it asked for (its dependencies). Inputs are queries whose values are
+ * set from outside by set().
+ *
+ * The engine keeps a revision number, which is incremented whenever an
+ * input may be changed. A value remembered from an earlier revision is
+ * reused if none of its dependencies has changed since it was last
+ * verified; otherwise it is recomputed. A recomputed value that is
+ * equal to the old one does not count as a change, so the queries that
+ * depend on it are not recomputed either ("early cut-off").
+ *
+ * This is the red-green algorithm used by incremental compilers such
+ * as rustc and salsa, without any of their concurrency.
+ */
+
+package VC.Checker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Stack;
+
+public final class QueryEngine {
+
+    public static abstract class Query<V> {
+
+        public final String kind;
+        public final Object arg;
+
+        public Query(String kind, Object arg) {
+            this.kind = kind;
+            this.arg = arg;
+        }
+
+        // Computes the value, asking engine for all other values needed.
+        // Inputs are never computed.
+        protected V compute(QueryEngine engine) {
+            throw new IllegalStateException("input " + this + " has not been set");
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Query))
+                return false;
+            Query<?> q = (Query<?>) obj;
+            return kind.equals(q.kind) && (arg == null ? q.arg == null : arg.equals(q.arg));
+        }
+
+        public int hashCode() {
+            return kind.hashCode() * 31 + (arg == null ? 0 : arg.hashCode());
+        }
+
+        public String toString() {
+            return kind + "(" + arg + ")";
+        }
+    }
+
+    private static final class Memo {
+        Query<?> query;
+        Object value;
+        boolean isInput;
+        ArrayList<Memo> deps = new ArrayList<Memo>();
+        int verifiedAt;  // the last revision in which value was known to be current
+        int changedAt;   // the last revision in which value changed
+
+        Memo(Query<?> query) {
+            this.query = query;
+        }
+    }
+
+    private int revision;
+    private HashMap<Query<?>, Memo> memos;
+
+    // the dependencies of the queries being computed, innermost on top
+    private Stack<ArrayList<Memo>> active;
+    private HashSet<Query<?>> executing;
+
+    // the number of queries computed in the current revision
+    private int computed;
+
+    public QueryEngine() {
+        revision = 1;
+        memos = new HashMap<Query<?>, Memo>();
+        active = new Stack<ArrayList<Memo>>();
+        executing = new HashSet<Query<?>>();
+        computed = 0;
+    }
+
+    // Starts a new revision, in which inputs may be set.
+    public void newRevision() {
+        revision++;
+        computed = 0;
+    }
+
+    public int computedInThisRevision() {
+        return computed;
+    }
+
+    // Sets the value of an input. Setting an equal value is not a change.
+    public <V> void set(Query<V> input, V value) {
+        Memo m = memos.get(input);
+        if (m == null) {
+            m = new Memo(input);
+            m.isInput = true;
+            memos.put(input, m);
+        } else if (equal(m.value, value)) {
+            return;
+        }
+        m.value = value;
+        m.changedAt = revision;
+        m.verifiedAt = revision;
+    }
+
+    // Returns the value of a query, recomputing it only if necessary, and
+    // records it as a dependency of the query being computed, if any.
+
+    @SuppressWarnings("unchecked")
+    public <V> V get(Query<V> query) {
+        Memo m = memos.get(query);
+        if (m == null) {
+            m = new Memo(query);
+            memos.put(query, m);
+            execute(m, true);
+        } else if (!verify(m)) {
+            execute(m, false);
+        }
+        if (!active.isEmpty())
+            active.peek().add(m);
+        return (V) m.value;
+    }
+
+    // Returns true if the value of m is current, bringing the values of
+    // its dependencies up to date on the way.
+
+    private boolean verify(Memo m) {
+        if (m.isInput || m.verifiedAt == revision)
+            return true;
+        for (Memo d : m.deps) {
+            if (!verify(d))
+                execute(d, false);
+            if (d.changedAt > m.verifiedAt)
+                return false;
+        }
+        m.verifiedAt = revision;
+        return true;
+    }
+
+    private void execute(Memo m, boolean isNew) {
+        if (!executing.add(m.query))
+            throw new IllegalStateException("cyclic query " + m.query);
+
+        active.push(new ArrayList<Memo>());
+        Object value;
+        try {
+            value = m.query.compute(this);
+        } finally {
+            m.deps = active.pop();
+            executing.remove(m.query);
+        }
+        computed++;
+
+        if (isNew || !equal(m.value, value)) {
+            m.value = value;
+            m.changedAt = revision;
+        }
+        m.verifiedAt = revision;
+    }
+
+    private static boolean equal(Object x, Object y) {
+        return x == null ? y == null : x.equals(y);
+    }
+
+}
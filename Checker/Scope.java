@@ -0,0 +1,18 @@
+/*
+ * Scope.java
+ *
+ * An enclosing scope that a symbol table falls back to when an
+ * identifier has not been declared in the table itself, e.g., the
+ * standard prelude.
+ */
+
+package VC.Checker;
+
+import VC.ASTs.Decl;
+
+public interface Scope {
+
+  // Returns the declaration of id or null if id is not declared.
+  public Decl retrieve(String id);
+
+}
@@ -23,20 +23,34 @@
  * such as Java and Ada, it is possible to use a quantified name 
  * such as x.y to access a nonlocal variable "y". In this case, the
  * symbol table for "y" has to be made accessible in some way.
+ *
+ * The built-in functions are not inserted into the table. Instead, the
+ * table is layered over an enclosing Scope, normally the immutable
+ * Prelude, which is searched when an identifier is not found in the
+ * table itself. The enclosing scope belongs to the outermost (global)
+ * level, so redeclaring a built-in function at the global level is
+ * detected by retrieveOneLevel.
  */
 
 package VC.Checker;
 
 import VC.ASTs.*;
+import VC.Prelude;
 
 public final class SymbolTable {
 
   private int level;
   private IdEntry latest;
+  private final Scope outer;
 
   public SymbolTable () {
+    this(Prelude.standard());
+  }
+
+  public SymbolTable (Scope outer) {
     level = 1;
     latest = null;
+    this.outer = outer;
   }
 
   // Opens a new level in the symbol table, 1 higher than the
@@ -55,7 +69,7 @@ public final class SymbolTable {
 
     // Presumably, idTable.level > 0.
     entry = this.latest;
-    while (entry.level == this.level)
+    while (entry != null && entry.level == this.level)
       entry = entry.previousEntry;
     this.level--;
     this.latest = entry;
@@ -94,6 +108,8 @@ public final class SymbolTable {
       } else
         entry = entry.previousEntry;
     }
+    if (!present)
+      attr = outer.retrieve(id);
     return attr;
   }
 
@@ -110,6 +126,9 @@ public final class SymbolTable {
       entry = entry.previousEntry;
     }
 
+    if (entry == null && this.level == 1 && outer.retrieve(id) != null)
+      entry = new IdEntry(id, outer.retrieve(id), 0, null);
+
     return entry;
   }
 
@@ -0,0 +1,401 @@
+/*
+ * Assembler.java
+ *
+ * Assembles the code generated by the Emitter directly into the bytes
+ * of a class file, so that no separate run of Jasmin is needed.
+ *
+ * Labels are local to a method. A branch whose target is more than
+ * 32767 bytes away is assembled into its wide form: goto becomes
+ * goto_w and a conditional branch becomes the opposite branch around a
+ * goto_w. Local variables beyond 255 are accessed with the wide prefix,
+ * and constants beyond the 255th entry of the pool are loaded by ldc_w.
+ *
+ * The local variables of a method become its LocalVariableTable, and
+ * the types at its branch targets its StackMapTable, so that the class
+ * is checked by the fast type-checking verifier. Unreachable code is
+ * removed from a method before it is assembled, since the verifier
+ * would need a frame for it. The scopes of variables left empty by it,
+ * and any duplicates, are dropped from the LocalVariableTable.
+ *
+ * See Chapter 4, T Lindholm and F Yellin, The JVM spec, 2nd ed.
+ */
+
+package VC.CodeGen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import VC.ErrorReporter;
+import VC.Scanner.SourcePosition;
+
+public final class Assembler {
+
+  // The version of the class files generated (Java SE 8), which must
+  // carry stack map frames.
+  public static final int MAJOR_VERSION = 52, MINOR_VERSION = 0;
+
+  private static final int
+    LDC_W = 0x13,
+    WIDE = 0xc4,
+    GOTO_W = 0xc8;
+
+  private ErrorReporter reporter;
+  private ConstantPool pool;
+  private String classname;
+
+  // The layout of the method being assembled: the offset of each
+  // instruction, the branches that need their wide form and the offsets
+  // of the labels. The instructions are keyed by identity.
+  private IdentityHashMap<Instruction, Integer> offsets;
+  private IdentityHashMap<Instruction, Boolean> wide;
+  private IdentityHashMap<Label, Integer> labels;
+  private int size;
+
+  public Assembler(ErrorReporter reporter) {
+    this.reporter = reporter;
+  }
+
+  // Returns the class file of a public class with the given static
+  // fields and methods, or null if a method is too big for the JVM.
+
+  public byte[] assemble(String classname, String superclass,
+                         List<MemberRef> fields, List<CodeBuffer> methods) {
+    pool = new ConstantPool();
+    this.classname = classname;
+    int thisClass = pool.addClass(classname);
+    int superClass = pool.addClass(superclass);
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeShort(fields.size());
+      for (MemberRef f : fields) {
+        out.writeShort(JVM.ACC_STATIC);
+        out.writeShort(pool.addUtf8(f.name));
+        out.writeShort(pool.addUtf8(f.descriptor));
+        out.writeShort(0); // attributes
+      }
+
+      out.writeShort(methods.size());
+      for (CodeBuffer m : methods) {
+        StackMaps.removeUnreachable(m);
+        if (!layout(m)) {
+          reporter.reportError("the code of method % is larger than 65535 bytes",
+                               m.name + m.descriptor, new SourcePosition());
+          return null;
+        }
+        out.writeShort(m.access);
+        out.writeShort(pool.addUtf8(m.name));
+        out.writeShort(pool.addUtf8(m.descriptor));
+        out.writeShort(1);
+        writeCode(out, m);
+      }
+      out.writeShort(0); // attributes of the class
+
+      // the constant pool precedes the members but is complete only now
+      ByteArrayOutputStream file = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(file);
+      header.writeInt(0xcafebabe);
+      header.writeShort(MINOR_VERSION);
+      header.writeShort(MAJOR_VERSION);
+      pool.writeTo(header);
+      header.writeShort(JVM.ACC_PUBLIC | JVM.ACC_SUPER);
+      header.writeShort(thisClass);
+      header.writeShort(superClass);
+      header.writeShort(0); // interfaces
+      bytes.writeTo(header);
+      return file.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  // The number of bytes of the code of m, as it would be assembled now.
+
+  public int codeSize(CodeBuffer m) {
+    if (pool == null)
+      pool = new ConstantPool();
+    layout(m);
+    return size;
+  }
+
+  // The offset of each instruction of m, as it would be assembled now,
+  // followed by the size of its code.
+
+  int[] offsets(CodeBuffer m) {
+    codeSize(m);
+    List<Instruction> code = m.instructions();
+    int[] at = new int[code.size() + 1];
+    for (int i = 0; i < code.size(); i++)
+      at[i] = offsets.get(code.get(i));
+    at[code.size()] = size;
+    return at;
+  }
+
+  // Layout
+
+  // Assigns the offsets of the instructions of m, widening the branches
+  // whose targets are out of reach until none is. Returns false if the
+  // code is too big for a method.
+
+  private boolean layout(CodeBuffer m) {
+    offsets = new IdentityHashMap<Instruction, Integer>();
+    wide = new IdentityHashMap<Instruction, Boolean>();
+    labels = new IdentityHashMap<Label, Integer>();
+    boolean changed = true;
+    while (changed) {
+      size = 0;
+      for (Instruction inst : m.instructions()) {
+        offsets.put(inst, size);
+        if (inst.isLabel())
+          labels.put(inst.label, size);
+        size += size(inst);
+      }
+      changed = false;
+      for (Instruction inst : m.instructions())
+        if (JVM.isBranch(inst.opcode) && !wide.containsKey(inst)) {
+          int delta = target(m, inst.label) - offsets.get(inst);
+          if (delta < Short.MIN_VALUE || delta > Short.MAX_VALUE) {
+            wide.put(inst, Boolean.TRUE);
+            changed = true;
+          }
+        }
+    }
+    return size <= JVM.MAX_SHORT;
+  }
+
+  // the number of bytes of inst in the code
+  private int size(Instruction inst) {
+    switch (inst.opcode) {
+    case JVM.LABEL:
+      return 0;
+    case JVM.ILOAD: case JVM.FLOAD: case JVM.ALOAD:
+    case JVM.ISTORE: case JVM.FSTORE: case JVM.ASTORE:
+      return inst.operand > JVM.MAX_BYTE ? 4 : 2;
+    case JVM.BIPUSH: case JVM.NEWARRAY:
+      return 2;
+    case JVM.LDC:
+      return constant(inst) > JVM.MAX_BYTE ? 3 : 2;
+    case JVM.SIPUSH: case JVM.GETSTATIC: case JVM.PUTSTATIC:
+    case JVM.INVOKEVIRTUAL: case JVM.INVOKESPECIAL: case JVM.INVOKESTATIC:
+    case JVM.NEW:
+      return 3;
+    default:
+      if (JVM.isBranch(inst.opcode))
+        return !wide.containsKey(inst) ? 3 : (inst.opcode == JVM.GOTO ? 5 : 8);
+      return 1;
+    }
+  }
+
+  // the offset of a label in m
+  private int target(CodeBuffer m, Label label) {
+    Integer offset = labels.get(label);
+    if (offset == null)
+      throw new IllegalArgumentException("label " + label + " not placed in " + m.name);
+    return offset;
+  }
+
+  // the index in the pool of the constant of ldc
+  private int constant(Instruction inst) {
+    if (inst.constant instanceof String)
+      return pool.addString((String) inst.constant);
+    else if (inst.constant instanceof Float)
+      return pool.addFloat((Float) inst.constant);
+    else
+      return pool.addInteger((Integer) inst.constant);
+  }
+
+  // Writing
+
+  private void writeCode(DataOutputStream out, CodeBuffer m) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream code = new DataOutputStream(bytes);
+
+    for (Instruction inst : m.instructions()) {
+      int opcode = inst.opcode;
+      switch (opcode) {
+      case JVM.LABEL:
+        break;
+      case JVM.ILOAD: case JVM.FLOAD: case JVM.ALOAD:
+      case JVM.ISTORE: case JVM.FSTORE: case JVM.ASTORE:
+        if (inst.operand > JVM.MAX_BYTE) {
+          code.writeByte(WIDE);
+          code.writeByte(opcode);
+          code.writeShort(inst.operand);
+        } else {
+          code.writeByte(opcode);
+          code.writeByte(inst.operand);
+        }
+        break;
+      case JVM.BIPUSH: case JVM.NEWARRAY:
+        code.writeByte(opcode);
+        code.writeByte(inst.operand);
+        break;
+      case JVM.SIPUSH:
+        code.writeByte(opcode);
+        code.writeShort(inst.operand);
+        break;
+      case JVM.LDC: {
+        int index = constant(inst);
+        if (index > JVM.MAX_BYTE) {
+          code.writeByte(LDC_W);
+          code.writeShort(index);
+        } else {
+          code.writeByte(opcode);
+          code.writeByte(index);
+        }
+        break;
+      }
+      case JVM.GETSTATIC: case JVM.PUTSTATIC:
+        code.writeByte(opcode);
+        code.writeShort(pool.addFieldref(inst.member.owner, inst.member.name, inst.member.descriptor));
+        break;
+      case JVM.INVOKEVIRTUAL: case JVM.INVOKESPECIAL: case JVM.INVOKESTATIC:
+        code.writeByte(opcode);
+        code.writeShort(pool.addMethodref(inst.member.owner, inst.member.name, inst.member.descriptor));
+        break;
+      case JVM.NEW:
+        code.writeByte(opcode);
+        code.writeShort(pool.addClass(inst.className));
+        break;
+      default:
+        if (JVM.isBranch(opcode)) {
+          int delta = target(m, inst.label) - offsets.get(inst);
+          if (!wide.containsKey(inst)) {
+            code.writeByte(opcode);
+            code.writeShort(delta);
+          } else if (opcode == JVM.GOTO) {
+            code.writeByte(GOTO_W);
+            code.writeInt(delta);
+          } else {
+            // the opposite condition skips the goto_w
+            code.writeByte(JVM.negate(opcode));
+            code.writeShort(8);
+            code.writeByte(GOTO_W);
+            code.writeInt(delta - 3);
+          }
+        } else
+          code.writeByte(opcode);
+      }
+    }
+
+    // the empty scopes are left out, and the duplicates the verifier
+    // rejects
+    ByteArrayOutputStream vars = new ByteArrayOutputStream();
+    DataOutputStream table = new DataOutputStream(vars);
+    HashSet<List<Object>> written = new HashSet<List<Object>>();
+    for (CodeBuffer.LocalVar v : m.vars()) {
+      int from = target(m, v.start), length = target(m, v.end) - from;
+      if (length == 0 || !written.add(Arrays.<Object>asList(from, length, v.name, v.index)))
+        continue;
+      table.writeShort(from);
+      table.writeShort(length);
+      table.writeShort(pool.addUtf8(v.name));
+      table.writeShort(pool.addUtf8(v.descriptor));
+      table.writeShort(v.index);
+    }
+
+    byte[] frames = stackMapTable(m);
+
+    int attributes = 0, attributesLength = 0;
+    if (!written.isEmpty()) {
+      attributes++;
+      attributesLength += 8 + vars.size();
+    }
+    if (frames != null) {
+      attributes++;
+      attributesLength += 6 + frames.length;
+    }
+    out.writeShort(pool.addUtf8("Code"));
+    out.writeInt(12 + size + attributesLength);
+    out.writeShort(m.maxStack);
+    out.writeShort(m.maxLocals);
+    out.writeInt(size);
+    bytes.writeTo(out);
+    out.writeShort(0); // exception table
+    out.writeShort(attributes);
+    if (!written.isEmpty()) {
+      out.writeShort(pool.addUtf8("LocalVariableTable"));
+      out.writeInt(2 + vars.size());
+      out.writeShort(written.size());
+      vars.writeTo(out);
+    }
+    if (frames != null) {
+      out.writeShort(pool.addUtf8("StackMapTable"));
+      out.writeInt(frames.length);
+      out.write(frames);
+    }
+  }
+
+  // The StackMapTable of m, or null if m has no branch targets. A frame
+  // is encoded in the compact form of same_frame or
+  // same_locals_1_stack_item if its locals are those of the previous
+  // frame, and as a full_frame otherwise.
+
+  private byte[] stackMapTable(CodeBuffer m) throws IOException {
+    List<StackMaps.Entry> entries = StackMaps.compute(classname, m, wide.keySet());
+    if (entries.isEmpty())
+      return null;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(entries.size());
+    List<String> locals = StackMaps.initial(classname, m).usedLocals();
+    int previous = -1;
+    for (StackMaps.Entry e : entries) {
+      int offset = offsets.get(e.inst);
+      int delta = offset - previous - 1;
+      previous = offset;
+      List<String> stack = e.state.stack;
+      if (e.state.usedLocals().equals(locals) && stack.size() <= 1) {
+        if (stack.isEmpty() && delta < 64) {
+          out.writeByte(delta);                 // same_frame
+        } else if (stack.isEmpty()) {
+          out.writeByte(251);                   // same_frame_extended
+          out.writeShort(delta);
+        } else if (delta < 64) {
+          out.writeByte(64 + delta);            // same_locals_1_stack_item
+          writeType(out, stack.get(0));
+        } else {
+          out.writeByte(247);                   // ..._extended
+          out.writeShort(delta);
+          writeType(out, stack.get(0));
+        }
+      } else {
+        locals = e.state.usedLocals();
+        out.writeByte(255);                     // full_frame
+        out.writeShort(delta);
+        out.writeShort(locals.size());
+        for (String t : locals)
+          writeType(out, t);
+        out.writeShort(stack.size());
+        for (String t : stack)
+          writeType(out, t);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  // writes a verification_type_info
+  private void writeType(DataOutputStream out, String type) throws IOException {
+    if (type.equals(StackMaps.TOP)) {
+      out.writeByte(0);
+    } else if (type.equals(StackMaps.INT)) {
+      out.writeByte(1);
+    } else if (type.equals(StackMaps.FLOAT)) {
+      out.writeByte(2);
+    } else {
+      // an object: its class is named by its internal name, or by its
+      // descriptor if it is an array
+      out.writeByte(7);
+      out.writeShort(pool.addClass(type.startsWith("L") ? type.substring(1, type.length() - 1) : type));
+    }
+  }
+
+}
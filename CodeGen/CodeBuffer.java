@@ -0,0 +1,74 @@
+/*
+ * CodeBuffer.java
+ *
+ * The code of a method: its instructions, its local variables (as
+ * declared by .var in Jasmin) and the limits of its operand stack and
+ * local variables. The Emitter owns one buffer for each method, so that
+ * methods can be inspected, optimised and reordered independently
+ * before the class file is assembled.
+ */
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+
+public final class CodeBuffer {
+
+  // A local variable in scope from the label start to the label end
+  public static final class LocalVar {
+    public final int index;
+    public final String name, descriptor;
+    public final Label start, end;
+
+    public LocalVar(int index, String name, String descriptor, Label start, Label end) {
+      this.index = index;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  public final int access;         // JVM.ACC_PUBLIC, JVM.ACC_STATIC, ...
+  public final String name;        // e.g., gcd
+  public final String descriptor;  // e.g., (II)I
+
+  public int maxStack, maxLocals;
+
+  private ArrayList<Instruction> code;
+  private ArrayList<LocalVar> vars;
+
+  public CodeBuffer(int access, String name, String descriptor) {
+    this.access = access;
+    this.name = name;
+    this.descriptor = descriptor;
+    code = new ArrayList<Instruction>();
+    vars = new ArrayList<LocalVar>();
+  }
+
+  public void append(Instruction inst) {
+    code.add(inst);
+  }
+
+  public int size() {
+    return code.size();
+  }
+
+  public Instruction get(int addr) {
+    return code.get(addr);
+  }
+
+  // The instructions in order. The list may be modified.
+  public java.util.List<Instruction> instructions() {
+    return code;
+  }
+
+  public void addVar(LocalVar var) {
+    vars.add(var);
+  }
+
+  public java.util.List<LocalVar> vars() {
+    return vars;
+  }
+
+}
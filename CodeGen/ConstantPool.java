@@ -0,0 +1,148 @@
+/*
+ * ConstantPool.java
+ *
+ * The constant pool of a class file being assembled. Every constant
+ * is entered at most once: adding a constant that is already present
+ * returns the index of the existing entry.
+ *
+ * See Section 4.4, T Lindholm and F Yellin, The JVM spec, 2nd ed.
+ */
+
+package VC.CodeGen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+public final class ConstantPool {
+
+  // Tags of the constants
+  private static final int
+    CONSTANT_Utf8 = 1,
+    CONSTANT_Integer = 3,
+    CONSTANT_Float = 4,
+    CONSTANT_Class = 7,
+    CONSTANT_String = 8,
+    CONSTANT_Fieldref = 9,
+    CONSTANT_Methodref = 10,
+    CONSTANT_NameAndType = 12;
+
+  // the entries in their class-file form, the first one having index 1
+  private ByteArrayOutputStream bytes;
+  private DataOutputStream out;
+  private int count;
+
+  // the indices of the entries, keyed by their tags and contents
+  private HashMap<String, Integer> indices;
+
+  public ConstantPool() {
+    bytes = new ByteArrayOutputStream();
+    out = new DataOutputStream(bytes);
+    count = 1;
+    indices = new HashMap<String, Integer>();
+  }
+
+  public int addUtf8(String s) {
+    Integer index = indices.get(CONSTANT_Utf8 + ":" + s);
+    if (index != null)
+      return index;
+    try {
+      out.writeByte(CONSTANT_Utf8);
+      out.writeUTF(s);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("constant string too long: " + s);
+    }
+    return enter(CONSTANT_Utf8 + ":" + s);
+  }
+
+  public int addInteger(int value) {
+    Integer index = indices.get(CONSTANT_Integer + ":" + value);
+    if (index != null)
+      return index;
+    write(CONSTANT_Integer);
+    writeInt(value);
+    return enter(CONSTANT_Integer + ":" + value);
+  }
+
+  public int addFloat(float value) {
+    // keyed by the bits so that 0.0 and -0.0 are different constants
+    int bits = Float.floatToIntBits(value);
+    Integer index = indices.get(CONSTANT_Float + ":" + bits);
+    if (index != null)
+      return index;
+    write(CONSTANT_Float);
+    writeInt(bits);
+    return enter(CONSTANT_Float + ":" + bits);
+  }
+
+  public int addString(String s) {
+    return addRef(CONSTANT_String, s, addUtf8(s), -1);
+  }
+
+  // name is an internal class name such as java/lang/Object
+  public int addClass(String name) {
+    return addRef(CONSTANT_Class, name, addUtf8(name), -1);
+  }
+
+  public int addNameAndType(String name, String descriptor) {
+    return addRef(CONSTANT_NameAndType, name + ":" + descriptor,
+                  addUtf8(name), addUtf8(descriptor));
+  }
+
+  public int addFieldref(String owner, String name, String descriptor) {
+    return addRef(CONSTANT_Fieldref, owner + "." + name + ":" + descriptor,
+                  addClass(owner), addNameAndType(name, descriptor));
+  }
+
+  public int addMethodref(String owner, String name, String descriptor) {
+    return addRef(CONSTANT_Methodref, owner + "." + name + ":" + descriptor,
+                  addClass(owner), addNameAndType(name, descriptor));
+  }
+
+  // the value of constant_pool_count in the class file
+  public int count() {
+    return count;
+  }
+
+  public void writeTo(DataOutputStream dest) throws IOException {
+    dest.writeShort(count);
+    bytes.writeTo(dest);
+  }
+
+  // Enters a constant made of one or two indices of other constants.
+  private int addRef(int tag, String contents, int index1, int index2) {
+    Integer index = indices.get(tag + ":" + contents);
+    if (index != null)
+      return index;
+    write(tag);
+    writeShort(index1);
+    if (index2 >= 0)
+      writeShort(index2);
+    return enter(tag + ":" + contents);
+  }
+
+  private int enter(String key) {
+    if (count >= JVM.MAX_SHORT)
+      throw new IllegalStateException("too many constants in the class");
+    int index = count;
+    indices.put(key, index);
+    count++;
+    return index;
+  }
+
+  private void write(int b) {
+    bytes.write(b);
+  }
+
+  private void writeShort(int v) {
+    bytes.write(v >>> 8);
+    bytes.write(v);
+  }
+
+  private void writeInt(int v) {
+    writeShort(v >>> 16);
+    writeShort(v & 0xffff);
+  }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * DeadCode.java
+ *
+ * Removes the code of a method that is never executed or computes
+ * values never used, over the control flow graph of its basic blocks:
+ *
+ *   1. a conditional branch on constants, e.g., for if (1 > 2) or a
+ *      comparison of float literals, becomes a goto or is removed;
+ *   2. the blocks that cannot be reached from the start of the method
+ *      are removed, e.g., the code after a return, a break or a
+ *      continue, the arm of an if never taken and the nop at the end
+ *      of a function whose every path returns;
+ *   3. a store into a local variable that is not live after it, i.e.,
+ *      not read before it is assigned again, becomes a pop, and a pop
+ *      of a value pushed by a load or a constant is removed with it.
+ *
+ * The steps are repeated until none applies. The labels of removed
+ * code are kept, as they delimit the scopes of the local variables.
+ * The number of instructions removed by each step and the size of the
+ * code before and after are kept for report().
+ */
+
+package VC.CodeGen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+public final class DeadCode {
+
+  // A basic block: code[start..end), entered at code[start] only and
+  // left after code[end - 1] only
+  private static final class Block {
+    final int start, end;
+    final ArrayList<Block> successors = new ArrayList<Block>(2);
+    boolean reached;
+    BitSet liveIn = new BitSet();
+
+    Block(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private int folded, unreachable, deadStores;
+  private int methods, bytesBefore, bytesAfter;
+
+  public DeadCode() {
+  }
+
+  public void optimise(CodeBuffer m) {
+    List<Instruction> code = m.instructions();
+    int before = new Assembler(null).codeSize(m);
+
+    boolean optimised = false;
+    boolean changed = true;
+    while (changed) {
+      int n = code.size();
+      foldBranches(code);
+      removeUnreachable(code);
+      removeDeadStores(code);
+      changed = code.size() != n;
+      optimised |= changed;
+    }
+    if (optimised)
+      m.maxStack = Peephole.maxStack(m);
+
+    methods++;
+    bytesBefore += before;
+    bytesAfter += new Assembler(null).codeSize(m);
+  }
+
+  public void report() {
+    System.out.println("Dead code elimination:");
+    System.out.println("  constant branches folded: " + folded);
+    System.out.println("  unreachable instructions removed: " + unreachable);
+    System.out.println("  dead stores removed: " + deadStores);
+    System.out.println("  code size of " + methods + " methods: "
+                       + bytesBefore + " -> " + bytesAfter + " bytes");
+  }
+
+  // The control flow graph
+
+  private static ArrayList<Block> blocks(List<Instruction> code) {
+    int n = code.size();
+    IdentityHashMap<Label, Integer> at = new IdentityHashMap<Label, Integer>();
+    for (int i = 0; i < n; i++)
+      if (code.get(i).isLabel())
+        at.put(code.get(i).label, i);
+
+    // a block starts at a branch target and after a branch or a return
+    boolean[] leader = new boolean[n + 1];
+    leader[0] = leader[n] = true;
+    for (int i = 0; i < n; i++) {
+      Instruction inst = code.get(i);
+      if (JVM.isBranch(inst.opcode)) {
+        leader[at.get(inst.label)] = true;
+        leader[i + 1] = true;
+      } else if (JVM.isReturn(inst.opcode)) {
+        leader[i + 1] = true;
+      }
+    }
+    ArrayList<Block> blocks = new ArrayList<Block>();
+    Block[] blockAt = new Block[n + 1];
+    for (int start = 0, end = 1; end <= n; end++)
+      if (leader[end]) {
+        Block b = new Block(start, end);
+        blocks.add(b);
+        for (int i = start; i < end; i++)
+          blockAt[i] = b;
+        start = end;
+      }
+    for (int k = 0; k < blocks.size(); k++) {
+      Block b = blocks.get(k);
+      Instruction last = code.get(b.end - 1);
+      if (JVM.isBranch(last.opcode))
+        b.successors.add(blockAt[at.get(last.label)]);
+      if (!JVM.isUnconditionalTransfer(last.opcode) && k + 1 < blocks.size())
+        b.successors.add(blocks.get(k + 1));
+    }
+    return blocks;
+  }
+
+  // Constant branches
+
+  private void foldBranches(List<Instruction> code) {
+    for (int i = 0; i < code.size(); i++) {
+      int op = code.get(i).opcode;
+      Float f1 = i >= 2 ? floatConstant(code.get(i - 2)) : null;
+      Float f2 = i >= 1 ? floatConstant(code.get(i - 1)) : null;
+      if ((op == JVM.FCMPL || op == JVM.FCMPG) && f1 != null && f2 != null) {
+        // fcmpl and fcmpg differ only for NaN
+        float v1 = f1, v2 = f2;
+        int c = v1 < v2 ? -1 : v1 > v2 ? 1 : v1 == v2 ? 0 : op == JVM.FCMPL ? -1 : 1;
+        code.subList(i - 2, i + 1).clear();
+        code.add(i - 2, JVM.iconst(c));
+        i -= 2;
+        continue;
+      }
+      if (!JVM.isConditionalBranch(op))
+        continue;
+      Integer c1 = i >= 2 ? JVM.intConstant(code.get(i - 2)) : null;
+      Integer c2 = i >= 1 ? JVM.intConstant(code.get(i - 1)) : null;
+      int operands, test;
+      if (op >= JVM.IF_ICMPEQ && c1 != null && c2 != null) {
+        operands = 2;
+        test = Integer.compare(c1, c2);
+        op = op - JVM.IF_ICMPEQ + JVM.IFEQ;
+      } else if (op < JVM.IF_ICMPEQ && c2 != null) {
+        operands = 1;
+        test = c2;
+      } else {
+        continue;
+      }
+      Instruction branch = code.get(i);
+      code.subList(i - operands, i + 1).clear();
+      i -= operands;
+      if (taken(op, test))
+        code.add(i, new Instruction(JVM.GOTO, branch.label));
+      else
+        i--;
+      folded++;
+    }
+  }
+
+  // true if the branch ifeq, ifne, iflt, ... is taken on the value c
+  private static boolean taken(int op, int c) {
+    switch (op) {
+    case JVM.IFEQ: return c == 0;
+    case JVM.IFNE: return c != 0;
+    case JVM.IFLT: return c < 0;
+    case JVM.IFGE: return c >= 0;
+    case JVM.IFGT: return c > 0;
+    default:       return c <= 0;
+    }
+  }
+
+  private static Float floatConstant(Instruction inst) {
+    if (JVM.FCONST_0 <= inst.opcode && inst.opcode <= JVM.FCONST_2)
+      return (float) (inst.opcode - JVM.FCONST_0);
+    if (inst.opcode == JVM.LDC && inst.constant instanceof Float)
+      return (Float) inst.constant;
+    return null;
+  }
+
+  // Unreachable blocks
+
+  private void removeUnreachable(List<Instruction> code) {
+    if (code.isEmpty())
+      return;
+    ArrayList<Block> blocks = blocks(code);
+    ArrayDeque<Block> work = new ArrayDeque<Block>();
+    blocks.get(0).reached = true;
+    work.push(blocks.get(0));
+    while (!work.isEmpty())
+      for (Block s : work.pop().successors)
+        if (!s.reached) {
+          s.reached = true;
+          work.push(s);
+        }
+
+    ArrayList<Instruction> live = new ArrayList<Instruction>();
+    for (Block b : blocks)
+      for (int i = b.start; i < b.end; i++)
+        if (b.reached || code.get(i).isLabel())
+          live.add(code.get(i));
+    unreachable += code.size() - live.size();
+    code.clear();
+    code.addAll(live);
+  }
+
+  // Dead stores
+
+  private void removeDeadStores(List<Instruction> code) {
+    if (code.isEmpty())
+      return;
+    ArrayList<Block> blocks = blocks(code);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int k = blocks.size() - 1; k >= 0; k--) {
+        Block b = blocks.get(k);
+        BitSet live = liveOut(b);
+        for (int i = b.end - 1; i >= b.start; i--)
+          transfer(code.get(i), live);
+        if (!live.equals(b.liveIn)) {
+          b.liveIn = live;
+          changed = true;
+        }
+      }
+    }
+
+    for (Block b : blocks) {
+      BitSet live = liveOut(b);
+      for (int i = b.end - 1; i >= b.start; i--) {
+        Instruction inst = code.get(i);
+        if (JVM.isStore(inst.opcode) && !live.get(JVM.localIndex(inst))) {
+          code.set(i, new Instruction(JVM.POP));
+          deadStores++;
+        } else {
+          transfer(inst, live);
+        }
+      }
+    }
+
+    // a value pushed only to be popped
+    for (int i = 1; i < code.size(); i++)
+      if (code.get(i).opcode == JVM.POP && isPure(code.get(i - 1))) {
+        code.subList(i - 1, i + 1).clear();
+        i = Math.max(i - 2, 0);
+      }
+  }
+
+  private static BitSet liveOut(Block b) {
+    BitSet live = new BitSet();
+    for (Block s : b.successors)
+      live.or(s.liveIn);
+    return live;
+  }
+
+  private static void transfer(Instruction inst, BitSet live) {
+    if (JVM.isStore(inst.opcode))
+      live.clear(JVM.localIndex(inst));
+    else if (JVM.isLoad(inst.opcode))
+      live.set(JVM.localIndex(inst));
+  }
+
+  // true if inst pushes a value and has no other effect
+  private static boolean isPure(Instruction inst) {
+    int op = inst.opcode;
+    return JVM.isLoad(op) || op == JVM.DUP || op == JVM.GETSTATIC
+           || (JVM.ICONST_M1 <= op && op <= JVM.LDC);
+  }
+
+}
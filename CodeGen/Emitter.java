@@ -12,24 +12,81 @@
 
 package VC.CodeGen;
 
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Enumeration;
 import java.util.ListIterator;
 
 import VC.ASTs.*;
+import VC.Analyser.CountedLoop;
+import VC.Analyser.EffectAnalyser;
+import VC.Analyser.FuncEffects;
+import VC.Analyser.Inliner;
+import VC.Analyser.Unroller;
 import VC.ErrorReporter;
+import VC.IR.PassManager;
+import VC.Intrinsic;
+import VC.Prelude;
 import VC.StdEnvironment;
 
 public final class Emitter implements Visitor {
 
     private ErrorReporter errorReporter;
+    private Prelude prelude;
     private String inputFilename;
     private String classname;
     private String outputFilename;
-
-    public Emitter(String inputFilename, ErrorReporter reporter) {
+    private boolean jasmin;
+    private boolean rotatingLoops;
+    private boolean staticMethods;
+    private boolean tailCalls;
+    private boolean strengthReduction;
+    private PassManager optimiser;
+    private DeadCode deadCode;
+    private Peephole peephole;
+
+    // the function being emitted and the start of its body, after the
+    // loads of its promoted globals, to which its tail calls jump
+    private FuncDecl currentFunction;
+    private Label functionEntry;
+
+    // The calls to inline, and the ends of the inlined calls being
+    // emitted, innermost last, to which their returns jump
+    private Inliner inliner;
+    private ArrayList<Label> inlinedExits;
+
+    // The for loops to unroll
+    private Unroller unroller;
+
+    // The products of induction variables and constants in the loops
+    // being emitted, with the slots holding their values
+    private IdentityHashMap<BinaryExpr, Integer> reduced;
+
+    // The side effects of the functions if globals are promoted, and
+    // the globals promoted in the current function with their slots
+    private EffectAnalyser effects;
+    private LinkedHashMap<GlobalVarDecl, Integer> promoted;
+    private FuncEffects currentEffects;
+
+    // The static fields of the class and the code of its methods, one
+    // buffer per method. emit() appends to the current buffer.
+    private ArrayList<MemberRef> fields;
+    private ArrayList<CodeBuffer> methods;
+    private CodeBuffer code;
+
+    // The built-in functions called are the intrinsics of prelude, which
+    // the program has been checked with.
+
+    public Emitter(String inputFilename, ErrorReporter reporter, Prelude prelude) {
         this.inputFilename = inputFilename;
         errorReporter = reporter;
+        this.prelude = prelude;
 
         int i = inputFilename.lastIndexOf('.');
         if (i > 0)
@@ -37,13 +94,176 @@ public final class Emitter implements Visitor {
         else
             classname = inputFilename;
 
+        jasmin = false;
+        rotatingLoops = true;
+        staticMethods = false;
+        tailCalls = true;
+        strengthReduction = true;
+        reduced = new IdentityHashMap<BinaryExpr, Integer>();
+        effects = null;
+        promoted = new LinkedHashMap<GlobalVarDecl, Integer>();
+        inliner = null;
+        inlinedExits = new ArrayList<Label>();
+        unroller = null;
+        fields = new ArrayList<MemberRef>();
+        methods = new ArrayList<CodeBuffer>();
+        code = null;
+    }
+
+    // Also writes the Jasmin assembly code into classname + ".j", which is
+    // useful for debugging the code generator.
+
+    public void enableJasmin() {
+        jasmin = true;
+    }
+
+    // Emits every loop with its condition at the top, as in the source.
+
+    public void disableLoopRotation() {
+        rotatingLoops = false;
+    }
+
+    // Emits every VC function as a static method called by invokestatic,
+    // with its parameters from index 0, instead of an instance method
+    // called on the object vc$ allocated by main.
+
+    public void enableStaticMethods() {
+        staticMethods = true;
+    }
+
+    // Emits every self-recursive call in a return statement as a call,
+    // not as a jump to the start of the function.
+
+    public void disableTailCalls() {
+        tailCalls = false;
+    }
+
+    // Computes every product of an induction variable and a constant in
+    // a for loop, as in the source; see findInduction.
+
+    public void disableStrengthReduction() {
+        strengthReduction = false;
+    }
+
+    // Keeps the scalar globals used often by a function in local
+    // variables; see emitPromotedLoads.
+
+    public void enableGlobalPromotion(EffectAnalyser effects) {
+        this.effects = effects;
+    }
+
+    // Inlines the calls chosen by the given inliner.
+
+    public void enableInlining(Inliner inliner) {
+        this.inliner = inliner;
+    }
+
+    // Unrolls the for loops chosen by the given unroller; see
+    // emitUnrolledLoop.
+
+    public void enableUnrolling(Unroller unroller) {
+        this.unroller = unroller;
+    }
+
+    // Optimises every method but the initialisers through the IR with
+    // the passes of the given manager, before the other optimisers.
+
+    public void enableOptimisation(PassManager optimiser) {
+        this.optimiser = optimiser;
+    }
+
+    // Removes the dead code of every method with the given optimiser
+    // before the class file is assembled, and before the peephole
+    // optimisation.
+
+    public void enableDeadCodeElimination(DeadCode deadCode) {
+        this.deadCode = deadCode;
+    }
+
+    // Optimises the code of every method with the given peephole
+    // optimiser before the class file is assembled.
+
+    public void enablePeephole(Peephole peephole) {
+        this.peephole = peephole;
     }
 
+    // Writes the class file classname + ".class".
     // PRE: ast must be a Program node
 
     public final void gen(AST ast) {
+        byte[] classFile = assemble(ast);
+        if (jasmin)
+            dump(classname + ".j");
+        if (classFile == null)
+            return;
+        try {
+            FileOutputStream out = new FileOutputStream(classname + ".class");
+            out.write(classFile);
+            out.close();
+        } catch (IOException e) {
+            System.out.println("Error writing class file: " + e);
+            System.exit(1);
+        }
+    }
+
+    private void dump(String filename) {
+        try {
+            PrintWriter writer = new PrintWriter(new FileOutputStream(filename));
+            new JasminPrinter(writer).print(classname, "java/lang/Object", fields, methods);
+            writer.close();
+        } catch (FileNotFoundException e) {
+            System.out.println("Error opening object file: " + e);
+            System.exit(1);
+        }
+    }
+
+    // Returns the class file for the program, or null if a method is too
+    // big for the JVM (which is then reported as an error). Methods too
+    // big to be compiled by the JIT are first split into helpers.
+    // PRE: ast must be a Program node
+
+    public final byte[] assemble(AST ast) {
         ast.visit(this, null);
-        JVM.dump(classname + ".j");
+        if (optimiser != null)
+            for (CodeBuffer m : methods)
+                if (!m.name.startsWith("<")) {
+                    optimiser.optimise(classname, m);
+                    m.maxStack = Peephole.maxStack(m);
+                }
+        if (deadCode != null)
+            for (CodeBuffer m : methods)
+                deadCode.optimise(m);
+        if (peephole != null)
+            for (CodeBuffer m : methods)
+                peephole.optimise(m);
+        new MethodSplitter(classname, methods).split();
+        return new Assembler(errorReporter).assemble(classname, "java/lang/Object", fields, methods);
+    }
+
+    // The code of the methods, one buffer each, in the order in which
+    // they appear in the class file. The list may be modified (e.g., by
+    // an optimiser) before the class file is assembled.
+
+    public java.util.List<CodeBuffer> methods() {
+        return methods;
+    }
+
+    // The static fields of the class, in the order of their declarations.
+
+    public java.util.List<MemberRef> fields() {
+        return fields;
+    }
+
+    // Starts the buffer of a new method.
+    private void newMethod(int access, String name, String descriptor) {
+        code = new CodeBuffer(access, name, descriptor);
+        methods.add(code);
+    }
+
+    // Records the limits of the current method once its code is complete.
+    private void endMethod(Frame frame) {
+        code.maxLocals = frame.getMaximumLocals();
+        code.maxStack = frame.getMaximumStackSize();
     }
 
     // Programs
@@ -52,12 +272,6 @@ public final class Emitter implements Visitor {
          it to handle all array-related declarations and initialisations.
          **/
 
-        // Generates the default constructor initialiser
-        emit(JVM.CLASS, "public", classname);
-        emit(JVM.SUPER, "java/lang/Object");
-
-        emit("");
-
         // Three subpasses:
 
         // (1) Generate .field definition statements since
@@ -68,21 +282,17 @@ public final class Emitter implements Visitor {
             if (dlAST.D instanceof GlobalVarDecl) {
                 GlobalVarDecl vAST = (GlobalVarDecl) dlAST.D;
                 if (vAST.T.isArrayType()) {
-                    emit(JVM.STATIC_FIELD, vAST.I.spelling, vAST.T.toString());
+                    fields.add(new MemberRef(classname, vAST.I.spelling, vAST.T.toString()));
                 } else {
-                    emit(JVM.STATIC_FIELD, vAST.I.spelling, VCtoJavaType(vAST.T));
+                    fields.add(new MemberRef(classname, vAST.I.spelling, VCtoJavaType(vAST.T)));
                 }
             }
             list = dlAST.DL;
         }
 
-        emit("");
-
         // (2) Generate <clinit> for global variables (assumed to be static)
 
-        emit("; standard class static initializer ");
-        emit(JVM.METHOD_START, "static <clinit>()V");
-        emit("");
+        newMethod(JVM.ACC_STATIC, "<clinit>", "()V");
 
         // create a Frame for <clinit>
 
@@ -100,7 +310,7 @@ public final class Emitter implements Visitor {
                     int size = Integer.parseInt(((IntExpr) tAST.E).IL.spelling);
                     emitICONST(size);
                     frame.push();
-                    emit(JVM.NEWARRAY, tAST.T.toString());
+                    emitNEWARRAY(tAST.T);
                     if (!vAST.E.isEmptyExpr()) {
                         vAST.E.visit(this, frame);
                     }
@@ -125,26 +335,18 @@ public final class Emitter implements Visitor {
             list = dlAST.DL;
         }
 
-        emit("");
-        emit("; set limits used by this method");
-        emit(JVM.LIMIT, "locals", frame.getNewIndex());
-
-        emit(JVM.LIMIT, "stack", frame.getMaximumStackSize());
         emit(JVM.RETURN);
-        emit(JVM.METHOD_END, "method");
-
-        emit("");
+        endMethod(frame);
 
         // (3) Generate Java bytecode for the VC program
 
-        emit("; standard constructor initializer ");
-        emit(JVM.METHOD_START, "public <init>()V");
-        emit(JVM.LIMIT, "stack 1");
-        emit(JVM.LIMIT, "locals 1");
+        // standard constructor initializer
+        newMethod(JVM.ACC_PUBLIC, "<init>", "()V");
         emit(JVM.ALOAD_0);
-        emit(JVM.INVOKESPECIAL, "java/lang/Object/<init>()V");
+        emit(JVM.INVOKESPECIAL, new MemberRef("java/lang/Object", "<init>", "()V"));
         emit(JVM.RETURN);
-        emit(JVM.METHOD_END, "method");
+        code.maxStack = 1;
+        code.maxLocals = 1;
 
         return ast.FL.visit(this, o);
     }
@@ -160,67 +362,100 @@ public final class Emitter implements Visitor {
     public Object visitCompoundStmt(CompoundStmt ast, Object o) {
         Frame frame = (Frame) o;
 
-        String scopeStart = frame.getNewLabel();
-        String scopeEnd = frame.getNewLabel();
+        Label scopeStart = frame.getNewLabel();
+        Label scopeEnd = frame.getNewLabel();
+        // the variables of the block are released when it closes
+        int firstIndex = frame.getLocalVarIndex();
         frame.scopeStart.push(scopeStart);
         frame.scopeEnd.push(scopeEnd);
 
-        emit(scopeStart + ":");
-        if (ast.parent instanceof FuncDecl) {
+        placeLabel(scopeStart);
+        // the body of a function inlined into the current one is
+        // emitted as a plain block
+        if (ast.parent == currentFunction) {
             if (((FuncDecl) ast.parent).I.spelling.equals("main")) {
-                emit(JVM.VAR, "0 is argv [Ljava/lang/String; from " + (String) frame.scopeStart.peek() + " to " + (String) frame.scopeEnd.peek());
-                emit(JVM.VAR, "1 is vc$ L" + classname + "; from " + (String) frame.scopeStart.peek() + " to " + (String) frame.scopeEnd.peek());
+                emitVAR(0, "argv", "[Ljava/lang/String;", frame);
+            }
+            if (staticMethods) {
+                ((FuncDecl) ast.parent).PL.visit(this, o);
+            } else if (((FuncDecl) ast.parent).I.spelling.equals("main")) {
+                emitVAR(1, "vc$", "L" + classname + ";", frame);
                 // Generate code for the initialiser vc$ = new classname();
-                emit(JVM.NEW, classname);
+                code.append(Instruction.newObject(classname));
                 emit(JVM.DUP);
                 frame.push(2);
-                emit("invokenonvirtual", classname + "/<init>()V");
+                emit(JVM.INVOKESPECIAL, new MemberRef(classname, "<init>", "()V"));
                 frame.pop();
                 emit(JVM.ASTORE_1);
                 frame.pop();
             } else {
-                emit(JVM.VAR, "0 is this L" + classname + "; from " + (String) frame.scopeStart.peek() + " to " + (String) frame.scopeEnd.peek());
+                emitVAR(0, "this", "L" + classname + ";", frame);
                 ((FuncDecl) ast.parent).PL.visit(this, o);
             }
+            emitPromotedLoads(frame);
+            functionEntry = frame.getNewLabel();
+            placeLabel(functionEntry);
         }
         ast.DL.visit(this, o);
         ast.SL.visit(this, o);
-        emit(scopeEnd + ":");
+        placeLabel(scopeEnd);
 
         frame.scopeStart.pop();
         frame.scopeEnd.pop();
+        frame.releaseIndices(firstIndex);
         return null;
     }
 
     public Object visitIfStmt(IfStmt ast, Object o) {
         Frame frame = (Frame) o;
-        String elseLable = frame.getNewLabel();
-        String nextLable = frame.getNewLabel();
+        Label elseLable = frame.getNewLabel();
+        Label nextLable = frame.getNewLabel();
 
-        ast.E.visit(this, frame);
-        emit(JVM.IFEQ, elseLable);
-        frame.pop();
+        emitCondition(ast.E, elseLable, false, frame);
         ast.S1.visit(this, frame);
         emit(JVM.GOTO, nextLable);
-        emit(elseLable + ":");
+        placeLabel(elseLable);
         ast.S2.visit(this, frame);
-        emit(nextLable + ":");
+        placeLabel(nextLable);
         return null;
     }
 
+    // With loop rotation (the default), a loop is emitted as
+    //
+    //        goto cond        (omitted if the condition is true)
+    //  body: S
+    //  cont: E3               (for only)
+    //  cond: if E goto body
+    //  brk:
+    //
+    // so that each iteration executes one conditional branch only.
+    // Otherwise, the condition is tested at the top and an unconditional
+    // goto at the bottom jumps back to it.
+
     public Object visitWhileStmt(WhileStmt ast, Object o) {
         Frame frame = (Frame) o;
-        String continueLable = frame.getNewLabel();
-        String brkLable= frame.getNewLabel();
+        Label continueLable = frame.getNewLabel();
+        Label brkLable= frame.getNewLabel();
         frame.brkStack.push(brkLable);
         frame.conStack.push(continueLable);
-        emit(continueLable + ":");
-        ast.E.visit(this, frame);
-        emit(JVM.IFEQ, brkLable);
-        frame.pop();
+        if (rotatingLoops) {
+            Label bodyLable = frame.getNewLabel();
+            if (!isTrue(ast.E))
+                emit(JVM.GOTO, continueLable);
+            placeLabel(bodyLable);
+            ast.S.visit(this, frame);
+            placeLabel(continueLable);
+            emitCondition(ast.E, bodyLable, true, frame);
+            placeLabel(brkLable);
+            frame.brkStack.pop();
+            frame.conStack.pop();
+            return null;
+        }
+        placeLabel(continueLable);
+        emitCondition(ast.E, brkLable, false, frame);
         ast.S.visit(this, frame);
         emit(JVM.GOTO, continueLable);
-        emit(brkLable + ":");
+        placeLabel(brkLable);
         frame.brkStack.pop();
         frame.conStack.pop();
 
@@ -232,45 +467,73 @@ public final class Emitter implements Visitor {
          * since we need to keep the stk clean
          */
         Frame frame = (Frame) o;
-        String startLable = frame.getNewLabel();
-        String continueLable = frame.getNewLabel();
-        String brkLable= frame.getNewLabel();
+        Label startLable = frame.getNewLabel();
+        Label continueLable = frame.getNewLabel();
+        Label brkLable= frame.getNewLabel();
         frame.brkStack.push(brkLable);
         frame.conStack.push(continueLable);
         
+        int depth = frame.getCurStackSize();
         ast.E1.visit(this, frame);
-        if(frame.getCurStackSize() == 1){
-            emit(JVM.POP);
-            frame.pop();
+        emitDiscard(depth, frame);
+        Induction induction = findInduction(ast);
+        if (induction != null)
+            emitInductionStart(induction, frame);
+        int factor = unroller == null ? 0 : unroller.factor(ast);
+        if (factor > 0) {
+            emitUnrolledLoop(ast, factor, depth, induction, frame);
+            placeLabel(brkLable);
+            if (induction != null)
+                emitInductionEnd(induction, frame);
+            frame.brkStack.pop();
+            frame.conStack.pop();
+            return null;
+        }
+        if (rotatingLoops) {
+            Label bodyLable = frame.getNewLabel();
+            if (!ast.E2.isEmptyExpr() && !isTrue(ast.E2))
+                emit(JVM.GOTO, startLable);
+            placeLabel(bodyLable);
+            ast.S.visit(this, frame);
+            placeLabel(continueLable);
+            ast.E3.visit(this, frame);
+            emitDiscard(depth, frame);
+            if (induction != null)
+                emitInductionStep(induction, frame);
+            placeLabel(startLable);
+            if (ast.E2.isEmptyExpr())
+                emit(JVM.GOTO, bodyLable);
+            else
+                emitCondition(ast.E2, bodyLable, true, frame);
+            placeLabel(brkLable);
+            if (induction != null)
+                emitInductionEnd(induction, frame);
+            frame.brkStack.pop();
+            frame.conStack.pop();
+            return null;
         }
         // jmp to start of the loop
         emit(JVM.GOTO, startLable);
 
         // set continue point, so we can do E3 every time
-        emit(continueLable + ":");
+        placeLabel(continueLable);
         ast.E3.visit(this, frame);
-        if(frame.getCurStackSize() == 1){
-            emit(JVM.POP);
-            frame.pop();
-        }
+        emitDiscard(depth, frame);
+        if (induction != null)
+            emitInductionStep(induction, frame);
 
         // start point
-        emit(startLable + ":");
-        if(ast.E2.isEmptyExpr()){
-            // always true
-            emitICONST(1);
-            frame.push();
-        }
-        else{
-            ast.E2.visit(this, frame);
+        placeLabel(startLable);
+        // an empty condition is always true
+        if(!ast.E2.isEmptyExpr()){
+            emitCondition(ast.E2, brkLable, false, frame);
         }
-        // there should be at least one oprand onthe stk
-        emit(JVM.IFEQ, brkLable);
-        frame.pop();
 
         ast.S.visit(this, frame);
         emit(JVM.GOTO, continueLable);
-        emit(brkLable + ":");
+        placeLabel(brkLable);
+        if (induction != null)
+            emitInductionEnd(induction, frame);
         frame.brkStack.pop();
         frame.conStack.pop();
 
@@ -299,13 +562,26 @@ public final class Emitter implements Visitor {
   must be translated into a RETURN rather than IRETURN instruction.
 */
 
+        // a return of an inlined function jumps to the end of its call
+        if (!inlinedExits.isEmpty()) {
+            ast.E.visit(this, frame);
+            emit(JVM.GOTO, inlinedExits.get(inlinedExits.size() - 1));
+            frame.pop();
+            return null;
+        }
+
         if (frame.isMain()) {
             emit(JVM.RETURN);
             return null;
         }
 
 // Your other code goes here
+        if (isSelfTailCall(ast.E)) {
+            emitTailCall((CallExpr) ast.E, frame);
+            return null;
+        }
         ast.E.visit(this, frame);
+        emitWriteBacks(null, frame);
         if(ast.E.type.isIntType()){
             emit(JVM.IRETURN);
             frame.pop();
@@ -325,19 +601,21 @@ public final class Emitter implements Visitor {
 
     public Object visitExprStmt(ExprStmt ast, Object o) {
         Frame frame = (Frame) o;
+        // an inlined function body may run with values of its caller
+        // on the stack
+        int depth = frame.getCurStackSize();
         ast.E.visit(this, frame);
-        int stksize = frame.getCurStackSize();
-        if(stksize > 1){
-            System.out.println("Something wrong, stmt stk should be at most 1");
-        }
-        else if (stksize == 1){
+        emitDiscard(depth, frame);
+        return null;
+    }
+
+    // pops the value, if any, that an expression evaluated for its
+    // effect left above the given depth of the stack
+    private void emitDiscard(int depth, Frame frame) {
+        if (frame.getCurStackSize() > depth) {
             emit(JVM.POP);
             frame.pop();
         }
-        else{
-            // do nothing
-        }
-        return null;
     }
 
     public Object visitEmptyStmtList(EmptyStmtList ast, Object o) {
@@ -358,59 +636,35 @@ public final class Emitter implements Visitor {
         Frame frame = (Frame) o;
         String fname = ast.I.spelling;
 
-        if (fname.equals("getInt")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System.getInt()I");
-            frame.push();
-        } else if (fname.equals("putInt")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System.putInt(I)V");
-            frame.pop();
-        } else if (fname.equals("putIntLn")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/putIntLn(I)V");
-            frame.pop();
-        } else if (fname.equals("getFloat")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/getFloat()F");
-            frame.push();
-        } else if (fname.equals("putFloat")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/putFloat(F)V");
-            frame.pop();
-        } else if (fname.equals("putFloatLn")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/putFloatLn(F)V");
-            frame.pop();
-        } else if (fname.equals("putBool")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/putBool(Z)V");
-            frame.pop();
-        } else if (fname.equals("putBoolLn")) {
+        Intrinsic intrinsic = prelude.intrinsicOf((Decl) ast.I.decl);
+        if (intrinsic != null) {
             ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/putBoolLn(Z)V");
-            frame.pop();
-        } else if (fname.equals("putString")) {
-            ast.AL.visit(this, o);
-            emit(JVM.INVOKESTATIC, "VC/lang/System/putString(Ljava/lang/String;)V");
-            frame.pop();
-        } else if (fname.equals("putStringLn")) {
-            ast.AL.visit(this, o);
-            emit(JVM.INVOKESTATIC, "VC/lang/System/putStringLn(Ljava/lang/String;)V");
-            frame.pop();
-        } else if (fname.equals("putLn")) {
-            ast.AL.visit(this, o); // push args (if any) into the op stack
-            emit("invokestatic VC/lang/System/putLn()V");
+            emit(JVM.INVOKESTATIC, MemberRef.method(intrinsic.target));
+            List fpl = intrinsic.decl.PL;
+            while (!fpl.isEmpty()) {
+                frame.pop();
+                fpl = ((ParaList) fpl).PL;
+            }
+            if (!intrinsic.decl.T.isVoidType())
+                frame.push();
         } else { // programmer-defined functions
 
             FuncDecl fAST = (FuncDecl) ast.I.decl;
 
-            // all functions except main are assumed to be instance methods
-            if (frame.isMain())
-                emit("aload_1"); // vc.funcname(...)
-            else
-                emit("aload_0"); // this.funcname(...)
-            frame.push();
+            if (inliner != null && inliner.shouldInline(currentFunction, fAST)) {
+                emitInlinedCall(ast, fAST, frame);
+                return null;
+            }
+
+            // all functions except main are instance methods unless
+            // static methods are enabled
+            if (!staticMethods) {
+                if (frame.isMain())
+                    emit(JVM.ALOAD_1); // vc.funcname(...)
+                else
+                    emit(JVM.ALOAD_0); // this.funcname(...)
+                frame.push();
+            }
 
             ast.AL.visit(this, o);
 
@@ -445,11 +699,22 @@ public final class Emitter implements Visitor {
                 fpl = ((ParaList) fpl).PL;
             }
 
-            emit("invokevirtual", classname + "/" + fname + "(" + argsTypes + ")" + retType);
-            frame.pop(size + 1);
+            MemberRef method = new MemberRef(classname, fname, "(" + argsTypes + ")" + retType);
+            FuncEffects callee = effects != null ? effects.effectsOf(fAST) : null;
+            if (callee != null)
+                emitWriteBacks(callee, frame);
+            if (staticMethods) {
+                emit(JVM.INVOKESTATIC, method);
+                frame.pop(size);
+            } else {
+                emit(JVM.INVOKEVIRTUAL, method);
+                frame.pop(size + 1);
+            }
 
             if (!retType.equals("V"))
                 frame.push();
+            if (callee != null)
+                emitReloads(callee, frame);
         }
         return null;
     }
@@ -481,14 +746,12 @@ public final class Emitter implements Visitor {
     public Object visitUnaryExpr(UnaryExpr ast, Object o) {
         Type tAST;
         Frame frame = (Frame) o;
+        if (ast.O.spelling.equals("i!")) {
+            emitBooleanValue(ast, frame);
+            return null;
+        }
         ast.E.visit(this, frame);
         switch (ast.O.spelling) {
-            case "i!":
-                emit(JVM.ICONST_0);
-                frame.push();
-                emitIF_ICMPCOND("i==", frame);
-                break;
-            
             case "i+":
                 break;
 
@@ -518,8 +781,13 @@ public final class Emitter implements Visitor {
 
     public Object visitBinaryExpr(BinaryExpr ast, Object o) {
         Frame frame = (Frame) o;
-        if(ast.O.spelling.equals("i||") || ast.O.spelling.equals("i&&")){
-            emitRELATION(ast.O.spelling, ast.E1, ast.E2, frame);
+        Integer slot = reduced.get(ast);
+        if (slot != null) {
+            emitLocal(JVM.ILOAD, slot);
+            frame.push();
+        }
+        else if(isCondition(ast.O.spelling)){
+            emitBooleanValue(ast, frame);
         }
         else{
             ast.E1.visit(this, o);
@@ -566,24 +834,7 @@ public final class Emitter implements Visitor {
                     emit(JVM.FDIV);
                     frame.pop();
                     break;
-                
-                case "i!=":
-                case "i==":
-                case "i<":
-                case "i<=":
-                case "i>":
-                case "i>=":
-                    emitIF_ICMPCOND(ast.O.spelling, frame);
-                    break;
 
-                case "f!=":
-                case "f==":
-                case "f<":
-                case "f<=":
-                case "f>":
-                case "f>=":
-                    emitFCMP(ast.O.spelling, frame);
-                    break;
 
                 default:
                     System.out.println("Should Not Get here, line 444");
@@ -593,25 +844,135 @@ public final class Emitter implements Visitor {
         return null;
     }
 
+    // An initialiser with at least PACKED_MIN constant elements has
+    // them packed into strings, which VC.lang.Tables unpacks into the
+    // array; only its other elements are stored one by one. Elements
+    // known to be 0, 0.0 or false are not stored at all, since the array
+    // is created cleared.
+
+    private static final int PACKED_MIN = 16;
+
+    // the length of a packed string, short of the 65535 bytes allowed
+    // for a string constant
+    private static final int PACKED_CHARS = 60000;
+
     public Object visitInitExpr(InitExpr ast, Object o) {
         // Finish InitExpr here so we won't bother pass type all around
-        int index = 0;
         Frame frame = (Frame) o;
         Type tAST = ((ArrayType) ((Decl) ast.parent).T).T;
-        List list = ast.IL;
-        while(!list.isEmptyExprList()){
+        ArrayList<Expr> elements = new ArrayList<Expr>();
+        for (List list = ast.IL; !list.isEmptyExprList(); list = ((ExprList) list).EL)
+            elements.add(((ExprList) list).E);
+
+        Number[] values = new Number[elements.size()];
+        int constants = 0;
+        for (int index = 0; index < values.length; index++)
+            if ((values[index] = constant(elements.get(index))) != null)
+                constants++;
+        boolean packed = constants >= PACKED_MIN;
+        if (packed)
+            emitPacked(values, tAST, frame);
+
+        for (int index = 0; index < values.length; index++) {
+            Number value = values[index];
+            if (value != null && (packed || isZero(value)))
+                continue;
             emit(JVM.DUP);
             frame.push();
             emitICONST(index);
             frame.push();
-            ((ExprList) list).E.visit(this, frame);
+            elements.get(index).visit(this, frame);
             emitI_F_BASTORE(tAST, frame);
-            list = ((ExprList) list).EL;
-            index++;
         }
         return null;
     }
 
+    // Stores the constants of values into the array on the stack, as
+    // packed strings of at most PACKED_CHARS characters. The elements
+    // that are not constant are packed as 0, and those after the last
+    // constant other than 0 are left out.
+
+    private void emitPacked(Number[] values, Type tAST, Frame frame) {
+        int end = values.length;
+        while (end > 0 && (values[end - 1] == null || isZero(values[end - 1])))
+            end--;
+        String array = "[" + VCtoJavaType(tAST);
+        MemberRef unpack = MemberRef.method("VC/lang/Tables/unpack(" + array + "ILjava/lang/String;)V");
+
+        StringBuffer data = new StringBuffer();
+        int start = 0;
+        for (int index = 0; index <= end; index++) {
+            if (index == end || data.length() >= PACKED_CHARS) {
+                emit(JVM.DUP);
+                frame.push();
+                emitICONST(start);
+                frame.push();
+                emitLDC(data.toString());
+                frame.push();
+                emit(JVM.INVOKESTATIC, unpack);
+                frame.pop(3);
+                data = new StringBuffer();
+                start = index;
+            }
+            if (index < end)
+                pack(values[index], tAST, data);
+        }
+    }
+
+    // Appends value, an element of an array of type tAST, to data in the
+    // form unpacked by VC.lang.Tables.
+    private static void pack(Number value, Type tAST, StringBuffer data) {
+        int bits;
+        if (value == null)
+            bits = 0;
+        else if (tAST.isFloatType())
+            bits = Integer.reverse(Float.floatToIntBits(value.floatValue()));
+        else
+            bits = (value.intValue() << 1) ^ (value.intValue() >> 31);
+        long u = bits & 0xffffffffL;
+        while (u >= 63) {
+            data.append((char) (64 + u % 63));
+            u /= 63;
+        }
+        data.append((char) (1 + u));
+    }
+
+    // the value of e if it is a constant (1 or 0 for a boolean), or null
+    private static Number constant(Expr e) {
+        if (e instanceof IntExpr)
+            return Integer.valueOf(((IntExpr) e).IL.spelling);
+        if (e instanceof FloatExpr)
+            return Float.valueOf(((FloatExpr) e).FL.spelling);
+        if (e instanceof BooleanExpr)
+            return ((BooleanExpr) e).BL.spelling.equals("true") ? 1 : 0;
+        if (!(e instanceof UnaryExpr))
+            return null;
+        Number value = constant(((UnaryExpr) e).E);
+        if (value == null)
+            return null;
+        switch (((UnaryExpr) e).O.spelling) {
+            case "i+": case "f+":
+                return value;
+            case "i-":
+                return -value.intValue();
+            case "f-":
+                return -value.floatValue();
+            case "i!":
+                return 1 - value.intValue();
+            case "i2f":
+                return (float) value.intValue();
+            default:
+                return null;
+        }
+    }
+
+    // true for 0, 0.0 (but not -0.0) and false
+    private static boolean isZero(Number value) {
+        if (value instanceof Float)
+            return Float.floatToIntBits(value.floatValue()) == 0;
+        return value.intValue() == 0;
+    }
+
     public Object visitExprList(ExprList ast, Object o) {
         // never used
         return null;
@@ -643,15 +1004,34 @@ public final class Emitter implements Visitor {
 
     public Object visitAssignExpr(AssignExpr ast, Object o) {
         Frame frame = (Frame) o;
+        // the value of the assignment is left on the stack only if used,
+        // as it is by the condition of a for loop but not by the others
+        boolean valueUsed = !(ast.parent instanceof ExprStmt
+                              || (ast.parent instanceof ForStmt
+                                  && (ast == ((ForStmt) ast.parent).E1 || ast == ((ForStmt) ast.parent).E3)));
         if(ast.E1 instanceof ArrayExpr){
             ast.E1.visit(this, frame);
             ast.E2.visit(this, frame);
+            if (valueUsed) {
+                emit(JVM.DUP_X2);
+                frame.push();
+            }
             emitI_F_BASTORE(ast.E2.type, frame);
         }
         else{
             Ident id = ((SimpleVar) ((VarExpr) ast.E1).V).I;
             ast.E2.visit(this, frame);
-            if(ast.E2.type.isFloatType()){
+            if (valueUsed) {
+                emit(JVM.DUP);
+                frame.push();
+            }
+            if (promoted.containsKey(id.decl)) {
+                emitLocal(ast.E2.type.isFloatType() ? JVM.FSTORE : JVM.ISTORE, promoted.get(id.decl));
+            }
+            else if (id.decl instanceof GlobalVarDecl) {
+                emitPUTSTATIC(VCtoJavaType(((Decl) id.decl).T), id.spelling);
+            }
+            else if(ast.E2.type.isFloatType()){
                 emitFSTORE(id);
             }
             else if(ast.E2.type.isBooleanType()){
@@ -695,21 +1075,25 @@ public final class Emitter implements Visitor {
             // Assume that main has one String parameter and reserve 0 for it
             frame.getNewIndex();
 
-            emit(JVM.METHOD_START, "public static main([Ljava/lang/String;)V");
+            newMethod(JVM.ACC_PUBLIC | JVM.ACC_STATIC, "main", "([Ljava/lang/String;)V");
             // Assume implicitly that
             //      classname vc$;
             // appears before all local variable declarations.
             // (1) Reserve 1 for this object reference.
+            // Static methods need no such object.
 
-            frame.getNewIndex();
+            if (!staticMethods)
+                frame.getNewIndex();
 
         } else {
 
             frame = new Frame(false);
 
             // all other programmer-defined functions are treated as if
-            // they were instance methods
-            frame.getNewIndex(); // reserve 0 for "this"
+            // they were instance methods, unless static methods are
+            // enabled
+            if (!staticMethods)
+                frame.getNewIndex(); // reserve 0 for "this"
 
             String retType = VCtoJavaType(ast.T);
 
@@ -731,11 +1115,14 @@ public final class Emitter implements Visitor {
                 fpl = ((ParaList) fpl).PL;
             }
 
-            emit(JVM.METHOD_START, ast.I.spelling + "(" + argsTypes + ")" + retType);
+            newMethod(staticMethods ? JVM.ACC_STATIC : 0, ast.I.spelling, "(" + argsTypes + ")" + retType);
         // set all parameter variables
         }
 
 
+        currentFunction = ast;
+        currentEffects = effects != null ? effects.effectsOf(ast) : null;
+        promoted.clear();
         ast.S.visit(this, frame);
 
         // JVM requires an explicit return in every method.
@@ -744,9 +1131,8 @@ public final class Emitter implements Visitor {
         // a return. Therefore, we add one at the end just to be sure.
 
         if (ast.T.equals(StdEnvironment.voidType)) {
-            emit("");
-            emit("; return may not be present in a VC function returning void");
-            emit("; The following return inserted by the VC compiler");
+            // return may not be present in a VC function returning void
+            emitWriteBacks(null, frame);
             emit(JVM.RETURN);
         } else if (ast.I.spelling.equals("main")) {
             // In case VC's main does not have a return itself
@@ -754,16 +1140,284 @@ public final class Emitter implements Visitor {
         } else
             emit(JVM.NOP);
 
-        emit("");
-        emit("; set limits used by this method");
-        emit(JVM.LIMIT, "locals", frame.getNewIndex());
-
-        emit(JVM.LIMIT, "stack", frame.getMaximumStackSize());
-        emit(".end method");
+        endMethod(frame);
+        promoted.clear();
 
         return null;
     }
 
+    // Strength reduction
+    //
+    // In a CountedLoop
+    //
+    //   for (E1; E2; i = i + c) S
+    //
+    // every product i * k of i and a constant k in E2 and S is
+    // kept in a fresh local variable t, set to i * k after E1 and
+    // increased by c * k after each step. The products are then loads of
+    // t. As int arithmetic wraps around, t always equals i * k.
+
+    private static final class Induction {
+        Decl var;
+        int step;
+        ArrayList<BinaryExpr> products = new ArrayList<BinaryExpr>();
+        // the slot of t for each constant k, and the scope of the slots
+        LinkedHashMap<Integer, Integer> slots = new LinkedHashMap<Integer, Integer>();
+        int firstIndex;
+        Label start;
+    }
+
+    private Induction findInduction(ForStmt ast) {
+        CountedLoop loop = strengthReduction ? CountedLoop.of(ast) : null;
+        if (loop == null)
+            return null;
+        final Induction induction = new Induction();
+        induction.var = loop.var;
+        induction.step = (int) loop.step;
+
+        Traverser finder = new Traverser() {
+            public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+                if (ast.O.spelling.equals("i*") && !reduced.containsKey(ast)
+                        && ((CountedLoop.intLocal(ast.E1) == induction.var && constant(ast.E2) != null)
+                            || (CountedLoop.intLocal(ast.E2) == induction.var && constant(ast.E1) != null)))
+                    induction.products.add(ast);
+                return super.visitBinaryExpr(ast, o);
+            }
+        };
+        ast.E2.visit(finder, null);
+        ast.S.visit(finder, null);
+        return induction.products.isEmpty() ? null : induction;
+    }
+
+    // t = i * k for every k
+    private void emitInductionStart(Induction induction, Frame frame) {
+        induction.firstIndex = frame.getLocalVarIndex();
+        induction.start = frame.getNewLabel();
+        for (BinaryExpr product : induction.products) {
+            int k = constant(CountedLoop.intLocal(product.E1) == induction.var ? product.E2 : product.E1).intValue();
+            Integer slot = induction.slots.get(k);
+            if (slot == null) {
+                slot = frame.getNewIndex();
+                induction.slots.put(k, slot);
+                emitLocal(JVM.ILOAD, induction.var.index);
+                emitICONST(k);
+                frame.push(2);
+                emit(JVM.IMUL);
+                emitLocal(JVM.ISTORE, slot);
+                frame.pop(2);
+            }
+            reduced.put(product, slot);
+        }
+        placeLabel(induction.start);
+    }
+
+    // t = t + c * k for every k
+    private void emitInductionStep(Induction induction, Frame frame) {
+        for (int k : induction.slots.keySet()) {
+            emitLocal(JVM.ILOAD, induction.slots.get(k));
+            emitICONST(induction.step * k);
+            frame.push(2);
+            emit(JVM.IADD);
+            emitLocal(JVM.ISTORE, induction.slots.get(k));
+            frame.pop(2);
+        }
+    }
+
+    private void emitInductionEnd(Induction induction, Frame frame) {
+        Label end = frame.getNewLabel();
+        placeLabel(end);
+        for (int k : induction.slots.keySet())
+            code.addVar(new CodeBuffer.LocalVar(induction.slots.get(k),
+                                                induction.var.I.spelling + "$" + (k < 0 ? "m" + -k : "" + k),
+                                                "I", induction.start, end));
+        for (BinaryExpr product : induction.products)
+            reduced.remove(product);
+        frame.releaseIndices(induction.firstIndex);
+    }
+
+    // Tail calls
+    //
+    // return f(e1, ..., en) in f itself is emitted as the evaluation of
+    // e1, ..., en, their stores into the parameters and a jump back to
+    // the start of f, so that a tail-recursive function runs in constant
+    // stack space. The promoted globals need not be stored back, since
+    // they stay in their local variables.
+
+    private boolean isSelfTailCall(Expr e) {
+        return tailCalls && e instanceof CallExpr && ((CallExpr) e).I.decl == currentFunction;
+    }
+
+    private void emitTailCall(CallExpr ast, Frame frame) {
+        ast.AL.visit(this, frame);
+        ArrayList<ParaDecl> params = new ArrayList<ParaDecl>();
+        for (List fpl = currentFunction.PL; !fpl.isEmpty(); fpl = ((ParaList) fpl).PL)
+            params.add(((ParaList) fpl).P);
+        // the arguments are stored from the top of the stack down
+        for (int k = params.size() - 1; k >= 0; k--) {
+            ParaDecl decl = params.get(k);
+            if (decl.T.isArrayType())
+                emitLocal(JVM.ASTORE, decl.index);
+            else if (decl.T.isFloatType())
+                emitLocal(JVM.FSTORE, decl.index);
+            else
+                emitLocal(JVM.ISTORE, decl.index);
+            frame.pop();
+        }
+        emit(JVM.GOTO, functionEntry);
+    }
+
+    // Unrolling
+    //
+    // A for loop unrolled factor times (see Unroller) is emitted with
+    // factor copies of S; E3 per test of its condition. The first
+    // trips % factor iterations come before the loop, so that the
+    // condition, false after exactly trips iterations, need only be
+    // tested every factor iterations, and not at all if the loop is
+    // fully unrolled. Each copy of S continues at its own E3.
+
+    private void emitUnrolledLoop(ForStmt ast, int factor, int depth, Induction induction, Frame frame) {
+        int trips = unroller.trips(ast);
+        if (factor == trips) {
+            emitIterations(ast, trips, depth, induction, frame);
+            return;
+        }
+        emitIterations(ast, trips % factor, depth, induction, frame);
+        // at least 2 * factor iterations are left, so the rotated loop
+        // needs no jump to its condition
+        Label bodyLable = frame.getNewLabel();
+        placeLabel(bodyLable);
+        if (rotatingLoops) {
+            emitIterations(ast, factor, depth, induction, frame);
+            emitCondition(ast.E2, bodyLable, true, frame);
+            return;
+        }
+        emitCondition(ast.E2, frame.brkStack.peek(), false, frame);
+        emitIterations(ast, factor, depth, induction, frame);
+        emit(JVM.GOTO, bodyLable);
+    }
+
+    private void emitIterations(ForStmt ast, int n, int depth, Induction induction, Frame frame) {
+        for (int k = 0; k < n; k++) {
+            Label continueLable = frame.getNewLabel();
+            frame.conStack.push(continueLable);
+            ast.S.visit(this, frame);
+            frame.conStack.pop();
+            placeLabel(continueLable);
+            ast.E3.visit(this, frame);
+            emitDiscard(depth, frame);
+            if (induction != null)
+                emitInductionStep(induction, frame);
+        }
+    }
+
+    // Inlining
+    //
+    // An inlined call evaluates its arguments and stores them into fresh
+    // local variables, which stand for the parameters of the callee while
+    // its body is emitted in place of the call. The locals of the body
+    // are allocated above them. A return leaves its value on the stack,
+    // above any values of the caller, and jumps to the end of the call.
+    // An array argument is passed by reference, as in a call.
+
+    private void emitInlinedCall(CallExpr ast, FuncDecl fAST, Frame frame) {
+        ast.AL.visit(this, frame);
+
+        int firstIndex = frame.getLocalVarIndex();
+        ArrayList<ParaDecl> params = new ArrayList<ParaDecl>();
+        for (List fpl = fAST.PL; !fpl.isEmpty(); fpl = ((ParaList) fpl).PL)
+            params.add(((ParaList) fpl).P);
+        int[] saved = new int[params.size()];
+        for (int k = 0; k < params.size(); k++) {
+            saved[k] = params.get(k).index;
+            params.get(k).index = frame.getNewIndex();
+        }
+        for (int k = params.size() - 1; k >= 0; k--) {
+            ParaDecl decl = params.get(k);
+            if (decl.T.isArrayType())
+                emitLocal(JVM.ASTORE, decl.index);
+            else if (decl.T.isFloatType())
+                emitLocal(JVM.FSTORE, decl.index);
+            else
+                emitLocal(JVM.ISTORE, decl.index);
+            frame.pop();
+        }
+
+        Label start = frame.getNewLabel();
+        Label exit = frame.getNewLabel();
+        placeLabel(start);
+        for (ParaDecl decl : params) {
+            String T = decl.T.isArrayType() ? "[" + VCtoJavaType(((ArrayType) decl.T).T) : VCtoJavaType(decl.T);
+            code.addVar(new CodeBuffer.LocalVar(decl.index, decl.I.spelling, T, start, exit));
+        }
+        inlinedExits.add(exit);
+        fAST.S.visit(this, frame);
+        inlinedExits.remove(inlinedExits.size() - 1);
+        placeLabel(exit);
+        if (!fAST.T.isVoidType())
+            frame.push();
+
+        for (int k = 0; k < params.size(); k++)
+            params.get(k).index = saved[k];
+        frame.releaseIndices(firstIndex);
+    }
+
+    // Global promotion
+    //
+    // A scalar global used at least PROMOTION_MIN times by a function
+    // (see FuncEffects.accesses) is kept in a local variable of the
+    // function. It is loaded on entry, and it is stored back, if the
+    // function assigns it, before a call to a function that may use it
+    // and at a return. It is loaded again after a call that may assign
+    // it. The built-in functions cannot see the globals, and those of
+    // main need not be stored back when it returns, since the program
+    // then ends.
+
+    private static final int PROMOTION_MIN = 3;
+
+    // allocates the slots of the globals promoted in the current
+    // function, at its start, and loads them
+    private void emitPromotedLoads(Frame frame) {
+        if (currentEffects == null)
+            return;
+        for (GlobalVarDecl g : currentEffects.accesses.keySet())
+            if (currentEffects.accesses.get(g) >= PROMOTION_MIN) {
+                int index = frame.getNewIndex();
+                promoted.put(g, index);
+                emitVAR(index, g.I.spelling, VCtoJavaType(g.T), frame);
+                emitGETSTATIC(VCtoJavaType(g.T), g.I.spelling);
+                frame.push();
+                emitLocal(g.T.isFloatType() ? JVM.FSTORE : JVM.ISTORE, index);
+                frame.pop();
+            }
+    }
+
+    // Stores back the promoted globals that the current function, or a
+    // function inlined into it, may assign and that callee, or any function if callee is null, may use, except in
+    // main at a return.
+    private void emitWriteBacks(FuncEffects callee, Frame frame) {
+        if (callee == null && frame.isMain())
+            return;
+        for (GlobalVarDecl g : promoted.keySet())
+            if (currentEffects.writes.contains(g)
+                    && (callee == null || callee.reads.contains(g) || callee.writes.contains(g))) {
+                emitLocal(g.T.isFloatType() ? JVM.FLOAD : JVM.ILOAD, promoted.get(g));
+                frame.push();
+                emitPUTSTATIC(VCtoJavaType(g.T), g.I.spelling);
+                frame.pop();
+            }
+    }
+
+    // Loads again the promoted globals that callee may assign.
+    private void emitReloads(FuncEffects callee, Frame frame) {
+        for (GlobalVarDecl g : promoted.keySet())
+            if (callee.writes.contains(g)) {
+                emitGETSTATIC(VCtoJavaType(g.T), g.I.spelling);
+                frame.push();
+                emitLocal(g.T.isFloatType() ? JVM.FSTORE : JVM.ISTORE, promoted.get(g));
+                frame.pop();
+            }
+    }
+
     public Object visitGlobalVarDecl(GlobalVarDecl ast, Object o) {
         // nothing to be done
         return null;
@@ -780,48 +1434,36 @@ public final class Emitter implements Visitor {
             T = VCtoJavaType(ast.T);
         }
 
-        emit(JVM.VAR + " " + ast.index + " is " + ast.I.spelling + " " + T + " from " + (String) frame.scopeStart.peek() + " to " + (String) frame.scopeEnd.peek());
+        emitVAR(ast.index, ast.I.spelling, T, frame);
 
         if(ast.T.isArrayType()){
             ArrayType tAST = (ArrayType) ast.T;
             int size = Integer.parseInt(((IntExpr) tAST.E).IL.spelling);
             emitICONST(size);
             frame.push();
-            emit(JVM.NEWARRAY, tAST.T.toString());
+            emitNEWARRAY(tAST.T);
         }
         if (!ast.E.isEmptyExpr()) {
             ast.E.visit(this, o);
             if(ast.T.isArrayType()){
-                if (ast.index >= 0 && ast.index <= 3)
-                    emit(JVM.ASTORE + "_" + ast.index);
-                else
-                    emit(JVM.ASTORE, ast.index);
+                emitLocal(JVM.ASTORE, ast.index);
                 frame.pop();
             }
             else if (ast.T.equals(StdEnvironment.floatType)) {
                 // cannot call emitFSTORE(ast.I) since this I is not an
                 // applied occurrence
-                if (ast.index >= 0 && ast.index <= 3)
-                    emit(JVM.FSTORE + "_" + ast.index);
-                else
-                    emit(JVM.FSTORE, ast.index);
+                emitLocal(JVM.FSTORE, ast.index);
                 frame.pop();
             } else {
                 // cannot call emitISTORE(ast.I) since this I is not an
                 // applied occurrence
-                if (ast.index >= 0 && ast.index <= 3)
-                    emit(JVM.ISTORE + "_" + ast.index);
-                else
-                    emit(JVM.ISTORE, ast.index);
+                emitLocal(JVM.ISTORE, ast.index);
                 frame.pop();
             }
         }
         else{
             if(ast.T.isArrayType()){
-                if (ast.index >= 0 && ast.index <= 3)
-                    emit(JVM.ASTORE + "_" + ast.index);
-                else
-                    emit(JVM.ASTORE, ast.index);
+                emitLocal(JVM.ASTORE, ast.index);
                 frame.pop();
             }
         }
@@ -848,7 +1490,7 @@ public final class Emitter implements Visitor {
             T = VCtoJavaType(ast.T);
         }
 
-        emit(JVM.VAR + " " + ast.index + " is " + ast.I.spelling + " " + T + " from " + (String) frame.scopeStart.peek() + " to " + (String) frame.scopeEnd.peek());
+        emitVAR(ast.index, ast.I.spelling, T, frame);
         return null;
     }
 
@@ -933,7 +1575,7 @@ public final class Emitter implements Visitor {
 
     public Object visitStringLiteral(StringLiteral ast, Object o) {
         Frame frame = (Frame) o;
-        emit(JVM.LDC, "\"" + ast.spelling + "\"");
+        emitLDC(ast.spelling);
         frame.push();
         return null;
     }
@@ -948,7 +1590,11 @@ public final class Emitter implements Visitor {
         Frame frame = (Frame) o;
         Ident id = ast.I;
         Decl decl = (Decl) id.decl;
-        if(decl instanceof GlobalVarDecl){
+        if (promoted.containsKey(decl)) {
+            emitLocal(decl.T.isFloatType() ? JVM.FLOAD : JVM.ILOAD, promoted.get(decl));
+            frame.push();
+        }
+        else if(decl instanceof GlobalVarDecl){
             String T;
             if(decl.T.isArrayType()){
                 T = decl.T.toString();
@@ -984,116 +1630,175 @@ public final class Emitter implements Visitor {
 
     // Auxiliary methods for byte code generation
 
-    // The following method appends an instruction directly into the JVM
-    // Code Store. It is called by all other overloaded emit methods.
+    // The following method appends an instruction to the code of the
+    // current method. It is called by all other overloaded emit methods.
+
+    private void emit(Instruction inst) {
+        code.append(inst);
+    }
+
+    private void emit(int opcode) {
+        emit(new Instruction(opcode));
+    }
 
-    private void emit(String s) {
-        JVM.append(new Instruction(s));
+    private void emit(int opcode, int operand) {
+        emit(new Instruction(opcode, operand));
     }
 
-    private void emit(String s1, String s2) {
-        emit(s1 + " " + s2);
+    private void emit(int opcode, Label label) {
+        emit(new Instruction(opcode, label));
     }
 
-    private void emit(String s1, int i) {
-        emit(s1 + " " + i);
+    private void emit(int opcode, MemberRef member) {
+        emit(new Instruction(opcode, member));
     }
 
-    private void emit(String s1, float f) {
-        emit(s1 + " " + f);
+    private void emitLDC(Object constant) {
+        emit(Instruction.ldc(constant));
     }
 
-    private void emit(String s1, String s2, int i) {
-        emit(s1 + " " + s2 + " " + i);
+    private void placeLabel(Label label) {
+        emit(JVM.LABEL, label);
     }
 
-    private void emit(String s1, String s2, String s3) {
-        emit(s1 + " " + s2 + " " + s3);
+    // declares a local variable in the innermost scope
+    private void emitVAR(int index, String name, String T, Frame frame) {
+        code.addVar(new CodeBuffer.LocalVar(index, name, T, frame.scopeStart.peek(), frame.scopeEnd.peek()));
     }
 
-    private void emitIF_ICMPCOND(String op, Frame frame) {
-        String opcode;
+    // emits opcode, one of iload, fload, aload, istore, fstore and astore,
+    // using its short form (e.g., iload_2) if there is one
+    private void emitLocal(int opcode, int index) {
+        emit(JVM.local(opcode, index));
+    }
 
-        if (op.equals("i!="))
+    private void emitNEWARRAY(Type T) {
+        if (T.isFloatType())
+            emit(JVM.NEWARRAY, JVM.T_FLOAT);
+        else if (T.isBooleanType())
+            emit(JVM.NEWARRAY, JVM.T_BOOLEAN);
+        else
+            emit(JVM.NEWARRAY, JVM.T_INT);
+    }
+
+    // Emits the code of the boolean expression e used as a condition:
+    // control jumps to target if e evaluates to jumpIf and falls through
+    // otherwise. Comparisons, &&, || and ! are compiled into branches
+    // without materialising their 0/1 values.
+
+    private void emitCondition(Expr e, Label target, boolean jumpIf, Frame frame) {
+        if (e instanceof UnaryExpr && ((UnaryExpr) e).O.spelling.equals("i!")) {
+            emitCondition(((UnaryExpr) e).E, target, !jumpIf, frame);
+        } else if (e instanceof BinaryExpr && isCondition(((BinaryExpr) e).O.spelling)) {
+            BinaryExpr bAST = (BinaryExpr) e;
+            String op = bAST.O.spelling;
+            if (op.equals("i&&") || op.equals("i||")) {
+                if (op.equals("i&&") != jumpIf) {
+                    // either operand alone decides: a false operand of &&
+                    // or a true operand of ||
+                    emitCondition(bAST.E1, target, jumpIf, frame);
+                    emitCondition(bAST.E2, target, jumpIf, frame);
+                } else {
+                    Label skip = frame.getNewLabel();
+                    emitCondition(bAST.E1, skip, !jumpIf, frame);
+                    emitCondition(bAST.E2, target, jumpIf, frame);
+                    placeLabel(skip);
+                }
+            } else {
+                bAST.E1.visit(this, frame);
+                bAST.E2.visit(this, frame);
+                emitCompare(op, target, jumpIf, frame);
+            }
+        } else if (e instanceof BooleanExpr) {
+            if (((BooleanExpr) e).BL.spelling.equals("true") == jumpIf)
+                emit(JVM.GOTO, target);
+        } else {
+            e.visit(this, frame);
+            emit(jumpIf ? JVM.IFNE : JVM.IFEQ, target);
+            frame.pop();
+        }
+    }
+
+    // Compares the two operands on the stack with the relational
+    // operator op and jumps to target if the result is jumpIf.
+    //
+    // A comparison involving NaN is false, except for !=. fcmpg pushes 1
+    // and fcmpl pushes -1 for NaN, so < and <= use fcmpg and the others
+    // fcmpl, which makes both the branch and its negation correct.
+
+    private void emitCompare(String op, Label target, boolean jumpIf, Frame frame) {
+        String rel = op.substring(1);
+        int opcode;
+
+        if (rel.equals("!="))
             opcode = JVM.IF_ICMPNE;
-        else if (op.equals("i=="))
+        else if (rel.equals("=="))
             opcode = JVM.IF_ICMPEQ;
-        else if (op.equals("i<"))
+        else if (rel.equals("<"))
             opcode = JVM.IF_ICMPLT;
-        else if (op.equals("i<="))
+        else if (rel.equals("<="))
             opcode = JVM.IF_ICMPLE;
-        else if (op.equals("i>"))
+        else if (rel.equals(">"))
             opcode = JVM.IF_ICMPGT;
-        else // if (op.equals("i>="))
+        else // if (rel.equals(">="))
             opcode = JVM.IF_ICMPGE;
 
-        String falseLabel = frame.getNewLabel();
-        String nextLabel = frame.getNewLabel();
+        if (op.startsWith("f")) {
+            emit(rel.startsWith("<") ? JVM.FCMPG : JVM.FCMPL);
+            frame.pop();
+            opcode = opcode - JVM.IF_ICMPEQ + JVM.IFEQ;
+        }
+        if (!jumpIf)
+            opcode = JVM.negate(opcode);
+        emit(opcode, target);
+        frame.pop(op.startsWith("f") ? 1 : 2);
+    }
+
+    // Pushes the 0/1 value of a comparison, &&, || or !, as needed where
+    // the value itself is used, e.g., in an assignment or an argument.
 
-        emit(opcode, falseLabel);
-        frame.pop(2);
-        emit("iconst_0");
-        emit("goto", nextLabel);
-        emit(falseLabel + ":");
-        emit(JVM.ICONST_1);
-        frame.push();
-        emit(nextLabel + ":");
-    }
-
-    private void emitFCMP(String op, Frame frame) {
-        String opcode;
-
-        if (op.equals("f!="))
-            opcode = JVM.IFNE;
-        else if (op.equals("f=="))
-            opcode = JVM.IFEQ;
-        else if (op.equals("f<"))
-            opcode = JVM.IFLT;
-        else if (op.equals("f<="))
-            opcode = JVM.IFLE;
-        else if (op.equals("f>"))
-            opcode = JVM.IFGT;
-        else // if (op.equals("f>="))
-            opcode = JVM.IFGE;
-
-        String falseLabel = frame.getNewLabel();
-        String nextLabel = frame.getNewLabel();
-
-        emit(JVM.FCMPG);
-        frame.pop(2);
-        emit(opcode, falseLabel);
+    private void emitBooleanValue(Expr e, Frame frame) {
+        Label trueLabel = frame.getNewLabel();
+        Label nextLabel = frame.getNewLabel();
+
+        emitCondition(e, trueLabel, true, frame);
         emit(JVM.ICONST_0);
-        emit("goto", nextLabel);
-        emit(falseLabel + ":");
+        emit(JVM.GOTO, nextLabel);
+        placeLabel(trueLabel);
         emit(JVM.ICONST_1);
         frame.push();
-        emit(nextLabel + ":");
+        placeLabel(nextLabel);
+    }
+
+    private static boolean isTrue(Expr e) {
+        return e instanceof BooleanExpr && ((BooleanExpr) e).BL.spelling.equals("true");
+    }
 
+    private static boolean isCondition(String op) {
+        switch (op) {
+            case "i&&": case "i||":
+            case "i==": case "i!=": case "i<": case "i<=": case "i>": case "i>=":
+            case "f==": case "f!=": case "f<": case "f<=": case "f>": case "f>=":
+                return true;
+            default:
+                return false;
+        }
     }
 
     private void emitILOAD(int index) {
-        if (index >= 0 && index <= 3)
-            emit(JVM.ILOAD + "_" + index);
-        else
-            emit(JVM.ILOAD, index);
+        emitLocal(JVM.ILOAD, index);
     }
 
     private void emitFLOAD(int index) {
-        if (index >= 0 && index <= 3)
-            emit(JVM.FLOAD + "_" + index);
-        else
-            emit(JVM.FLOAD, index);
+        emitLocal(JVM.FLOAD, index);
     }
 
     private void emitALOAD(int index) {
-        if (index >= 0 && index <= 3)
-            emit(JVM.ALOAD + "_" + index);
-        else
-            emit(JVM.ALOAD, index);
+        emitLocal(JVM.ALOAD, index);
     }
 
     private void emitGETSTATIC(String T, String I) {
-        emit(JVM.GETSTATIC, classname + "/" + I, T);
+        emit(JVM.GETSTATIC, new MemberRef(classname, I, T));
     }
 
     private void emitISTORE(Ident ast) {
@@ -1103,10 +1808,7 @@ public final class Emitter implements Visitor {
         else
             index = ((LocalVarDecl) ast.decl).index;
 
-        if (index >= 0 && index <= 3)
-            emit(JVM.ISTORE + "_" + index);
-        else
-            emit(JVM.ISTORE, index);
+        emitLocal(JVM.ISTORE, index);
     }
 
     private void emitFSTORE(Ident ast) {
@@ -1115,27 +1817,15 @@ public final class Emitter implements Visitor {
             index = ((ParaDecl) ast.decl).index;
         else
             index = ((LocalVarDecl) ast.decl).index;
-        if (index >= 0 && index <= 3)
-            emit(JVM.FSTORE + "_" + index);
-        else
-            emit(JVM.FSTORE, index);
+        emitLocal(JVM.FSTORE, index);
     }
 
     private void emitPUTSTATIC(String T, String I) {
-        emit(JVM.PUTSTATIC, classname + "/" + I, T);
+        emit(JVM.PUTSTATIC, new MemberRef(classname, I, T));
     }
 
     private void emitICONST(int value) {
-        if (value == -1)
-            emit(JVM.ICONST_M1);
-        else if (value >= 0 && value <= 5)
-            emit(JVM.ICONST + "_" + value);
-        else if (value >= -128 && value <= 127)
-            emit(JVM.BIPUSH, value);
-        else if (value >= -32768 && value <= 32767)
-            emit(JVM.SIPUSH, value);
-        else
-            emit(JVM.LDC, value);
+        emit(JVM.iconst(value));
     }
 
     private void emitFCONST(float value) {
@@ -1146,7 +1836,7 @@ public final class Emitter implements Visitor {
         else if (value == 2.0)
             emit(JVM.FCONST_2);
         else
-            emit(JVM.LDC, value);
+            emitLDC(value);
     }
 
     private void emitBCONST(boolean value) {
@@ -1192,35 +1882,4 @@ public final class Emitter implements Visitor {
         frame.pop();
     }
 
-    private void emitRELATION(String op, Expr E1, Expr E2, Frame frame){
-        String opcode;
-        String truecode;
-        String falsecode;
-        if(op.equals("i||")){
-            opcode = JVM.IFNE;
-            truecode = JVM.ICONST_0;
-            falsecode = JVM.ICONST_1;
-        }
-        else{   // i&&
-            opcode = JVM.IFEQ;
-            truecode = JVM.ICONST_1;
-            falsecode = JVM.ICONST_0;
-        }
-
-        String falseLable = frame.getNewLabel();
-        String nextLabel = frame.getNewLabel();
-        E1.visit(this, frame);
-        emit(opcode, falseLable);
-        frame.pop();
-        E2.visit(this, frame);
-        emit(opcode, falseLable);
-        frame.pop();
-        emit(truecode);
-        emit("goto", nextLabel);
-        emit(falseLable + ":");
-        emit(falsecode);
-        frame.push();
-        emit(nextLabel + ":");
-    }
-
 }
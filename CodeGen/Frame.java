@@ -37,8 +37,13 @@ import java.util.Stack;
    //  (lexically) second local variable  n + 1
    // 
    // See page 73, T Lindholm and F Yellin, The JVM spec, 2nd ed.
+   //
+   // The indices of the variables of a block are released when the
+   // block closes, so that sibling blocks share their indices. The
+   // maximum index ever used gives the size of the frame.
 
    private int localVarIndex;
+   private int maximumLocalVarIndex;
 
    // Simulate the execution of byte code to determine at compile-time
    // the maximum depth of the operand stack for a method. 
@@ -50,26 +55,27 @@ import java.util.Stack;
    // Stacks for storing labels used for translating continue and break in while
    // These labels are inherited attributes
 
-   public Stack<String> conStack; 
-   public Stack<String> brkStack; 
+   public Stack<Label> conStack; 
+   public Stack<Label> brkStack; 
 
    // Stacks for storing labels marking the beginning and end of a scope. 
    // These labels are inherited attributes and used in generating 
    // .VAR directive
 
-   public Stack<String> scopeStart;
-   public Stack<String> scopeEnd; 
+   public Stack<Label> scopeStart;
+   public Stack<Label> scopeEnd; 
 
    public Frame(boolean _main) {
      this._main = _main;
      label = 0;
      localVarIndex = 0;
+     maximumLocalVarIndex = 0;
      currentStackSize = 0;
      maximumStackSize = 0;
-     conStack = new Stack<String>();
-     brkStack = new Stack<String>();
-     scopeStart = new Stack<String>();
-     scopeEnd = new Stack<String>();
+     conStack = new Stack<Label>();
+     brkStack = new Stack<Label>();
+     scopeStart = new Stack<Label>();
+     scopeEnd = new Stack<Label>();
    }
 
    public boolean isMain() { 
@@ -83,13 +89,35 @@ import java.util.Stack;
        System.out.println("The maximum local variable index (" + JVM.MAX_LOCALVARINDEX + ") reached.");
        System.exit(1);
      }
-     return localVarIndex++;
+     localVarIndex++;
+     if (localVarIndex > maximumLocalVarIndex)
+       maximumLocalVarIndex = localVarIndex;
+     return localVarIndex - 1;
+   }
+
+  // returns the index that getNewIndex will return next
+
+   public int getLocalVarIndex() {
+     return localVarIndex;
+   }
+
+  // makes the indices from index onwards available again, when the
+  // variables using them go out of scope
+
+   public void releaseIndices(int index) {
+     localVarIndex = index;
+   }
+
+  // returns the number of local variables needed by this frame
+
+   public int getMaximumLocals() {
+     return maximumLocalVarIndex;
    }
 
   // returns the next new label for this frame
 
-   public String getNewLabel() { 
-     return "L" + label++;
+   public Label getNewLabel() { 
+     return new Label(label++);
    }
 
    // All the following functions are used in calculating the maximum
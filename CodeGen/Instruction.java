@@ -4,20 +4,105 @@
 
 package VC.CodeGen;
 
-import java.io.PrintWriter;
+// An instruction of the JVM, identified by its opcode (see JVM.java),
+// or the LABEL pseudo-instruction. Only the operand fields used by the
+// opcode are meaningful:
+//
+//   operand    the index of a local variable (iload, istore, ...), the
+//              value of bipush and sipush, the type of newarray
+//   constant   the Integer, Float or String of ldc
+//   label      the target of a branch, or the label placed by LABEL
+//   member     the field or method of getstatic, putstatic, invoke...
+//   className  the class of new
+//
+// Instructions may be modified in place, e.g., by an optimiser.
 
-public class Instruction {
+public final class Instruction {
 
-  public String inst; // Jasmin assembly instruction
+  public int opcode;
+  public int operand;
+  public Object constant;
+  public Label label;
+  public MemberRef member;
+  public String className;
 
-  public Instruction (String inst) {
-    this.inst = inst;
+  public Instruction(int opcode) {
+    this.opcode = opcode;
   }
-  
-  public void write(PrintWriter writer) {
-    if (! (inst.startsWith(".") || inst.endsWith(":")))
-      writer.print("\t");
-    writer.println(inst);
+
+  public Instruction(int opcode, int operand) {
+    this.opcode = opcode;
+    this.operand = operand;
+  }
+
+  public Instruction(int opcode, Label label) {
+    this.opcode = opcode;
+    this.label = label;
+  }
+
+  public Instruction(int opcode, MemberRef member) {
+    this.opcode = opcode;
+    this.member = member;
+  }
+
+  public static Instruction ldc(Object constant) {
+    Instruction inst = new Instruction(JVM.LDC);
+    inst.constant = constant;
+    return inst;
+  }
+
+  public static Instruction newObject(String className) {
+    Instruction inst = new Instruction(JVM.NEW);
+    inst.className = className;
+    return inst;
+  }
+
+  public boolean isLabel() {
+    return opcode == JVM.LABEL;
+  }
+
+  // the Jasmin form of the instruction
+  public String toString() {
+    if (opcode == JVM.LABEL)
+      return label + ":";
+    String mnemonic = JVM.mnemonic(opcode);
+    switch (opcode) {
+    case JVM.ILOAD: case JVM.FLOAD: case JVM.ALOAD:
+    case JVM.ISTORE: case JVM.FSTORE: case JVM.ASTORE:
+    case JVM.BIPUSH: case JVM.SIPUSH:
+      return mnemonic + " " + operand;
+    case JVM.NEWARRAY:
+      return mnemonic + " " + (operand == JVM.T_INT ? "int" : operand == JVM.T_FLOAT ? "float" : "boolean");
+    case JVM.LDC:
+      if (constant instanceof String)
+        return mnemonic + " \"" + escape((String) constant) + "\"";
+      return mnemonic + " " + constant;
+    case JVM.NEW:
+      return mnemonic + " " + className;
+    default:
+      if (label != null)
+        return mnemonic + " " + label;
+      if (member != null)
+        return mnemonic + " " + member;
+      return mnemonic;
+    }
+  }
+
+  // a string constant as written in Jasmin
+  private static String escape(String s) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c == '\n')
+        sb.append("\\n");
+      else if (c < ' ' || c > '~')
+        sb.append(String.format("\\u%04x", (int) c));
+      else
+        sb.append(c);
+    }
+    return sb.toString();
   }
- 
-}  
+
+}
@@ -4,51 +4,18 @@
 
 package VC.CodeGen;
 
-import java.io.*;
-
-// This JVM includes only a subset the JVM instructions
+// This JVM includes only a subset the JVM instructions.
+// The instructions of a class are stored in the CodeBuffers of the
+// Emitter generating it.
+//
+// An instruction is identified by its opcode as defined in the JVM
+// spec. The mnemonic of each opcode and its effect on the operand stack
+// are given by the tables at the end of this class.
 
 public final class JVM {
 
-// CODE STORE
-
-  public static int nextInstAddr = 0;
-  public static int codeSize = 512;
-  public static Instruction[] code = new Instruction[codeSize];
-
-  // In production compilers, expensive array copies will be avoided
-  // when dynamic data structures such as linked lists are used.
-  public static void append(Instruction inst) {
-    if (nextInstAddr >= codeSize) {
-      Instruction[] newCode = new Instruction[2 * codeSize];
-      System.arraycopy(code, 0, newCode, 0, codeSize); 
-      codeSize = 2 * code.length;
-      code = newCode;
-    }
-    
-    code[nextInstAddr++] = inst;
-  }
-  
-  public static void dump(String filename) {
-    PrintWriter writer;
-    try {
-      writer = new PrintWriter(new FileOutputStream(filename));
-      for (int addr = 0; addr < nextInstAddr; addr++)
-      JVM.code[addr].write(writer);
-
-      writer.close();
-    } catch (FileNotFoundException e) {
-      System.out.println ("Error opening object file: " + e); 
-      System.exit(1);
-    } catch (Exception e) {
-      System.out.println ("Error writing object file: " + e); 
-      System.exit(1);
-    }
-  }
-
-// Jasmin ASSEMBLY INSTRUCTIONS
+// Jasmin ASSEMBLY DIRECTIVES (used by JasminPrinter)
 
-  // Directive codes
   public final static String
     SOURCE = ".source",
     CLASS = ".class",
@@ -58,134 +25,364 @@ public final class JVM {
     METHOD_END = ".end",
     SUPER = ".super",
     VAR  = ".var",
-    LINE  = ".line",
+    LINE  = ".line";
 
-  // JVM operation codes
+// Access flags of classes, fields and methods
 
-  // Arithmetic Instructions
+  public final static int
+    ACC_PUBLIC = 0x0001,
+    ACC_PRIVATE = 0x0002,
+    ACC_PROTECTED = 0x0004,
+    ACC_STATIC = 0x0008,
+    ACC_FINAL = 0x0010,
+    ACC_SUPER = 0x0020;
+
+// JVM OPERATION CODES
 
-     FADD = "fadd",
-     IADD = "iadd",
-     FSUB = "fsub",
-     ISUB = "isub",
-     FMUL = "fmul",
-     IMUL = "imul",
-     FDIV = "fdiv",
-     IDIV = "idiv",
-     FCMPG = "fcmpg",
-     FCMPL = "fcmpl",
-     FNEG = "fneg",
-     INEG = "ineg",
-     IXOR = "ixor",
-     WIDE = "wide", // not supported by Jasmin
+  // a pseudo-instruction marking the position of a label
+  public final static int LABEL = -1;
 
+  public final static int
+
+  // Arithmetic Instructions
+
+     IADD = 0x60,
+     FADD = 0x62,
+     ISUB = 0x64,
+     FSUB = 0x66,
+     IMUL = 0x68,
+     FMUL = 0x6a,
+     IDIV = 0x6c,
+     FDIV = 0x6e,
+     IREM = 0x70,
+     INEG = 0x74,
+     FNEG = 0x76,
+     ISHL = 0x78,
+     ISHR = 0x7a,
+     IUSHR = 0x7c,
+     IAND = 0x7e,
+     IOR = 0x80,
+     IXOR = 0x82,
+     FCMPL = 0x95,
+     FCMPG = 0x96,
 
   // Loading and storing instructions
-    GETSTATIC = "getstatic",
-    PUTSTATIC = "putstatic",
+    GETSTATIC = 0xb2,
+    PUTSTATIC = 0xb3,
 
     // load a local variable into the operand stack
-    ALOAD = "aload",
-    ALOAD_0 = "aload_0",
-    ALOAD_1 = "aload_1",
-    ALOAD_2 = "aload_2",
-    ALOAD_3 = "aload_3",
-    ILOAD = "iload",
-    ILOAD_0 = "iload_0",
-    ILOAD_1 = "iload_1",
-    ILOAD_2 = "iload_2",
-    ILOAD_3 = "iload_3",
-    FLOAD = "fload",
-    FLOAD_0 = "fload_0",
-    FLOAD_1 = "fload_1",
-    FLOAD_2 = "fload_2",
-    FLOAD_3 = "fload_3",
+    ILOAD = 0x15,
+    FLOAD = 0x17,
+    ALOAD = 0x19,
+    ILOAD_0 = 0x1a,
+    ILOAD_1 = 0x1b,
+    ILOAD_2 = 0x1c,
+    ILOAD_3 = 0x1d,
+    FLOAD_0 = 0x22,
+    FLOAD_1 = 0x23,
+    FLOAD_2 = 0x24,
+    FLOAD_3 = 0x25,
+    ALOAD_0 = 0x2a,
+    ALOAD_1 = 0x2b,
+    ALOAD_2 = 0x2c,
+    ALOAD_3 = 0x2d,
     // store the operand stack into a local variable
-    ASTORE = "astore",
-    ASTORE_0 = "astore_0",
-    ASTORE_1 = "astore_1",
-    ASTORE_2 = "astore_2",
-    ASTORE_3 = "astore_3",
-    FSTORE = "fstore",
-    FSTORE_0 = "fstore_0",
-    FSTORE_1 = "fstore_1",
-    FSTORE_2 = "fstore_2",
-    FSTORE_3 = "fstore_3",
-    ISTORE = "istore",
-    ISTORE_0 = "istore_0",
-    ISTORE_1 = "istore_1",
-    ISTORE_2 = "istore_2",
-    ISTORE_3 = "istore_3",
-    // load a constant into the operand stack
+    ISTORE = 0x36,
+    FSTORE = 0x38,
+    ASTORE = 0x3a,
+    ISTORE_0 = 0x3b,
+    ISTORE_1 = 0x3c,
+    ISTORE_2 = 0x3d,
+    ISTORE_3 = 0x3e,
+    FSTORE_0 = 0x43,
+    FSTORE_1 = 0x44,
+    FSTORE_2 = 0x45,
+    FSTORE_3 = 0x46,
+    ASTORE_0 = 0x4b,
+    ASTORE_1 = 0x4c,
+    ASTORE_2 = 0x4d,
+    ASTORE_3 = 0x4e,
 
-    ICONST = "iconst",     // does not exist; used in the method
-			   // emitICONST of the class Emitter.
-
-    ICONST_M1 = "iconst_m1",
-    ICONST_0 = "iconst_0",
-    ICONST_1 = "iconst_1",
-    ICONST_2 = "iconst_2",
-    ICONST_3 = "iconst_3",
-    ICONST_4 = "iconst_4",
-    ICONST_5 = "iconst_5",
-    FCONST_0 = "fconst_0",
-    FCONST_1 = "fconst_1",
-    FCONST_2 = "fconst_2",
-    BIPUSH = "bipush",
-    SIPUSH = "sipush",
-    LDC = "ldc",
+    // load a constant into the operand stack
+    ICONST_M1 = 0x02,
+    ICONST_0 = 0x03,
+    ICONST_1 = 0x04,
+    ICONST_2 = 0x05,
+    ICONST_3 = 0x06,
+    ICONST_4 = 0x07,
+    ICONST_5 = 0x08,
+    FCONST_0 = 0x0b,
+    FCONST_1 = 0x0c,
+    FCONST_2 = 0x0d,
+    BIPUSH = 0x10,
+    SIPUSH = 0x11,
+    LDC = 0x12,
 
   // Method invocation and return instructions
 
-    INVOKESTATIC = "invokestatic",
-    INVOKESPECIAL = "invokespecial",
-    INVOKEVIRTUAL = "invokevirtual",
-    FRETURN = "freturn",
-    IRETURN = "ireturn",
-    RETURN = "return",
+    INVOKEVIRTUAL = 0xb6,
+    INVOKESPECIAL = 0xb7,
+    INVOKESTATIC = 0xb8,
+    IRETURN = 0xac,
+    FRETURN = 0xae,
+    ARETURN = 0xb0,
+    RETURN = 0xb1,
 
   // Control transfer instructions
 
-    GOTO = "goto",
-    IFEQ = "ifeq",
-    IFNE = "ifne",
-    IFLE = "ifle",
-    IFLT = "iflt",
-    IFGE = "ifge",
-    IFGT = "ifgt",
-    IF_ICMPEQ = "if_icmpeq",
-    IF_ICMPNE = "if_icmpne",
-    IF_ICMPLE = "if_icmple",
-    IF_ICMPLT = "if_icmplt",
-    IF_ICMPGE = "if_icmpge",
-    IF_ICMPGT = "if_icmpgt",
+    IFEQ = 0x99,
+    IFNE = 0x9a,
+    IFLT = 0x9b,
+    IFGE = 0x9c,
+    IFGT = 0x9d,
+    IFLE = 0x9e,
+    IF_ICMPEQ = 0x9f,
+    IF_ICMPNE = 0xa0,
+    IF_ICMPLT = 0xa1,
+    IF_ICMPGE = 0xa2,
+    IF_ICMPGT = 0xa3,
+    IF_ICMPLE = 0xa4,
+    GOTO = 0xa7,
 
   // Type conversion instructions
-    I2F = "i2f",
+    I2F = 0x86,
 
   // Object creation and manipulation
-    NEW = "new",
+    NEW = 0xbb,
 
   // Operand Stack management instructions
-   
-    DUP = "dup",
-    POP = "pop", 
-    NOP = "nop",
+
+    DUP = 0x59,
+    DUP_X2 = 0x5b,
+    POP = 0x57,
+    NOP = 0x00,
 
   // Array Operand
-    NEWARRAY = "newarray",
-    IASTORE = "iastore",
-    FASTORE = "fastore",
-    BASTORE = "bastore",
-    IALOAD = "iaload",
-    BALOAD = "baload",
-    FALOAD = "faload";
+    NEWARRAY = 0xbc,
+    IALOAD = 0x2e,
+    FALOAD = 0x30,
+    BALOAD = 0x33,
+    IASTORE = 0x4f,
+    FASTORE = 0x51,
+    BASTORE = 0x54;
+
+  // The array types of newarray
+  public final static int
+    T_BOOLEAN = 4,
+    T_FLOAT = 6,
+    T_INT = 10;
 
-// Limitations of the JVM 
+// Limitations of the JVM
 
   public final static int
     MAX_BYTE = 255,  // 2^8 -1
     MAX_SHORT = 65535, // 2^16 - 1
-    MAX_LOCALVARINDEX = MAX_SHORT, 
+    MAX_LOCALVARINDEX = MAX_SHORT,
     MAX_OPSTACK = MAX_SHORT;
+
+// TABLES
+
+  private static final String[] mnemonics = new String[256];
+
+  // The numbers of operands popped and pushed by each instruction;
+  // -1 if the numbers depend on the member referenced
+  private static final int[] pops = new int[256];
+  private static final int[] pushes = new int[256];
+
+  private static void define(int opcode, String mnemonic, int popped, int pushed) {
+    mnemonics[opcode] = mnemonic;
+    pops[opcode] = popped;
+    pushes[opcode] = pushed;
+  }
+
+  static {
+    define(NOP, "nop", 0, 0);
+    define(ICONST_M1, "iconst_m1", 0, 1);
+    for (int i = 0; i <= 5; i++)
+      define(ICONST_0 + i, "iconst_" + i, 0, 1);
+    for (int i = 0; i <= 2; i++)
+      define(FCONST_0 + i, "fconst_" + i, 0, 1);
+    define(BIPUSH, "bipush", 0, 1);
+    define(SIPUSH, "sipush", 0, 1);
+    define(LDC, "ldc", 0, 1);
+    define(ILOAD, "iload", 0, 1);
+    define(FLOAD, "fload", 0, 1);
+    define(ALOAD, "aload", 0, 1);
+    define(ISTORE, "istore", 1, 0);
+    define(FSTORE, "fstore", 1, 0);
+    define(ASTORE, "astore", 1, 0);
+    for (int i = 0; i <= 3; i++) {
+      define(ILOAD_0 + i, "iload_" + i, 0, 1);
+      define(FLOAD_0 + i, "fload_" + i, 0, 1);
+      define(ALOAD_0 + i, "aload_" + i, 0, 1);
+      define(ISTORE_0 + i, "istore_" + i, 1, 0);
+      define(FSTORE_0 + i, "fstore_" + i, 1, 0);
+      define(ASTORE_0 + i, "astore_" + i, 1, 0);
+    }
+    define(IALOAD, "iaload", 2, 1);
+    define(FALOAD, "faload", 2, 1);
+    define(BALOAD, "baload", 2, 1);
+    define(IASTORE, "iastore", 3, 0);
+    define(FASTORE, "fastore", 3, 0);
+    define(BASTORE, "bastore", 3, 0);
+    define(POP, "pop", 1, 0);
+    define(DUP, "dup", 1, 2);
+    define(DUP_X2, "dup_x2", 3, 4);
+    define(IADD, "iadd", 2, 1);
+    define(FADD, "fadd", 2, 1);
+    define(ISUB, "isub", 2, 1);
+    define(FSUB, "fsub", 2, 1);
+    define(IMUL, "imul", 2, 1);
+    define(FMUL, "fmul", 2, 1);
+    define(IDIV, "idiv", 2, 1);
+    define(FDIV, "fdiv", 2, 1);
+    define(IREM, "irem", 2, 1);
+    define(INEG, "ineg", 1, 1);
+    define(FNEG, "fneg", 1, 1);
+    define(ISHL, "ishl", 2, 1);
+    define(ISHR, "ishr", 2, 1);
+    define(IUSHR, "iushr", 2, 1);
+    define(IAND, "iand", 2, 1);
+    define(IOR, "ior", 2, 1);
+    define(IXOR, "ixor", 2, 1);
+    define(I2F, "i2f", 1, 1);
+    define(FCMPL, "fcmpl", 2, 1);
+    define(FCMPG, "fcmpg", 2, 1);
+    define(IFEQ, "ifeq", 1, 0);
+    define(IFNE, "ifne", 1, 0);
+    define(IFLT, "iflt", 1, 0);
+    define(IFGE, "ifge", 1, 0);
+    define(IFGT, "ifgt", 1, 0);
+    define(IFLE, "ifle", 1, 0);
+    define(IF_ICMPEQ, "if_icmpeq", 2, 0);
+    define(IF_ICMPNE, "if_icmpne", 2, 0);
+    define(IF_ICMPLT, "if_icmplt", 2, 0);
+    define(IF_ICMPGE, "if_icmpge", 2, 0);
+    define(IF_ICMPGT, "if_icmpgt", 2, 0);
+    define(IF_ICMPLE, "if_icmple", 2, 0);
+    define(GOTO, "goto", 0, 0);
+    define(IRETURN, "ireturn", 1, 0);
+    define(FRETURN, "freturn", 1, 0);
+    define(ARETURN, "areturn", 1, 0);
+    define(RETURN, "return", 0, 0);
+    define(GETSTATIC, "getstatic", 0, 1);
+    define(PUTSTATIC, "putstatic", 1, 0);
+    define(INVOKEVIRTUAL, "invokevirtual", -1, -1);
+    define(INVOKESPECIAL, "invokespecial", -1, -1);
+    define(INVOKESTATIC, "invokestatic", -1, -1);
+    define(NEW, "new", 0, 1);
+    define(NEWARRAY, "newarray", 1, 1);
+  }
+
+  public static String mnemonic(int opcode) {
+    return mnemonics[opcode];
+  }
+
+  // the number of operands inst pops off the operand stack
+  public static int pops(Instruction inst) {
+    if (inst.opcode == LABEL)
+      return 0;
+    if (pops[inst.opcode] >= 0)
+      return pops[inst.opcode];
+    // an invocation pops its arguments and, unless static, the receiver
+    return inst.member.argumentCount() + (inst.opcode == INVOKESTATIC ? 0 : 1);
+  }
+
+  // the number of operands inst pushes onto the operand stack
+  public static int pushes(Instruction inst) {
+    if (inst.opcode == LABEL)
+      return 0;
+    if (pushes[inst.opcode] >= 0)
+      return pushes[inst.opcode];
+    return inst.member.returnsValue() ? 1 : 0;
+  }
+
+  public static int stackEffect(Instruction inst) {
+    return pushes(inst) - pops(inst);
+  }
+
+  public static boolean isBranch(int opcode) {
+    return (IFEQ <= opcode && opcode <= IF_ICMPLE) || opcode == GOTO;
+  }
+
+  public static boolean isConditionalBranch(int opcode) {
+    return IFEQ <= opcode && opcode <= IF_ICMPLE;
+  }
+
+  // true if control never falls through to the next instruction
+  public static boolean isUnconditionalTransfer(int opcode) {
+    return opcode == GOTO || isReturn(opcode);
+  }
+
+  public static boolean isReturn(int opcode) {
+    return opcode == IRETURN || opcode == FRETURN || opcode == ARETURN || opcode == RETURN;
+  }
+
+  // true if opcode loads a local variable onto the operand stack
+  public static boolean isLoad(int opcode) {
+    return opcode == ILOAD || opcode == FLOAD || opcode == ALOAD
+           || (ILOAD_0 <= opcode && opcode <= ALOAD_3);
+  }
+
+  // true if opcode stores the operand stack into a local variable
+  public static boolean isStore(int opcode) {
+    return opcode == ISTORE || opcode == FSTORE || opcode == ASTORE
+           || (ISTORE_0 <= opcode && opcode <= ASTORE_3);
+  }
+
+  // the index of the local variable of a load or a store
+  public static int localIndex(Instruction inst) {
+    int op = inst.opcode;
+    if (op == ILOAD || op == FLOAD || op == ALOAD || op == ISTORE || op == FSTORE || op == ASTORE)
+      return inst.operand;
+    if (ILOAD_0 <= op && op <= ALOAD_3)
+      return (op - ILOAD_0) % 4;
+    return (op - ISTORE_0) % 4;
+  }
+
+  // A load (ILOAD, FLOAD or ALOAD) or a store (ISTORE, FSTORE or ASTORE)
+  // of the local variable index, in its short form if there is one.
+  public static Instruction local(int opcode, int index) {
+    if (index > 3)
+      return new Instruction(opcode, index);
+    switch (opcode) {
+    case ILOAD:  return new Instruction(ILOAD_0 + index);
+    case FLOAD:  return new Instruction(FLOAD_0 + index);
+    case ALOAD:  return new Instruction(ALOAD_0 + index);
+    case ISTORE: return new Instruction(ISTORE_0 + index);
+    case FSTORE: return new Instruction(FSTORE_0 + index);
+    default:     return new Instruction(ASTORE_0 + index);
+    }
+  }
+
+  // The instruction pushing the int value, in its shortest form.
+  public static Instruction iconst(int value) {
+    if (value >= -1 && value <= 5)
+      return new Instruction(ICONST_0 + value);
+    if (value >= -128 && value <= 127)
+      return new Instruction(BIPUSH, value);
+    if (value >= -32768 && value <= 32767)
+      return new Instruction(SIPUSH, value);
+    return Instruction.ldc(value);
+  }
+
+  // The int value pushed by inst, or null if it pushes no int constant.
+  public static Integer intConstant(Instruction inst) {
+    int op = inst.opcode;
+    if (ICONST_M1 <= op && op <= ICONST_5)
+      return op - ICONST_0;
+    if (op == BIPUSH || op == SIPUSH)
+      return inst.operand;
+    if (op == LDC && inst.constant instanceof Integer)
+      return (Integer) inst.constant;
+    return null;
+  }
+
+  // The conditional branch taken exactly when the given one is not.
+  // The opcodes of the conditional branches come in such pairs:
+  // ifeq/ifne, iflt/ifge, ifgt/ifle, if_icmpeq/if_icmpne, ...
+  public static int negate(int opcode) {
+    return ((opcode - IFEQ) ^ 1) + IFEQ;
+  }
+
 }
@@ -0,0 +1,64 @@
+/*
+ * JasminPrinter.java
+ *
+ * Prints the code of a class in the Jasmin assembly language, for
+ * debugging the code generator. The output can be assembled by Jasmin
+ * into the same class as the one produced by the Assembler.
+ */
+
+package VC.CodeGen;
+
+import java.io.PrintWriter;
+
+public final class JasminPrinter {
+
+  private PrintWriter writer;
+
+  public JasminPrinter(PrintWriter writer) {
+    this.writer = writer;
+  }
+
+  // fields are the static fields of the class
+  public void print(String classname, String superclass,
+                    Iterable<MemberRef> fields, Iterable<CodeBuffer> methods) {
+    writer.println(JVM.CLASS + " public " + classname);
+    writer.println(JVM.SUPER + " " + superclass);
+    writer.println();
+    for (MemberRef f : fields)
+      writer.println(JVM.STATIC_FIELD + " " + f.name + " " + f.descriptor);
+    for (CodeBuffer m : methods) {
+      writer.println();
+      print(m);
+    }
+    writer.flush();
+  }
+
+  public void print(CodeBuffer m) {
+    writer.println(JVM.METHOD_START + " " + access(m.access) + m.name + m.descriptor);
+    for (CodeBuffer.LocalVar v : m.vars())
+      writer.println(JVM.VAR + " " + v.index + " is " + v.name + " " + v.descriptor
+                     + " from " + v.start + " to " + v.end);
+    for (Instruction inst : m.instructions()) {
+      if (!inst.isLabel())
+        writer.print("\t");
+      writer.println(inst);
+    }
+    writer.println(JVM.LIMIT + " locals " + m.maxLocals);
+    writer.println(JVM.LIMIT + " stack " + m.maxStack);
+    writer.println(JVM.METHOD_END + " method");
+  }
+
+  private static String access(int flags) {
+    StringBuffer sb = new StringBuffer();
+    if ((flags & JVM.ACC_PUBLIC) != 0)
+      sb.append("public ");
+    if ((flags & JVM.ACC_PRIVATE) != 0)
+      sb.append("private ");
+    if ((flags & JVM.ACC_STATIC) != 0)
+      sb.append("static ");
+    if ((flags & JVM.ACC_FINAL) != 0)
+      sb.append("final ");
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,26 @@
+/*
+ * Label.java
+ *
+ * A position in the code of a method, as the target of branches and
+ * the bounds of the scopes of local variables. A label is placed by a
+ * LABEL pseudo-instruction.
+ *
+ * Labels are compared by identity. The number is used only to print
+ * the label as "L" + number in Jasmin code.
+ */
+
+package VC.CodeGen;
+
+public final class Label {
+
+  public final int number;
+
+  public Label(int number) {
+    this.number = number;
+  }
+
+  public String toString() {
+    return "L" + number;
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * MemberRef.java
+ *
+ * A reference to a field or a method of a class, as the operand of
+ * getstatic, putstatic and the invoke instructions, and as the
+ * declaration of a field. The descriptor of a method starts with '('.
+ *
+ * See Section 4.3, T Lindholm and F Yellin, The JVM spec, 2nd ed.
+ */
+
+package VC.CodeGen;
+
+public final class MemberRef {
+
+  public final String owner;       // e.g., VC/lang/System
+  public final String name;        // e.g., putInt
+  public final String descriptor;  // e.g., (I)V
+
+  public MemberRef(String owner, String name, String descriptor) {
+    this.owner = owner;
+    this.name = name;
+    this.descriptor = descriptor;
+  }
+
+  // Parses a method in Jasmin syntax, e.g., VC/lang/System/putInt(I)V.
+  public static MemberRef method(String spec) {
+    int paren = spec.indexOf('(');
+    int slash = spec.lastIndexOf('/', paren);
+    return new MemberRef(spec.substring(0, slash), spec.substring(slash + 1, paren),
+                         spec.substring(paren));
+  }
+
+  public boolean isMethod() {
+    return descriptor.startsWith("(");
+  }
+
+  // the number of arguments of a method; VC has no long or double
+  public int argumentCount() {
+    int count = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      while (descriptor.charAt(i) == '[')
+        i++;
+      if (descriptor.charAt(i) == 'L')
+        i = descriptor.indexOf(';', i);
+      i++;
+      count++;
+    }
+    return count;
+  }
+
+  public boolean returnsValue() {
+    return !descriptor.endsWith(")V");
+  }
+
+  // the Jasmin form, e.g., gcd/i I or gcd/gcd(II)I
+  public String toString() {
+    return owner + "/" + name + (isMethod() ? "" : " ") + descriptor;
+  }
+
+  public boolean equals(Object obj) {
+    if (!(obj instanceof MemberRef))
+      return false;
+    MemberRef m = (MemberRef) obj;
+    return owner.equals(m.owner) && name.equals(m.name) && descriptor.equals(m.descriptor);
+  }
+
+  public int hashCode() {
+    return (owner.hashCode() * 31 + name.hashCode()) * 31 + descriptor.hashCode();
+  }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * MethodSplitter.java
+ *
+ * Splits the methods whose code is too big into smaller ones. A method
+ * bigger than LIMIT bytes is never compiled by HotSpot, and one bigger
+ * than 64K bytes cannot be loaded at all; both happen to <clinit> with
+ * large array initialisers and to generated functions.
+ *
+ * A part of a method, a run of instructions code[a..b), is moved into a
+ * private static helper, and replaced by a call to it, if
+ *
+ *   1. no branch enters or leaves the part, and it contains no return;
+ *   2. the operand stack is empty at a and at b, or holds one array
+ *      (being initialised) that the part only copies with dup, in which
+ *      case the array is passed to the helper;
+ *   3. at most one of the local variables assigned in the part and
+ *      live at b holds a reference.
+ *
+ * The local variables used in the part and live at a are passed to the
+ * helper as its parameters, at most 255 of them counting a holder, and
+ * the part is renumbered to the slots of the helper. The values of the
+ * variables assigned and live at b are stored back after the call: the
+ * helper returns the reference, or the int or float if it is the only
+ * value, and stores the other ints and floats (the bits of a float) into
+ * the holder, an int array that the caller allocates and passes last. The labels of the part stay behind as well, so that the
+ * scopes of the local variables still have a start and an end.
+ */
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+final class MethodSplitter {
+
+  // HotSpot's HugeMethodLimit: bigger methods are always interpreted
+  static final int LIMIT = 8000;
+
+  // the largest and smallest parts worth moving into a helper
+  private static final int MAX_PART = 6000, MIN_PART = 256;
+
+  // the most parameters a method can have
+  private static final int MAX_PARAMETERS = 255;
+
+  private static final MemberRef
+    FLOAT_TO_BITS = MemberRef.method("java/lang/Float/floatToRawIntBits(F)I"),
+    BITS_TO_FLOAT = MemberRef.method("java/lang/Float/intBitsToFloat(I)F");
+
+  private String classname;
+  private List<CodeBuffer> methods;
+
+  // the number of helpers split off each method, to name them
+  private HashMap<String, Integer> helpers;
+
+  // the local variable of each method keeping the holders, if any
+  private IdentityHashMap<CodeBuffer, Integer> holders;
+
+  MethodSplitter(String classname, List<CodeBuffer> methods) {
+    this.classname = classname;
+    this.methods = methods;
+    helpers = new HashMap<String, Integer>();
+    holders = new IdentityHashMap<CodeBuffer, Integer>();
+  }
+
+  // Splits every method bigger than LIMIT, adding the helpers to the
+  // methods. Returns the number of helpers added.
+
+  int split() {
+    int n = methods.size();
+    for (int k = 0; k < n; k++) {
+      CodeBuffer m = methods.get(k);
+      StackMaps.removeUnreachable(m);
+      int from = 0;
+      while (from >= 0 && new Assembler(null).codeSize(m) > LIMIT)
+        from = outline(m, from);
+    }
+    return methods.size() - n;
+  }
+
+  // Moves the first part of m starting at or after code[from] into a
+  // helper. Returns the index after the call replacing it, or -1 if no
+  // part can be moved.
+
+  private int outline(CodeBuffer m, int from) {
+    List<Instruction> code = m.instructions();
+    int n = code.size();
+    StackMaps.TypeState[] in = StackMaps.states(classname, m);
+    int[] offsets = new Assembler(null).offsets(m);
+
+    // the nearest and the farthest instruction that each instruction is
+    // connected to by a branch
+    int[] lo = new int[n], hi = new int[n];
+    IdentityHashMap<Label, Integer> at = new IdentityHashMap<Label, Integer>();
+    for (int i = 0; i < n; i++) {
+      lo[i] = hi[i] = i;
+      if (code.get(i).isLabel())
+        at.put(code.get(i).label, i);
+    }
+    for (int i = 0; i < n; i++) {
+      Instruction inst = code.get(i);
+      if (JVM.isBranch(inst.opcode)) {
+        int t = at.get(inst.label);
+        lo[i] = Math.min(lo[i], t);
+        hi[i] = Math.max(hi[i], t);
+        lo[t] = Math.min(lo[t], i);
+        hi[t] = Math.max(hi[t], i);
+      }
+    }
+    BitSet[] live = liveness(code, at, m.maxLocals);
+
+    for (int a = from; a < n; a++) {
+      if (in[a] == null || in[a].stack.size() > 1
+          || (in[a].stack.size() == 1 && !in[a].stack.get(0).startsWith("[")))
+        continue;
+      int depth = in[a].stack.size();
+
+      BitSet written = new BitSet(), passed = new BitSet();
+      int min = a, max = a;
+      int end = -1;
+      BitSet results = null;
+      for (int i = a; i < n - 1 && offsets[i + 1] - offsets[a] <= MAX_PART; i++) {
+        Instruction inst = code.get(i);
+        int d = in[i].stack.size();
+        boolean copy = depth > 0 && d == depth && inst.opcode == JVM.DUP;
+        if (JVM.isReturn(inst.opcode) || (!copy && d - JVM.pops(inst) < depth))
+          break;
+        min = Math.min(min, lo[i]);
+        max = Math.max(max, hi[i]);
+        if (JVM.isStore(inst.opcode))
+          written.set(JVM.localIndex(inst));
+        if ((JVM.isLoad(inst.opcode) || JVM.isStore(inst.opcode)) && live[a].get(JVM.localIndex(inst))
+            && !in[a].locals[JVM.localIndex(inst)].equals(StackMaps.TOP))
+          passed.set(JVM.localIndex(inst));
+        if (depth + passed.cardinality() + 1 > MAX_PARAMETERS)
+          break;
+
+        // can the part end before code[i + 1]?
+        int b = i + 1;
+        if (in[b] == null || in[b].stack.size() != depth || min < a || max >= b)
+          continue;
+        BitSet out = (BitSet) written.clone();
+        out.and(live[b]);
+        boolean typed = true;
+        int references = 0;
+        for (int l = out.nextSetBit(0); l >= 0; l = out.nextSetBit(l + 1))
+          if (in[b].locals[l].equals(StackMaps.TOP))
+            typed = false;
+          else if (!isPrimitive(in[b].locals[l]))
+            references++;
+        if (!typed || references > 1)
+          continue;
+        end = b;
+        results = out;
+      }
+      if (end >= 0 && offsets[end] - offsets[a] >= MIN_PART)
+        return replace(m, a, end, in, live[a], results);
+    }
+    return -1;
+  }
+
+  // The local variables live before each instruction of the code.
+
+  private static BitSet[] liveness(List<Instruction> code, IdentityHashMap<Label, Integer> at,
+                                   int maxLocals) {
+    int n = code.size();
+    BitSet[] live = new BitSet[n + 1];
+    for (int i = 0; i <= n; i++)
+      live[i] = new BitSet(maxLocals);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = n - 1; i >= 0; i--) {
+        Instruction inst = code.get(i);
+        BitSet s = new BitSet(maxLocals);
+        if (!JVM.isUnconditionalTransfer(inst.opcode))
+          s.or(live[i + 1]);
+        if (JVM.isBranch(inst.opcode))
+          s.or(live[at.get(inst.label)]);
+        if (JVM.isStore(inst.opcode))
+          s.clear(JVM.localIndex(inst));
+        if (JVM.isLoad(inst.opcode))
+          s.set(JVM.localIndex(inst));
+        if (!s.equals(live[i])) {
+          live[i] = s;
+          changed = true;
+        }
+      }
+    }
+    return live;
+  }
+
+  // Moves code[a..b) of m into a new helper, returning the index after
+  // the call that replaces it. results are the local variables whose
+  // values are stored back.
+
+  private int replace(CodeBuffer m, int a, int b, StackMaps.TypeState[] in, BitSet live,
+                      BitSet results) {
+    List<Instruction> code = m.instructions();
+    List<Instruction> part = code.subList(a, b);
+    StackMaps.TypeState entry = in[a];
+    boolean array = entry.stack.size() == 1;
+
+    // the local variables used by the part that are live on entry
+    // become the parameters, the others the locals of the helper
+    boolean[] passed = new boolean[m.maxLocals], used = new boolean[m.maxLocals];
+    for (Instruction inst : part)
+      if (JVM.isLoad(inst.opcode) || JVM.isStore(inst.opcode)) {
+        int l = JVM.localIndex(inst);
+        used[l] = true;
+        passed[l] = live.get(l);
+      }
+
+    // the value returned and those held
+    int result = -1;
+    ArrayList<Integer> held = new ArrayList<Integer>();
+    for (int l = results.nextSetBit(0); l >= 0; l = results.nextSetBit(l + 1))
+      if (isPrimitive(in[b].locals[l]))
+        held.add(l);
+      else
+        result = l;
+    if (result < 0 && held.size() == 1)
+      result = held.remove(0);
+
+    int[] slot = new int[m.maxLocals];
+    int locals = array ? 1 : 0;
+    StringBuffer descriptor = new StringBuffer("(");
+    if (array)
+      descriptor.append(entry.stack.get(0));
+    ArrayList<Integer> parameters = new ArrayList<Integer>();
+    for (int l = 0; l < m.maxLocals; l++)
+      if (passed[l] && !entry.locals[l].equals(StackMaps.TOP)) {
+        parameters.add(l);
+        slot[l] = locals++;
+        descriptor.append(entry.locals[l]);
+      }
+    int holder = held.isEmpty() ? -1 : locals++;
+    if (holder >= 0)
+      descriptor.append("[I");
+    for (int l = 0; l < m.maxLocals; l++)
+      if (used[l] && !parameters.contains(l))
+        slot[l] = locals++;
+    String type = result >= 0 ? in[b].locals[result] : null;
+    descriptor.append(")").append(type != null ? type : "V");
+
+    String base = m.name.equals("<clinit>") ? "clinit" : m.name;
+    Integer count = helpers.get(base);
+    count = count == null ? 1 : count + 1;
+    helpers.put(base, count);
+    MemberRef ref = new MemberRef(classname, base + "$" + count, descriptor.toString());
+
+    CodeBuffer helper = new CodeBuffer(JVM.ACC_PRIVATE | JVM.ACC_STATIC, ref.name, ref.descriptor);
+    for (int i = a; i < b; i++) {
+      Instruction inst = code.get(i);
+      if (inst.isLabel())
+        helper.append(new Instruction(JVM.LABEL, inst.label));
+      else if (JVM.isLoad(inst.opcode))
+        helper.append(JVM.local(load(in[i + 1].stack.get(in[i + 1].stack.size() - 1)),
+                                slot[JVM.localIndex(inst)]));
+      else if (JVM.isStore(inst.opcode))
+        helper.append(JVM.local(store(in[i].stack.get(in[i].stack.size() - 1)),
+                                slot[JVM.localIndex(inst)]));
+      else if (array && inst.opcode == JVM.DUP && in[i].stack.size() == 1)
+        helper.append(JVM.local(JVM.ALOAD, 0));
+      else
+        helper.append(inst);
+    }
+    for (int k = 0; k < held.size(); k++) {
+      int l = held.get(k);
+      helper.append(JVM.local(JVM.ALOAD, holder));
+      helper.append(JVM.iconst(k));
+      helper.append(JVM.local(load(in[b].locals[l]), slot[l]));
+      if (in[b].locals[l].equals(StackMaps.FLOAT))
+        helper.append(new Instruction(JVM.INVOKESTATIC, FLOAT_TO_BITS));
+      helper.append(new Instruction(JVM.IASTORE));
+    }
+    if (type != null) {
+      helper.append(JVM.local(load(type), slot[result]));
+      helper.append(new Instruction(type.equals(StackMaps.INT) ? JVM.IRETURN
+                                    : type.equals(StackMaps.FLOAT) ? JVM.FRETURN : JVM.ARETURN));
+    } else {
+      helper.append(new Instruction(JVM.RETURN));
+    }
+    helper.maxLocals = locals;
+    helper.maxStack = Peephole.maxStack(helper);
+    methods.add(helper);
+
+    ArrayList<Instruction> call = new ArrayList<Instruction>();
+    for (Instruction inst : part)
+      if (inst.isLabel())
+        call.add(inst);
+    if (array)
+      call.add(new Instruction(JVM.DUP));
+    for (int l : parameters)
+      call.add(JVM.local(load(entry.locals[l]), l));
+    int h = -1;
+    if (holder >= 0) {
+      if (!holders.containsKey(m))
+        holders.put(m, m.maxLocals++);
+      h = holders.get(m);
+      call.add(JVM.iconst(held.size()));
+      call.add(new Instruction(JVM.NEWARRAY, JVM.T_INT));
+      call.add(new Instruction(JVM.DUP));
+      call.add(JVM.local(JVM.ASTORE, h));
+    }
+    call.add(new Instruction(JVM.INVOKESTATIC, ref));
+    if (type != null)
+      call.add(JVM.local(store(type), result));
+    for (int k = 0; k < held.size(); k++) {
+      int l = held.get(k);
+      call.add(JVM.local(JVM.ALOAD, h));
+      call.add(JVM.iconst(k));
+      call.add(new Instruction(JVM.IALOAD));
+      if (in[b].locals[l].equals(StackMaps.FLOAT))
+        call.add(new Instruction(JVM.INVOKESTATIC, BITS_TO_FLOAT));
+      call.add(JVM.local(store(in[b].locals[l]), l));
+    }
+    part.clear();
+    code.addAll(a, call);
+    m.maxStack = Peephole.maxStack(m);
+    return a + call.size();
+  }
+
+  private static boolean isPrimitive(String type) {
+    return type.equals(StackMaps.INT) || type.equals(StackMaps.FLOAT);
+  }
+
+  // the load and the store of a local variable of the given type
+  private static int load(String type) {
+    return type.equals(StackMaps.INT) ? JVM.ILOAD : type.equals(StackMaps.FLOAT) ? JVM.FLOAD : JVM.ALOAD;
+  }
+
+  private static int store(String type) {
+    return type.equals(StackMaps.INT) ? JVM.ISTORE : type.equals(StackMaps.FLOAT) ? JVM.FSTORE : JVM.ASTORE;
+  }
+
+}
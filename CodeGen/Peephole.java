@@ -0,0 +1,397 @@
+/*
+ * Peephole.java
+ *
+ * A peephole optimiser over the instructions of a method. Each rule of
+ * the table below matches a short sequence of adjacent instructions and
+ * replaces it by a cheaper one. The rules are applied until none
+ * matches; then the maximum depth of the operand stack is recomputed,
+ * since a rewrite may change it.
+ *
+ * A rule can be disabled by its name. The number of times each rule
+ * fired and the size of the code before and after the optimisation are
+ * kept for report().
+ */
+
+package VC.CodeGen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+public final class Peephole {
+
+  // A rule rewrites the instructions starting at code[i] if they match
+  // its pattern, and returns true if it did.
+  private abstract class Rule {
+    final String name, description;
+    boolean enabled = true;
+    int hits;
+
+    Rule(String name, String description) {
+      this.name = name;
+      this.description = description;
+    }
+
+    abstract boolean apply(List<Instruction> code, int i);
+  }
+
+  private ArrayList<Rule> rules;
+
+  // the number of branches to each label and the local variables of
+  // the method being optimised
+  private IdentityHashMap<Label, Integer> uses;
+  private List<CodeBuffer.LocalVar> vars;
+
+  private int methods, bytesBefore, bytesAfter;
+
+  public Peephole() {
+    rules = new ArrayList<Rule>();
+
+    rules.add(new Rule("isub", "ineg; iadd => isub") {
+      boolean apply(List<Instruction> code, int i) {
+        return fuse(code, i, JVM.INEG, JVM.IADD, JVM.ISUB);
+      }
+    });
+
+    rules.add(new Rule("fsub", "fneg; fadd => fsub") {
+      boolean apply(List<Instruction> code, int i) {
+        return fuse(code, i, JVM.FNEG, JVM.FADD, JVM.FSUB);
+      }
+    });
+
+    rules.add(new Rule("zero-cmp", "iconst_0; if_icmp<c> => if<c>") {
+      boolean apply(List<Instruction> code, int i) {
+        if (!is(code, i, JVM.ICONST_0) || i + 1 >= code.size())
+          return false;
+        Instruction branch = code.get(i + 1);
+        if (branch.opcode < JVM.IF_ICMPEQ || branch.opcode > JVM.IF_ICMPLE)
+          return false;
+        code.remove(i);
+        branch.opcode = branch.opcode - JVM.IF_ICMPEQ + JVM.IFEQ;
+        return true;
+      }
+    });
+
+    // The value of !x, i.e., x == 0 on a boolean x, is computed as
+    //   ifeq L1; iconst_0; goto L2; L1: iconst_1; L2:
+    // The same code compares an int with 0, hence the rule applies only
+    // if x is known to be 0 or 1.
+    rules.add(new Rule("not", "!x => iconst_1; ixor") {
+      boolean apply(List<Instruction> code, int i) {
+        if (!(is(code, i, JVM.IFEQ) && is(code, i + 1, JVM.ICONST_0)
+              && is(code, i + 2, JVM.GOTO) && placed(code, i + 3, code.get(i).label)
+              && is(code, i + 4, JVM.ICONST_1) && placed(code, i + 5, code.get(i + 2).label)))
+          return false;
+        if (uses(code.get(i).label) != 1 || uses(code.get(i + 2).label) != 1
+            || !isBoolean(code, i))
+          return false;
+        code.subList(i + 2, i + 6).clear();
+        code.set(i, new Instruction(JVM.ICONST_1));
+        code.set(i + 1, new Instruction(JVM.IXOR));
+        return true;
+      }
+    });
+
+    rules.add(new Rule("goto-next", "goto to the next instruction") {
+      boolean apply(List<Instruction> code, int i) {
+        if (!is(code, i, JVM.GOTO))
+          return false;
+        for (int j = i + 1; j < code.size() && code.get(j).isLabel(); j++)
+          if (code.get(j).label == code.get(i).label) {
+            code.remove(i);
+            return true;
+          }
+        return false;
+      }
+    });
+
+    rules.add(new Rule("store-load", "store x; load x => dup; store x") {
+      boolean apply(List<Instruction> code, int i) {
+        if (i + 1 >= code.size())
+          return false;
+        Instruction store = code.get(i), load = code.get(i + 1);
+        int s = storeKind(store.opcode), l = loadKind(load.opcode);
+        if (s < 0 || l < 0 || s != l || local(store) != local(load))
+          return false;
+        code.set(i, new Instruction(JVM.DUP));
+        code.set(i + 1, store);
+        return true;
+      }
+    });
+
+    // x * 2^k is x << k, and x * 1 is x. The constant may also be the
+    // first operand if the second is pushed by a single instruction.
+    rules.add(new Rule("mul-shift", "x * 2^k => x << k") {
+      boolean apply(List<Instruction> code, int i) {
+        int k = powerOfTwo(code, i);
+        if (k >= 0 && is(code, i + 1, JVM.IMUL)) {
+          code.remove(i + 1);
+          code.remove(i);
+        } else if (k >= 0 && i + 2 < code.size() && isPush(code.get(i + 1))
+                   && is(code, i + 2, JVM.IMUL)) {
+          code.remove(i + 2);
+          code.remove(i);
+          i++;
+        } else {
+          return false;
+        }
+        if (k > 0)
+          code.addAll(i, Arrays.asList(JVM.iconst(k), new Instruction(JVM.ISHL)));
+        return true;
+      }
+    });
+
+    // x / 2^k rounds towards 0, whereas x >> k rounds down, so 2^k - 1
+    // is added to a negative x first:
+    //   (x + ((x >> 31) >>> (32 - k))) >> k
+    rules.add(new Rule("div-shift", "x / 2^k => shifts") {
+      boolean apply(List<Instruction> code, int i) {
+        int k = powerOfTwo(code, i);
+        if (k < 0 || !is(code, i + 1, JVM.IDIV))
+          return false;
+        code.subList(i, i + 2).clear();
+        if (k == 0)
+          return true;
+        ArrayList<Instruction> shifts = new ArrayList<Instruction>();
+        shifts.add(new Instruction(JVM.DUP));
+        if (k > 1) {
+          shifts.add(JVM.iconst(31));
+          shifts.add(new Instruction(JVM.ISHR));
+        }
+        shifts.add(JVM.iconst(32 - k));
+        shifts.add(new Instruction(JVM.IUSHR));
+        shifts.add(new Instruction(JVM.IADD));
+        shifts.add(JVM.iconst(k));
+        shifts.add(new Instruction(JVM.ISHR));
+        code.addAll(i, shifts);
+        return true;
+      }
+    });
+
+    // A function returning a value ends with a nop in case its code can
+    // fall off the end. The nop is needed only if it can be reached.
+    rules.add(new Rule("trailing-nop", "unreachable nop at the end") {
+      boolean apply(List<Instruction> code, int i) {
+        if (i != code.size() - 1 || !is(code, i, JVM.NOP))
+          return false;
+        int j = i - 1;
+        for (; j >= 0 && code.get(j).isLabel(); j--)
+          if (uses(code.get(j).label) > 0)
+            return false;
+        if (j < 0 || !JVM.isUnconditionalTransfer(code.get(j).opcode))
+          return false;
+        code.remove(i);
+        return true;
+      }
+    });
+  }
+
+  // Disables the rule of the given name. Returns false if there is no
+  // such rule.
+  public boolean disable(String name) {
+    for (Rule r : rules)
+      if (r.name.equals(name)) {
+        r.enabled = false;
+        return true;
+      }
+    return false;
+  }
+
+  public void optimise(CodeBuffer m) {
+    List<Instruction> code = m.instructions();
+    vars = m.vars();
+    int before = new Assembler(null).codeSize(m);
+
+    boolean optimised = false;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      countUses(code);
+      for (int i = 0; i < code.size(); i++)
+        for (Rule r : rules)
+          if (r.enabled && r.apply(code, i)) {
+            r.hits++;
+            changed = optimised = true;
+            countUses(code);
+          }
+    }
+    if (optimised)
+      m.maxStack = maxStack(m);
+
+    methods++;
+    bytesBefore += before;
+    bytesAfter += new Assembler(null).codeSize(m);
+  }
+
+  public void report() {
+    System.out.println("Peephole optimisation:");
+    for (Rule r : rules)
+      System.out.println("  " + pad(r.name, 14) + pad(r.description, 34)
+                         + (r.enabled ? r.hits + " hits" : "disabled"));
+    System.out.println("  code size of " + methods + " methods: "
+                       + bytesBefore + " -> " + bytesAfter + " bytes");
+  }
+
+  private static String pad(String s, int width) {
+    StringBuffer sb = new StringBuffer(s);
+    while (sb.length() < width)
+      sb.append(' ');
+    return sb.toString();
+  }
+
+  // Patterns
+
+  private static boolean is(List<Instruction> code, int i, int opcode) {
+    return i < code.size() && code.get(i).opcode == opcode;
+  }
+
+  private static boolean placed(List<Instruction> code, int i, Label label) {
+    return is(code, i, JVM.LABEL) && code.get(i).label == label;
+  }
+
+  // first; second => fused
+  private static boolean fuse(List<Instruction> code, int i, int first, int second, int fused) {
+    if (!is(code, i, first) || !is(code, i + 1, second))
+      return false;
+    code.set(i, new Instruction(fused));
+    code.remove(i + 1);
+    return true;
+  }
+
+  // k if code[i] pushes the int constant 2^k, and -1 otherwise
+  private static int powerOfTwo(List<Instruction> code, int i) {
+    Integer c = i < code.size() ? JVM.intConstant(code.get(i)) : null;
+    if (c == null || c <= 0 || Integer.bitCount(c) != 1)
+      return -1;
+    return Integer.numberOfTrailingZeros(c);
+  }
+
+  // true if inst only pushes a value, e.g., a load or a constant
+  private static boolean isPush(Instruction inst) {
+    return !inst.isLabel() && JVM.pops(inst) == 0 && JVM.pushes(inst) == 1;
+  }
+
+  // true if the value on the top of the stack before code[i] is known
+  // to be 0 or 1, i.e., a boolean
+  private boolean isBoolean(List<Instruction> code, int i) {
+    if (i == 0)
+      return false;
+    Instruction prev = code.get(i - 1);
+    switch (prev.opcode) {
+    case JVM.ICONST_0: case JVM.ICONST_1:
+    case JVM.BALOAD:  // the only byte arrays are boolean arrays
+      return true;
+    case JVM.IXOR:    // iconst_1; ixor of a boolean
+      return i >= 2 && is(code, i - 2, JVM.ICONST_1);
+    case JVM.GETSTATIC:
+      return prev.member.descriptor.equals("Z");
+    case JVM.INVOKEVIRTUAL: case JVM.INVOKESTATIC:
+      return prev.member.descriptor.endsWith(")Z");
+    case JVM.LABEL:
+      // the end of "iconst_<b>; goto L2; L1: iconst_<b>; L2:", as
+      // emitted for comparisons, && and ||
+      return i >= 5 && isBooleanConstant(code, i - 2) && is(code, i - 3, JVM.LABEL)
+             && is(code, i - 4, JVM.GOTO) && code.get(i - 4).label == prev.label
+             && isBooleanConstant(code, i - 5);
+    default:
+      int kind = loadKind(prev.opcode);
+      if (kind != JVM.ILOAD)
+        return false;
+      // every variable in this slot must be a boolean
+      boolean found = false;
+      for (CodeBuffer.LocalVar v : vars) {
+        if (v.index != local(prev))
+          continue;
+        if (!v.descriptor.equals("Z"))
+          return false;
+        found = true;
+      }
+      return found;
+    }
+  }
+
+  private static boolean isBooleanConstant(List<Instruction> code, int i) {
+    return is(code, i, JVM.ICONST_0) || is(code, i, JVM.ICONST_1);
+  }
+
+  private void countUses(List<Instruction> code) {
+    uses = new IdentityHashMap<Label, Integer>();
+    for (Instruction inst : code)
+      if (JVM.isBranch(inst.opcode))
+        uses.put(inst.label, uses(inst.label) + 1);
+  }
+
+  private int uses(Label label) {
+    Integer n = uses.get(label);
+    return n == null ? 0 : n;
+  }
+
+  // ILOAD, FLOAD or ALOAD if opcode loads a local variable; -1 otherwise
+  private static int loadKind(int opcode) {
+    if (opcode == JVM.ILOAD || opcode == JVM.FLOAD || opcode == JVM.ALOAD)
+      return opcode;
+    if (JVM.ILOAD_0 <= opcode && opcode <= JVM.ILOAD_3)
+      return JVM.ILOAD;
+    if (JVM.FLOAD_0 <= opcode && opcode <= JVM.FLOAD_3)
+      return JVM.FLOAD;
+    if (JVM.ALOAD_0 <= opcode && opcode <= JVM.ALOAD_3)
+      return JVM.ALOAD;
+    return -1;
+  }
+
+  // the same as loadKind for the stores, which are mapped to their loads
+  private static int storeKind(int opcode) {
+    if (opcode == JVM.ISTORE || (JVM.ISTORE_0 <= opcode && opcode <= JVM.ISTORE_3))
+      return JVM.ILOAD;
+    if (opcode == JVM.FSTORE || (JVM.FSTORE_0 <= opcode && opcode <= JVM.FSTORE_3))
+      return JVM.FLOAD;
+    if (opcode == JVM.ASTORE || (JVM.ASTORE_0 <= opcode && opcode <= JVM.ASTORE_3))
+      return JVM.ALOAD;
+    return -1;
+  }
+
+  private static int local(Instruction inst) {
+    return JVM.localIndex(inst);
+  }
+
+  // The maximum depth of the operand stack of m, found by following
+  // every path from the start of the code.
+  static int maxStack(CodeBuffer m) {
+    List<Instruction> code = m.instructions();
+    IdentityHashMap<Label, Integer> at = new IdentityHashMap<Label, Integer>();
+    for (int i = 0; i < code.size(); i++)
+      if (code.get(i).isLabel())
+        at.put(code.get(i).label, i);
+
+    int[] depth = new int[code.size()];
+    Arrays.fill(depth, -1);
+    ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+    int max = 0;
+    if (code.size() > 0) {
+      depth[0] = 0;
+      work.push(0);
+    }
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      Instruction inst = code.get(i);
+      int d = depth[i] - JVM.pops(inst);
+      max = Math.max(max, d + JVM.pushes(inst));
+      d += JVM.pushes(inst);
+      if (JVM.isBranch(inst.opcode))
+        flow(depth, work, at.get(inst.label), d);
+      if (!JVM.isUnconditionalTransfer(inst.opcode) && i + 1 < code.size())
+        flow(depth, work, i + 1, d);
+    }
+    return max;
+  }
+
+  private static void flow(int[] depth, ArrayDeque<Integer> work, int i, int d) {
+    if (depth[i] < 0) {
+      depth[i] = d;
+      work.push(i);
+    }
+  }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * StackMaps.java
+ *
+ * Computes the stack map frames of a method: the types of its local
+ * variables and operand stack at each branch target, as required by the
+ * type-checking verifier for class files of version 50 and later.
+ *
+ * The types are those of VC: int (also used for boolean), float,
+ * String and the arrays of int, float and boolean, plus the class
+ * itself for this and vc$. A type is represented by its descriptor,
+ * with TOP for a local variable holding no usable value, e.g., one
+ * assigned different types on the paths joining at a branch target.
+ *
+ * See Section 4.10.1, The JVM spec, Java SE 8 ed.
+ */
+
+package VC.CodeGen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+final class StackMaps {
+
+  static final String TOP = "T", INT = "I", FLOAT = "F";
+
+  // The types of the local variables and the operand stack at an
+  // instruction
+  static final class TypeState {
+    final String[] locals;
+    final ArrayList<String> stack;
+
+    TypeState(int maxLocals) {
+      locals = new String[maxLocals];
+      Arrays.fill(locals, TOP);
+      stack = new ArrayList<String>();
+    }
+
+    TypeState(TypeState s) {
+      locals = s.locals.clone();
+      stack = new ArrayList<String>(s.stack);
+    }
+
+    // the local variables without the trailing TOPs
+    List<String> usedLocals() {
+      int n = locals.length;
+      while (n > 0 && locals[n - 1].equals(TOP))
+        n--;
+      return Arrays.asList(locals).subList(0, n);
+    }
+  }
+
+  // A stack map frame at the instruction inst
+  static final class Entry {
+    final Instruction inst;
+    final TypeState state;
+
+    Entry(Instruction inst, TypeState state) {
+      this.inst = inst;
+      this.state = state;
+    }
+  }
+
+  private StackMaps() {
+  }
+
+  // Removes the instructions of m that cannot be reached from its start,
+  // keeping the labels. The verifier requires a frame after every
+  // unconditional transfer, which unreachable code could not be given.
+  // Returns the number of instructions removed.
+
+  static int removeUnreachable(CodeBuffer m) {
+    List<Instruction> code = m.instructions();
+    boolean[] reached = new boolean[code.size()];
+    IdentityHashMap<Label, Integer> at = labels(code);
+    ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+    if (code.size() > 0) {
+      reached[0] = true;
+      work.push(0);
+    }
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      for (int s : successors(code, at, i))
+        if (!reached[s]) {
+          reached[s] = true;
+          work.push(s);
+        }
+    }
+
+    ArrayList<Instruction> live = new ArrayList<Instruction>();
+    for (int i = 0; i < code.size(); i++)
+      if (reached[i] || code.get(i).isLabel())
+        live.add(code.get(i));
+    int removed = code.size() - live.size();
+    code.clear();
+    code.addAll(live);
+    return removed;
+  }
+
+  // The frames of m, in the order of the code, one for each instruction
+  // that is the target of a branch. classname is the class of this.
+  // A conditional branch in wide is assembled into the opposite branch
+  // around a goto_w, so the instruction after it is a target too.
+  // PRE: all the code of m is reachable.
+
+  static List<Entry> compute(String classname, CodeBuffer m, Set<Instruction> wide) {
+    List<Instruction> code = m.instructions();
+    IdentityHashMap<Label, Integer> at = labels(code);
+    TypeState[] in = states(classname, m);
+
+    // the instructions following the labels that are branch targets
+    boolean[] target = new boolean[code.size()];
+    for (int k = 0; k < code.size(); k++) {
+      Instruction inst = code.get(k);
+      if (JVM.isBranch(inst.opcode))
+        mark(target, code, at.get(inst.label));
+      if (JVM.isConditionalBranch(inst.opcode) && wide.contains(inst))
+        mark(target, code, k + 1);
+    }
+    ArrayList<Entry> frames = new ArrayList<Entry>();
+    for (int i = 0; i < code.size(); i++)
+      if (target[i])
+        frames.add(new Entry(code.get(i), in[i]));
+    return frames;
+  }
+
+  // The types before each instruction of m; null for an unreachable
+  // instruction.
+
+  static TypeState[] states(String classname, CodeBuffer m) {
+    List<Instruction> code = m.instructions();
+    IdentityHashMap<Label, Integer> at = labels(code);
+    TypeState[] in = new TypeState[code.size()];
+    ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+    if (code.size() > 0) {
+      in[0] = initial(classname, m);
+      work.push(0);
+    }
+    while (!work.isEmpty()) {
+      int i = work.pop();
+      TypeState s = new TypeState(in[i]);
+      execute(code.get(i), s);
+      for (int succ : successors(code, at, i))
+        if (in[succ] == null) {
+          in[succ] = new TypeState(s);
+          work.push(succ);
+        } else if (merge(in[succ], s)) {
+          work.push(succ);
+        }
+    }
+    return in;
+  }
+
+  // marks the first instruction from code[i] onwards that is not a label
+  private static void mark(boolean[] target, List<Instruction> code, int i) {
+    while (i < code.size() && code.get(i).isLabel())
+      i++;
+    if (i < code.size())
+      target[i] = true;
+  }
+
+  // the frame at the start of m, given by its descriptor
+  static TypeState initial(String classname, CodeBuffer m) {
+    TypeState s = new TypeState(m.maxLocals);
+    int index = 0;
+    if ((m.access & JVM.ACC_STATIC) == 0)
+      s.locals[index++] = "L" + classname + ";";
+    for (String t : parameterTypes(m.descriptor))
+      s.locals[index++] = t;
+    return s;
+  }
+
+  // Merges the state s flowing into a join point into the state there.
+  // Returns true if the state there has changed.
+  private static boolean merge(TypeState into, TypeState s) {
+    if (into.stack.size() != s.stack.size())
+      throw new IllegalStateException("operand stacks of different depths at a join point");
+    boolean changed = false;
+    for (int k = 0; k < into.locals.length; k++)
+      if (!into.locals[k].equals(s.locals[k]) && !into.locals[k].equals(TOP)) {
+        into.locals[k] = TOP;
+        changed = true;
+      }
+    for (int k = 0; k < into.stack.size(); k++)
+      if (!into.stack.get(k).equals(s.stack.get(k)))
+        throw new IllegalStateException("operand stacks of different types at a join point");
+    return changed;
+  }
+
+  // Applies the effect of inst on the types in s.
+  private static void execute(Instruction inst, TypeState s) {
+    ArrayList<String> stack = s.stack;
+    int op = inst.opcode;
+    switch (op) {
+    case JVM.LABEL: case JVM.NOP: case JVM.GOTO:
+    case JVM.INEG: case JVM.FNEG:
+      break;
+    case JVM.ICONST_M1: case JVM.ICONST_0: case JVM.ICONST_1: case JVM.ICONST_2:
+    case JVM.ICONST_3: case JVM.ICONST_4: case JVM.ICONST_5:
+    case JVM.BIPUSH: case JVM.SIPUSH:
+      stack.add(INT);
+      break;
+    case JVM.FCONST_0: case JVM.FCONST_1: case JVM.FCONST_2:
+      stack.add(FLOAT);
+      break;
+    case JVM.LDC:
+      stack.add(inst.constant instanceof String ? "Ljava/lang/String;"
+                : inst.constant instanceof Float ? FLOAT : INT);
+      break;
+    case JVM.ILOAD: case JVM.ILOAD_0: case JVM.ILOAD_1: case JVM.ILOAD_2: case JVM.ILOAD_3:
+      stack.add(INT);
+      break;
+    case JVM.FLOAD: case JVM.FLOAD_0: case JVM.FLOAD_1: case JVM.FLOAD_2: case JVM.FLOAD_3:
+      stack.add(FLOAT);
+      break;
+    case JVM.ALOAD:
+      stack.add(s.locals[inst.operand]);
+      break;
+    case JVM.ALOAD_0: case JVM.ALOAD_1: case JVM.ALOAD_2: case JVM.ALOAD_3:
+      stack.add(s.locals[op - JVM.ALOAD_0]);
+      break;
+    case JVM.ISTORE: case JVM.FSTORE: case JVM.ASTORE:
+      s.locals[inst.operand] = pop(stack);
+      break;
+    case JVM.ISTORE_0: case JVM.ISTORE_1: case JVM.ISTORE_2: case JVM.ISTORE_3:
+      s.locals[op - JVM.ISTORE_0] = pop(stack);
+      break;
+    case JVM.FSTORE_0: case JVM.FSTORE_1: case JVM.FSTORE_2: case JVM.FSTORE_3:
+      s.locals[op - JVM.FSTORE_0] = pop(stack);
+      break;
+    case JVM.ASTORE_0: case JVM.ASTORE_1: case JVM.ASTORE_2: case JVM.ASTORE_3:
+      s.locals[op - JVM.ASTORE_0] = pop(stack);
+      break;
+    case JVM.IALOAD: case JVM.BALOAD:
+      pop(stack, 2);
+      stack.add(INT);
+      break;
+    case JVM.FALOAD:
+      pop(stack, 2);
+      stack.add(FLOAT);
+      break;
+    case JVM.IASTORE: case JVM.FASTORE: case JVM.BASTORE:
+      pop(stack, 3);
+      break;
+    case JVM.POP:
+      pop(stack);
+      break;
+    case JVM.DUP:
+      stack.add(stack.get(stack.size() - 1));
+      break;
+    case JVM.DUP_X2: {
+      String v1 = pop(stack), v2 = pop(stack), v3 = pop(stack);
+      stack.add(v1);
+      stack.add(v3);
+      stack.add(v2);
+      stack.add(v1);
+      break;
+    }
+    case JVM.IADD: case JVM.ISUB: case JVM.IMUL: case JVM.IDIV: case JVM.IREM:
+    case JVM.ISHL: case JVM.ISHR: case JVM.IUSHR: case JVM.IAND: case JVM.IOR: case JVM.IXOR:
+    case JVM.FCMPL: case JVM.FCMPG:
+      pop(stack, 2);
+      stack.add(INT);
+      break;
+    case JVM.FADD: case JVM.FSUB: case JVM.FMUL: case JVM.FDIV:
+      pop(stack, 2);
+      stack.add(FLOAT);
+      break;
+    case JVM.I2F:
+      pop(stack);
+      stack.add(FLOAT);
+      break;
+    case JVM.GETSTATIC:
+      stack.add(type(inst.member.descriptor));
+      break;
+    case JVM.PUTSTATIC:
+      pop(stack);
+      break;
+    case JVM.INVOKEVIRTUAL: case JVM.INVOKESPECIAL: case JVM.INVOKESTATIC: {
+      pop(stack, JVM.pops(inst));
+      String d = inst.member.descriptor;
+      if (inst.member.returnsValue())
+        stack.add(type(d.substring(d.indexOf(')') + 1)));
+      break;
+    }
+    case JVM.NEW:
+      // not initialised until its <init>, but never live at a branch
+      stack.add("L" + inst.className + ";");
+      break;
+    case JVM.NEWARRAY:
+      pop(stack);
+      stack.add(inst.operand == JVM.T_INT ? "[I" : inst.operand == JVM.T_FLOAT ? "[F" : "[Z");
+      break;
+    default:
+      if (JVM.isBranch(op) || JVM.isUnconditionalTransfer(op)) {
+        pop(stack, JVM.pops(inst));
+        break;
+      }
+      throw new IllegalArgumentException("no stack map rule for " + inst);
+    }
+  }
+
+  private static String pop(ArrayList<String> stack) {
+    return stack.remove(stack.size() - 1);
+  }
+
+  private static void pop(ArrayList<String> stack, int n) {
+    for (int k = 0; k < n; k++)
+      pop(stack);
+  }
+
+  // the verification type of a field descriptor: booleans are ints
+  static String type(String descriptor) {
+    switch (descriptor.charAt(0)) {
+    case 'Z': case 'B': case 'C': case 'S': case 'I':
+      return INT;
+    case 'F':
+      return FLOAT;
+    default:
+      return descriptor;
+    }
+  }
+
+  private static List<String> parameterTypes(String descriptor) {
+    ArrayList<String> types = new ArrayList<String>();
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      int start = i;
+      while (descriptor.charAt(i) == '[')
+        i++;
+      if (descriptor.charAt(i) == 'L')
+        i = descriptor.indexOf(';', i);
+      i++;
+      types.add(type(descriptor.substring(start, i)));
+    }
+    return types;
+  }
+
+  private static IdentityHashMap<Label, Integer> labels(List<Instruction> code) {
+    IdentityHashMap<Label, Integer> at = new IdentityHashMap<Label, Integer>();
+    for (int i = 0; i < code.size(); i++)
+      if (code.get(i).isLabel())
+        at.put(code.get(i).label, i);
+    return at;
+  }
+
+  private static List<Integer> successors(List<Instruction> code, IdentityHashMap<Label, Integer> at, int i) {
+    ArrayList<Integer> succ = new ArrayList<Integer>(2);
+    Instruction inst = code.get(i);
+    if (JVM.isBranch(inst.opcode))
+      succ.add(at.get(inst.label));
+    if (!JVM.isUnconditionalTransfer(inst.opcode) && i + 1 < code.size())
+      succ.add(i + 1);
+    return succ;
+  }
+
+}
@@ -0,0 +1 @@
+826200
@@ -0,0 +1,3 @@
+Exception in thread "main" java.lang.ExceptionInInitializerError
+Caused by: java.lang.ArithmeticException: / by zero
+	at t5.<clinit>(Unknown Source)
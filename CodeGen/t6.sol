@@ -0,0 +1,6 @@
+18
+2007005
+640
+36
+3
+3
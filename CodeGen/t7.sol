@@ -0,0 +1,2 @@
+012
+false
@@ -0,0 +1,3 @@
+-1773681434
+-1267714232
+550.0
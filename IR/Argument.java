@@ -0,0 +1,23 @@
+/*
+ * Argument.java
+ *
+ * An argument of the method, including this, in the local variable
+ * slot where the JVM passes it.
+ */
+
+package VC.IR;
+
+public final class Argument extends Value {
+
+  public final int slot;
+
+  Argument(int slot, String type) {
+    super(type);
+    this.slot = slot;
+  }
+
+  public String name() {
+    return "a" + slot;
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Block.java
+ *
+ * A basic block of the IR: its phis, then its other instructions, the
+ * last of which, a branch or a return, is its terminator. There is at
+ * most one edge from a block to another, so a phi has one operand for
+ * each predecessor.
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+
+public final class Block {
+
+  public final ArrayList<Instr> phis = new ArrayList<Instr>();
+  public final ArrayList<Instr> instrs = new ArrayList<Instr>();
+  public final ArrayList<Block> preds = new ArrayList<Block>();
+  public final ArrayList<Block> succs = new ArrayList<Block>();
+
+  int id;
+
+  Block(int id) {
+    this.id = id;
+  }
+
+  public Instr terminator() {
+    return instrs.isEmpty() ? null : instrs.get(instrs.size() - 1);
+  }
+
+  public void append(Instr inst) {
+    inst.block = this;
+    instrs.add(inst);
+  }
+
+  public void insertBeforeTerminator(Instr inst) {
+    inst.block = this;
+    instrs.add(instrs.size() - 1, inst);
+  }
+
+  public void addPhi(Instr phi) {
+    phi.block = this;
+    phis.add(phi);
+  }
+
+  // Removes inst, which must be unused, from the block.
+  public void remove(Instr inst) {
+    if (inst.isPhi())
+      phis.remove(inst);
+    else
+      instrs.remove(inst);
+    inst.dropOperands();
+    inst.block = null;
+  }
+
+  public String name() {
+    return "B" + id;
+  }
+
+  public String toString() {
+    return name();
+  }
+
+}
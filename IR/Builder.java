@@ -0,0 +1,470 @@
+/*
+ * Builder.java
+ *
+ * Builds the IR of a method from the code of the Emitter, which has
+ * already lowered the checked AST: the loops, the conditions, the
+ * inlined calls and the promoted globals of a function are all there,
+ * and the IR can be optimised without redoing that work.
+ *
+ * The code is split into basic blocks, and the local variables and the
+ * entries of the operand stack at the ends of the blocks become values
+ * in SSA form by the algorithm of
+ *
+ *   M Braun, S Buchwald, S Hack, R Leissa, C Mallon and A Zwinkau,
+ *   Simple and Efficient Construction of Static Single Assignment Form,
+ *   CC 2013.
+ *
+ * The blocks are filled in reverse postorder, the value of a variable
+ * being looked up from the end of a block backwards through its
+ * predecessors. A phi is placed where the lookup meets a join and is
+ * removed again if it has one value apart from itself. A block is
+ * sealed, i.e., its phis get their operands, once all of its
+ * predecessors have been filled; until then, its phis are incomplete.
+ *
+ * The variables are the slots of the local variables, followed by the
+ * entries of the operand stack, which may hold values across blocks,
+ * e.g., the operands of a + (b ? 1 : 0) or of a call inlined in an
+ * expression. Code that cannot be reached is dropped.
+ *
+ * An UnsupportedOperationException is thrown for code the IR does not
+ * model.
+ */
+
+package VC.IR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import VC.CodeGen.CodeBuffer;
+import VC.CodeGen.Instruction;
+import VC.CodeGen.JVM;
+import VC.CodeGen.Label;
+
+final class Builder {
+
+  private Function f;
+  private List<Instruction> code;
+  private List<CodeBuffer.LocalVar> vars;
+  private int maxLocals;
+
+  // the position of each label in the code
+  private IdentityHashMap<Label, Integer> at;
+
+  // the instructions starting a block, the block starting at each that
+  // can be reached, and the depth of the operand stack on entry to it
+  private boolean[] leader;
+  private Block[] blockAt;
+  private HashMap<Block, Integer> start, depth;
+
+  private HashMap<Block, HashMap<Integer, Value>> currentDef;
+  private HashMap<Block, HashMap<Integer, Instr>> incompletePhis;
+  private HashSet<Block> sealed, filled;
+
+  // the values replacing the trivial phis removed
+  private IdentityHashMap<Instr, Value> replaced;
+
+  static Function build(String classname, CodeBuffer m) {
+    return new Builder().run(classname, m);
+  }
+
+  private Function run(String classname, CodeBuffer m) {
+    f = new Function(classname, m.name, m.descriptor, m.access);
+    code = m.instructions();
+    vars = m.vars();
+    maxLocals = m.maxLocals;
+    currentDef = new HashMap<Block, HashMap<Integer, Value>>();
+    incompletePhis = new HashMap<Block, HashMap<Integer, Instr>>();
+    sealed = new HashSet<Block>();
+    filled = new HashSet<Block>();
+    replaced = new IdentityHashMap<Instr, Value>();
+
+    Block entry = f.newBlock();
+    buildGraph(entry);
+    defineArguments(entry);
+    entry.append(new Instr(JVM.GOTO, null));
+    filled.add(entry);
+    sealed.add(entry);
+
+    for (Block b : f.rpo()) {
+      if (b == entry)
+        continue;
+      trySeal(b);
+      fill(b);
+      for (Block s : b.succs)
+        trySeal(s);
+    }
+    for (Block b : f.blocks)
+      trySeal(b);
+    resolveTypes();
+    return f;
+  }
+
+  // The control flow graph
+
+  private void buildGraph(Block entry) {
+    int n = code.size();
+    at = new IdentityHashMap<Label, Integer>();
+    for (int i = 0; i < n; i++)
+      if (code.get(i).isLabel())
+        at.put(code.get(i).label, i);
+
+    leader = new boolean[n + 1];
+    leader[0] = true;
+    for (int i = 0; i < n; i++) {
+      int op = code.get(i).opcode;
+      if (JVM.isBranch(op))
+        leader[at.get(code.get(i).label)] = true;
+      if (JVM.isBranch(op) || JVM.isReturn(op))
+        leader[i + 1] = true;
+    }
+
+    // the successors of the block starting at each leader
+    HashMap<Integer, List<Integer>> succs = new HashMap<Integer, List<Integer>>();
+    for (int s = 0; s < n; ) {
+      int e = s + 1;
+      while (e < n && !leader[e])
+        e++;
+      ArrayList<Integer> next = new ArrayList<Integer>(2);
+      Instruction last = code.get(e - 1);
+      if (JVM.isBranch(last.opcode))
+        next.add(at.get(last.label));
+      if (!JVM.isUnconditionalTransfer(last.opcode) && e < n && !next.contains(e))
+        next.add(e);
+      succs.put(s, next);
+      s = e;
+    }
+
+    // the blocks reachable from the first, in the order of the code
+    boolean[] reached = new boolean[n + 1];
+    ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+    if (n > 0) {
+      reached[0] = true;
+      work.push(0);
+    }
+    while (!work.isEmpty())
+      for (int t : succs.get(work.pop()))
+        if (!reached[t]) {
+          reached[t] = true;
+          work.push(t);
+        }
+    blockAt = new Block[n];
+    start = new HashMap<Block, Integer>();
+    for (int i = 0; i < n; i++)
+      if (leader[i] && reached[i]) {
+        blockAt[i] = f.newBlock();
+        start.put(blockAt[i], i);
+      }
+    if (n > 0)
+      Function.addEdge(entry, blockAt[0]);
+    for (int i = 0; i < n; i++)
+      if (blockAt[i] != null)
+        for (int t : succs.get(i))
+          Function.addEdge(blockAt[i], blockAt[t]);
+
+    // the depth of the operand stack on entry to each block
+    depth = new HashMap<Block, Integer>();
+    if (n > 0)
+      depth.put(blockAt[0], 0);
+    for (Block b : f.rpo()) {
+      if (b == entry)
+        continue;
+      int d = depth.get(b);
+      for (int i = start.get(b); i < n && (i == start.get(b) || !leader[i]); i++)
+        d += JVM.stackEffect(code.get(i));
+      for (Block s : b.succs)
+        if (!depth.containsKey(s))
+          depth.put(s, d);
+    }
+  }
+
+  private void defineArguments(Block entry) {
+    int slot = 0;
+    if ((f.access & JVM.ACC_STATIC) == 0)
+      defineArgument(entry, slot++, "L" + f.classname + ";");
+    String d = f.descriptor;
+    for (int i = 1; d.charAt(i) != ')'; ) {
+      int j = i;
+      while (d.charAt(j) == '[')
+        j++;
+      j = d.charAt(j) == 'L' ? d.indexOf(';', j) + 1 : j + 1;
+      String type = d.substring(i, j);
+      defineArgument(entry, slot++, type.equals("Z") ? "I" : type);
+      i = j;
+    }
+    f.argumentSlots = slot;
+  }
+
+  private void defineArgument(Block entry, int slot, String type) {
+    Argument a = new Argument(slot, type);
+    f.arguments.add(a);
+    writeVariable(slot, entry, a);
+    nameValue(a, variableAt(slot, 0));
+  }
+
+  // Filling a block
+
+  private void fill(Block b) {
+    ArrayList<Value> stack = new ArrayList<Value>();
+    for (int k = 0; k < depth.get(b); k++)
+      stack.add(readVariable(maxLocals + k, b));
+
+    int i = start.get(b);
+    for (; i < code.size() && (i == start.get(b) || !leader[i]); i++) {
+      Instruction inst = code.get(i);
+      int op = inst.opcode;
+      Integer c = JVM.intConstant(inst);
+      if (c != null) {
+        stack.add(Constant.of(c.intValue()));
+      } else if (JVM.FCONST_0 <= op && op <= JVM.FCONST_2) {
+        stack.add(Constant.of((float) (op - JVM.FCONST_0)));
+      } else if (op == JVM.LDC) {
+        stack.add(Constant.of(inst.constant));
+      } else if (JVM.isLoad(op)) {
+        stack.add(readVariable(JVM.localIndex(inst), b));
+      } else if (JVM.isStore(op)) {
+        Value v = pop(stack);
+        writeVariable(JVM.localIndex(inst), b, v);
+        nameValue(v, variableAt(JVM.localIndex(inst), i));
+      } else if (op == JVM.DUP) {
+        stack.add(stack.get(stack.size() - 1));
+      } else if (op == JVM.POP) {
+        pop(stack);
+      } else if (op == JVM.DUP_X2) {
+        Value v1 = pop(stack), v2 = pop(stack), v3 = pop(stack);
+        stack.addAll(Arrays.asList(v1, v3, v2, v1));
+      } else if (op == JVM.LABEL || op == JVM.NOP) {
+        // nothing
+      } else if (op == JVM.NEW) {
+        // new C; dup; invokespecial C/<init>()V
+        if (i + 2 >= code.size() || code.get(i + 1).opcode != JVM.DUP
+            || code.get(i + 2).opcode != JVM.INVOKESPECIAL
+            || !code.get(i + 2).member.descriptor.equals("()V"))
+          throw new UnsupportedOperationException("new without <init>");
+        Instr obj = new Instr(JVM.NEW, "L" + inst.className + ";");
+        obj.className = inst.className;
+        obj.member = code.get(i + 2).member;
+        b.append(obj);
+        stack.add(obj);
+        i += 2;
+      } else if (JVM.isBranch(op) || JVM.isReturn(op)) {
+        int operands = JVM.pops(inst);
+        Instr t = new Instr(op, null);
+        for (Value v : popAll(stack, operands))
+          t.addOperand(v);
+        // a conditional branch to the next block is no branch at all
+        if (JVM.isConditionalBranch(op) && b.succs.size() == 1) {
+          t.dropOperands();
+          t = new Instr(JVM.GOTO, null);
+        }
+        b.append(t);
+      } else {
+        b.append(instruction(inst, popAll(stack, JVM.pops(inst)), stack));
+      }
+    }
+    if (b.terminator() == null || !b.terminator().isTerminator())
+      b.append(new Instr(JVM.GOTO, null));
+
+    for (int k = 0; k < stack.size(); k++)
+      writeVariable(maxLocals + k, b, resolve(stack.get(k)));
+    filled.add(b);
+  }
+
+  // The instruction computing a value or having an effect.
+  private Instr instruction(Instruction inst, List<Value> operands, ArrayList<Value> stack) {
+    int op = inst.opcode;
+    String type;
+    switch (op) {
+    case JVM.IADD: case JVM.ISUB: case JVM.IMUL: case JVM.IDIV: case JVM.IREM: case JVM.INEG:
+    case JVM.ISHL: case JVM.ISHR: case JVM.IUSHR: case JVM.IAND: case JVM.IOR: case JVM.IXOR:
+    case JVM.FCMPL: case JVM.FCMPG: case JVM.IALOAD: case JVM.BALOAD:
+      type = "I";
+      break;
+    case JVM.FADD: case JVM.FSUB: case JVM.FMUL: case JVM.FDIV: case JVM.FNEG:
+    case JVM.I2F: case JVM.FALOAD:
+      type = "F";
+      break;
+    case JVM.IASTORE: case JVM.FASTORE: case JVM.BASTORE: case JVM.PUTSTATIC:
+      type = null;
+      break;
+    case JVM.GETSTATIC:
+      type = stackType(inst.member.descriptor);
+      break;
+    case JVM.INVOKESTATIC: case JVM.INVOKEVIRTUAL: case JVM.INVOKESPECIAL: {
+      String d = inst.member.descriptor;
+      type = d.endsWith(")V") ? null : stackType(d.substring(d.indexOf(')') + 1));
+      break;
+    }
+    case JVM.NEWARRAY:
+      type = inst.operand == JVM.T_INT ? "[I" : inst.operand == JVM.T_FLOAT ? "[F" : "[Z";
+      break;
+    default:
+      throw new UnsupportedOperationException(JVM.mnemonic(op));
+    }
+    Instr result = new Instr(op, type, operands.toArray(new Value[0]));
+    result.member = inst.member;
+    result.arrayType = inst.operand;
+    if (type != null)
+      stack.add(result);
+    return result;
+  }
+
+  // booleans are ints on the operand stack
+  private static String stackType(String descriptor) {
+    return descriptor.equals("Z") ? "I" : descriptor;
+  }
+
+  // The values on the stack are resolved as they are popped, since a
+  // phi pushed may have been removed meanwhile.
+  private Value pop(ArrayList<Value> stack) {
+    return resolve(stack.remove(stack.size() - 1));
+  }
+
+  // the top n values, the deepest first
+  private List<Value> popAll(ArrayList<Value> stack, int n) {
+    List<Value> top = stack.subList(stack.size() - n, stack.size());
+    ArrayList<Value> values = new ArrayList<Value>();
+    for (Value v : top)
+      values.add(resolve(v));
+    top.clear();
+    return values;
+  }
+
+  // SSA construction
+
+  private void writeVariable(int variable, Block b, Value v) {
+    HashMap<Integer, Value> defs = currentDef.get(b);
+    if (defs == null) {
+      defs = new HashMap<Integer, Value>();
+      currentDef.put(b, defs);
+    }
+    defs.put(variable, v);
+  }
+
+  private Value readVariable(int variable, Block b) {
+    HashMap<Integer, Value> defs = currentDef.get(b);
+    if (defs != null && defs.containsKey(variable))
+      return resolve(defs.get(variable));
+    return readVariableRecursive(variable, b);
+  }
+
+  private Value readVariableRecursive(int variable, Block b) {
+    Value v;
+    if (!sealed.contains(b)) {
+      Instr phi = newPhi(variable, b);
+      HashMap<Integer, Instr> incomplete = incompletePhis.get(b);
+      if (incomplete == null) {
+        incomplete = new HashMap<Integer, Instr>();
+        incompletePhis.put(b, incomplete);
+      }
+      incomplete.put(variable, phi);
+      v = phi;
+    } else if (b.preds.isEmpty()) {
+      v = Constant.UNDEF;
+    } else if (b.preds.size() == 1) {
+      v = readVariable(variable, b.preds.get(0));
+    } else {
+      Instr phi = newPhi(variable, b);
+      writeVariable(variable, b, phi);
+      v = addPhiOperands(variable, phi);
+    }
+    writeVariable(variable, b, v);
+    return v;
+  }
+
+  private Instr newPhi(int variable, Block b) {
+    Instr phi = new Instr(Instr.PHI, null);
+    b.addPhi(phi);
+    nameValue(phi, variableAt(variable, start.get(b)));
+    return phi;
+  }
+
+  // The local variables of the source
+
+  // The variable of the source in slot whose scope includes the
+  // instruction at i, or null.
+  private CodeBuffer.LocalVar variableAt(int slot, int i) {
+    for (CodeBuffer.LocalVar var : vars)
+      if (var.index == slot && at.containsKey(var.start) && at.containsKey(var.end)
+          && at.get(var.start) <= i && i < at.get(var.end))
+        return var;
+    return null;
+  }
+
+  private void nameValue(Value v, CodeBuffer.LocalVar var) {
+    if (var != null && !(v instanceof Constant) && !f.variables.containsKey(v))
+      f.variables.put(v, var);
+  }
+
+  private Value addPhiOperands(int variable, Instr phi) {
+    for (Block p : phi.block.preds)
+      phi.addOperand(readVariable(variable, p));
+    return tryRemoveTrivialPhi(phi);
+  }
+
+  // Replaces a phi whose operands are all the same value, or itself,
+  // by that value. The phis using it may become trivial in turn, but
+  // not those still incomplete, which lack the operands of some
+  // predecessors, e.g., while addPhiOperands is filling them in. The
+  // value itself may be such a phi, so what replaces it is returned.
+  private Value tryRemoveTrivialPhi(Instr phi) {
+    Value same = null;
+    for (Value op : phi.operands) {
+      if (op == phi || (same != null && same.equals(op)))
+        continue;
+      if (same != null)
+        return phi;
+      same = op;
+    }
+    if (same == null)
+      same = Constant.UNDEF;
+    ArrayList<Instr> users = new ArrayList<Instr>(phi.users);
+    users.remove(phi);
+    phi.replaceAllUsesWith(same);
+    phi.block.remove(phi);
+    replaced.put(phi, same);
+    for (Instr user : users)
+      if (user.isPhi() && user.block != null
+          && user.operandCount() == user.block.preds.size())
+        tryRemoveTrivialPhi(user);
+    return resolve(same);
+  }
+
+  private Value resolve(Value v) {
+    while (v instanceof Instr && replaced.containsKey(v))
+      v = replaced.get(v);
+    return v;
+  }
+
+  private void trySeal(Block b) {
+    if (sealed.contains(b) || !filled.containsAll(b.preds))
+      return;
+    HashMap<Integer, Instr> incomplete = incompletePhis.remove(b);
+    sealed.add(b);
+    if (incomplete != null)
+      for (int variable : incomplete.keySet())
+        addPhiOperands(variable, incomplete.get(variable));
+  }
+
+  // The type of each phi is that of its operands.
+  private void resolveTypes() {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Block b : f.blocks)
+        for (Instr phi : b.phis)
+          if (phi.type == null)
+            for (Value v : phi.operands)
+              if (v.type != null) {
+                phi.type = v.type;
+                changed = true;
+                break;
+              }
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Constant.java
+ *
+ * An int, float or String constant. Constants are compared by value,
+ * floats by their bits so that 0.0 and -0.0 differ. UNDEF stands for
+ * a variable read where it has no value, which the verifier rules out
+ * for the code of the Emitter.
+ */
+
+package VC.IR;
+
+public final class Constant extends Value {
+
+  public static final Constant UNDEF = new Constant(null, null);
+
+  public final Object value;
+
+  private Constant(Object value, String type) {
+    super(type);
+    this.value = value;
+  }
+
+  public static Constant of(int value) {
+    return new Constant(value, "I");
+  }
+
+  public static Constant of(float value) {
+    return new Constant(value, "F");
+  }
+
+  // an Integer, a Float or a String
+  public static Constant of(Object value) {
+    if (value instanceof Integer)
+      return of(((Integer) value).intValue());
+    if (value instanceof Float)
+      return of(((Float) value).floatValue());
+    return new Constant(value, "Ljava/lang/String;");
+  }
+
+  public boolean isConstant() {
+    return true;
+  }
+
+  public boolean isInt() {
+    return value instanceof Integer;
+  }
+
+  public boolean isFloat() {
+    return value instanceof Float;
+  }
+
+  public int intValue() {
+    return (Integer) value;
+  }
+
+  public float floatValue() {
+    return (Float) value;
+  }
+
+  public boolean equals(Object obj) {
+    if (!(obj instanceof Constant))
+      return false;
+    Object v = ((Constant) obj).value;
+    if (value instanceof Float && v instanceof Float)
+      return Float.floatToRawIntBits((Float) value) == Float.floatToRawIntBits((Float) v);
+    return value == null ? v == null : value.equals(v);
+  }
+
+  public int hashCode() {
+    return value == null ? 0 : value.hashCode();
+  }
+
+  public String name() {
+    if (this == UNDEF)
+      return "undef";
+    if (value instanceof String)
+      return "\"" + value + "\"";
+    return value instanceof Float ? value + "f" : value.toString();
+  }
+
+}
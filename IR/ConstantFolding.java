@@ -0,0 +1,176 @@
+/*
+ * ConstantFolding.java
+ *
+ * Replaces the instructions computing a value known at compile time by
+ * the value: the arithmetic on constants, the identities x + 0, x * 1,
+ * x / 1, x | 0, ... on ints and the phis whose operands are all the
+ * same. The conditional branches on constants become gotos, and the
+ * blocks no longer reachable are removed, so that the constants of
+ * their phis can be folded in turn.
+ *
+ * Float arithmetic is folded with Java's floats, which are the JVM's,
+ * but x + 0.0 is not x if x is -0.0, so no float identity is used.
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+
+import VC.CodeGen.JVM;
+
+final class ConstantFolding implements Pass {
+
+  public String name() {
+    return "constant-folding";
+  }
+
+  public int run(Function f) {
+    int folded = 0;
+    int n = -1;
+    while (n != folded) {
+      n = folded;
+      for (Block b : f.rpo()) {
+        for (Instr inst : new ArrayList<Instr>(b.phis))
+          if (replace(inst, foldPhi(inst)))
+            folded++;
+        for (Instr inst : new ArrayList<Instr>(b.instrs)) {
+          if (inst.isConditionalBranch()) {
+            Boolean taken = foldBranch(inst);
+            if (taken != null) {
+              Function.replaceByGoto(b, b.succs.get(taken ? 0 : 1));
+              folded++;
+            }
+          } else if (replace(inst, fold(inst))) {
+            folded++;
+          }
+        }
+      }
+      f.removeUnreachable();
+    }
+    return folded;
+  }
+
+  private static boolean replace(Instr inst, Value v) {
+    if (v == null)
+      return false;
+    inst.replaceAllUsesWith(v);
+    inst.block.remove(inst);
+    return true;
+  }
+
+  // the only value of the operands of phi other than itself
+  private static Value foldPhi(Instr phi) {
+    Value same = null;
+    for (Value v : phi.operands) {
+      if (v == phi || (same != null && same.equals(v)))
+        continue;
+      if (same != null)
+        return null;
+      same = v;
+    }
+    return same;
+  }
+
+  // The value of inst if it is known, or null.
+  private static Value fold(Instr inst) {
+    if (inst.operandCount() == 0 || inst.operandCount() > 2 || !inst.isPure() || inst.isPhi())
+      return null;
+    Value x = inst.operand(0);
+    Value y = inst.operandCount() == 2 ? inst.operand(1) : null;
+    Constant a = x instanceof Constant ? (Constant) x : null;
+    Constant b = y instanceof Constant ? (Constant) y : null;
+
+    if (a != null && a.isInt() && (y == null || (b != null && b.isInt()))) {
+      int i = a.intValue(), j = b == null ? 0 : b.intValue();
+      switch (inst.opcode) {
+      case JVM.IADD:  return Constant.of(i + j);
+      case JVM.ISUB:  return Constant.of(i - j);
+      case JVM.IMUL:  return Constant.of(i * j);
+      case JVM.IDIV:  return Constant.of(i / j);
+      case JVM.IREM:  return Constant.of(i % j);
+      case JVM.INEG:  return Constant.of(-i);
+      case JVM.ISHL:  return Constant.of(i << j);
+      case JVM.ISHR:  return Constant.of(i >> j);
+      case JVM.IUSHR: return Constant.of(i >>> j);
+      case JVM.IAND:  return Constant.of(i & j);
+      case JVM.IOR:   return Constant.of(i | j);
+      case JVM.IXOR:  return Constant.of(i ^ j);
+      case JVM.I2F:   return Constant.of((float) i);
+      }
+    }
+    if (a != null && a.isFloat() && (y == null || (b != null && b.isFloat()))) {
+      float u = a.floatValue(), v = b == null ? 0 : b.floatValue();
+      switch (inst.opcode) {
+      case JVM.FADD:  return Constant.of(u + v);
+      case JVM.FSUB:  return Constant.of(u - v);
+      case JVM.FMUL:  return Constant.of(u * v);
+      case JVM.FDIV:  return Constant.of(u / v);
+      case JVM.FNEG:  return Constant.of(-u);
+      case JVM.FCMPL:
+      case JVM.FCMPG:
+        if (Float.isNaN(u) || Float.isNaN(v))
+          return Constant.of(inst.opcode == JVM.FCMPL ? -1 : 1);
+        return Constant.of(u < v ? -1 : u > v ? 1 : 0);
+      }
+    }
+
+    // identities on ints
+    if (isInt(b, 0))
+      switch (inst.opcode) {
+      case JVM.IADD: case JVM.ISUB: case JVM.ISHL: case JVM.ISHR: case JVM.IUSHR:
+      case JVM.IOR: case JVM.IXOR:
+        return x;
+      case JVM.IMUL: case JVM.IAND:
+        return b;
+      }
+    if (isInt(a, 0))
+      switch (inst.opcode) {
+      case JVM.IADD: case JVM.IOR: case JVM.IXOR:
+        return y;
+      case JVM.IMUL: case JVM.IAND:
+        return a;
+      }
+    if (isInt(b, 1) && (inst.opcode == JVM.IMUL || inst.opcode == JVM.IDIV))
+      return x;
+    if (isInt(a, 1) && inst.opcode == JVM.IMUL)
+      return y;
+    if (isInt(b, 1) && inst.opcode == JVM.IREM)
+      return Constant.of(0);
+    if (x == y && (inst.opcode == JVM.ISUB || inst.opcode == JVM.IXOR))
+      return Constant.of(0);
+    return null;
+  }
+
+  private static boolean isInt(Constant c, int value) {
+    return c != null && c.isInt() && c.intValue() == value;
+  }
+
+  // Whether the conditional branch is taken, if that is known.
+  private static Boolean foldBranch(Instr branch) {
+    Value x = branch.operand(0);
+    int c;
+    if (branch.operandCount() == 1) {
+      if (!(x instanceof Constant) || !((Constant) x).isInt())
+        return null;
+      c = Integer.signum(((Constant) x).intValue());
+    } else {
+      Value y = branch.operand(1);
+      if (x == y)
+        c = 0;
+      else if (x instanceof Constant && ((Constant) x).isInt()
+               && y instanceof Constant && ((Constant) y).isInt())
+        c = Integer.compare(((Constant) x).intValue(), ((Constant) y).intValue());
+      else
+        return null;
+    }
+    switch (branch.opcode) {
+    case JVM.IFEQ: case JVM.IF_ICMPEQ: return c == 0;
+    case JVM.IFNE: case JVM.IF_ICMPNE: return c != 0;
+    case JVM.IFLT: case JVM.IF_ICMPLT: return c < 0;
+    case JVM.IFGE: case JVM.IF_ICMPGE: return c >= 0;
+    case JVM.IFGT: case JVM.IF_ICMPGT: return c > 0;
+    default:                           return c <= 0;
+    }
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * DeadValues.java
+ *
+ * Removes the instructions and phis whose results are never used by an
+ * instruction with an effect, i.e., one that is not removable (see
+ * Instr.isRemovable()), directly or through other values. Unlike
+ * removing the unused values repeatedly, this also removes the cycles
+ * of phis that only use each other, e.g., a variable that is updated
+ * in a loop but never read.
+ */
+
+package VC.IR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+final class DeadValues implements Pass {
+
+  public String name() {
+    return "dead-values";
+  }
+
+  public int run(Function f) {
+    HashSet<Instr> live = new HashSet<Instr>();
+    ArrayDeque<Instr> work = new ArrayDeque<Instr>();
+    for (Block b : f.blocks)
+      for (Instr inst : b.instrs)
+        if (!inst.isRemovable() && live.add(inst))
+          work.push(inst);
+    while (!work.isEmpty())
+      for (Value v : work.pop().operands)
+        if (v instanceof Instr && live.add((Instr) v))
+          work.push((Instr) v);
+
+    int removed = 0;
+    for (Block b : f.blocks) {
+      ArrayList<Instr> insts = new ArrayList<Instr>(b.phis);
+      insts.addAll(b.instrs);
+      for (Instr inst : insts)
+        if (!live.contains(inst)) {
+          inst.dropOperands();
+          inst.block = null;
+          removed++;
+        }
+    }
+    for (Block b : f.blocks) {
+      b.phis.retainAll(live);
+      b.instrs.retainAll(live);
+    }
+    return removed;
+  }
+
+}
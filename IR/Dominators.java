@@ -0,0 +1,98 @@
+/*
+ * Dominators.java
+ *
+ * The dominator tree of a function: a block dominates another if every
+ * path from the entry to the other goes through it. The immediate
+ * dominators are found by the iterative algorithm of
+ *
+ *   K D Cooper, T J Harvey and K Kennedy, A Simple, Fast Dominance
+ *   Algorithm, Software Practice and Experience, 2001.
+ *
+ * The tree is computed once; it is not updated as the graph changes.
+ */
+
+package VC.IR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+final class Dominators {
+
+  private final HashMap<Block, Block> idom = new HashMap<Block, Block>();
+  private final HashMap<Block, ArrayList<Block>> children = new HashMap<Block, ArrayList<Block>>();
+  private final HashMap<Block, Integer> index = new HashMap<Block, Integer>();
+  private final List<Block> rpo;
+
+  Dominators(Function f) {
+    rpo = f.rpo();
+    for (int i = 0; i < rpo.size(); i++) {
+      index.put(rpo.get(i), i);
+      children.put(rpo.get(i), new ArrayList<Block>());
+    }
+    Block entry = f.entry();
+    idom.put(entry, entry);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Block b : rpo) {
+        if (b == entry)
+          continue;
+        Block d = null;
+        for (Block p : b.preds)
+          if (idom.containsKey(p))
+            d = d == null ? p : intersect(p, d);
+        if (idom.get(b) != d) {
+          idom.put(b, d);
+          changed = true;
+        }
+      }
+    }
+    for (Block b : rpo)
+      if (b != entry)
+        children.get(idom.get(b)).add(b);
+  }
+
+  private Block intersect(Block a, Block b) {
+    while (a != b) {
+      while (index.get(a) > index.get(b))
+        a = idom.get(a);
+      while (index.get(b) > index.get(a))
+        b = idom.get(b);
+    }
+    return a;
+  }
+
+  // the immediate dominator of b, or null for the entry
+  Block idom(Block b) {
+    Block d = idom.get(b);
+    return d == b ? null : d;
+  }
+
+  List<Block> children(Block b) {
+    return children.get(b);
+  }
+
+  boolean dominates(Block a, Block b) {
+    while (b != null && b != a)
+      b = idom(b);
+    return b == a;
+  }
+
+  // The blocks reachable from the entry, each after its dominators.
+  List<Block> preorder() {
+    ArrayList<Block> order = new ArrayList<Block>();
+    ArrayDeque<Block> work = new ArrayDeque<Block>();
+    work.push(rpo.get(0));
+    while (!work.isEmpty()) {
+      Block b = work.pop();
+      order.add(b);
+      List<Block> c = children.get(b);
+      for (int i = c.size() - 1; i >= 0; i--)
+        work.push(c.get(i));
+    }
+    return order;
+  }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Function.java
+ *
+ * The IR of a method: the control flow graph of its basic blocks in SSA
+ * form, with the entry block first, and its arguments.
+ */
+
+package VC.IR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import VC.CodeGen.CodeBuffer;
+import VC.CodeGen.JVM;
+
+public final class Function {
+
+  public final String classname, name, descriptor;
+  public final int access;
+
+  public final ArrayList<Block> blocks = new ArrayList<Block>();
+  public final ArrayList<Argument> arguments = new ArrayList<Argument>();
+
+  // the number of local variable slots taken by the arguments
+  public int argumentSlots;
+
+  // the local variable of the source each value was stored into, if
+  // any, for the scopes of the variables in the code lowered
+  public final IdentityHashMap<Value, CodeBuffer.LocalVar> variables = new IdentityHashMap<Value, CodeBuffer.LocalVar>();
+
+  private int blockCount;
+
+  Function(String classname, String name, String descriptor, int access) {
+    this.classname = classname;
+    this.name = name;
+    this.descriptor = descriptor;
+    this.access = access;
+  }
+
+  public Block entry() {
+    return blocks.get(0);
+  }
+
+  // A new block, added after the others.
+  public Block newBlock() {
+    Block b = new Block(blockCount++);
+    blocks.add(b);
+    return b;
+  }
+
+  // Edges
+
+  public static void addEdge(Block from, Block to) {
+    from.succs.add(to);
+    to.preds.add(from);
+  }
+
+  // Removes the edge from -> to and the operands of the phis of to for it.
+  public static void removeEdge(Block from, Block to) {
+    int k = to.preds.indexOf(from);
+    to.preds.remove(k);
+    for (Instr phi : to.phis)
+      phi.removeOperand(k);
+    from.succs.remove(to);
+  }
+
+  // Inserts a new block, ending with a goto, on the edge from -> to.
+  public Block splitEdge(Block from, Block to) {
+    Block b = newBlock();
+    from.succs.set(from.succs.indexOf(to), b);
+    to.preds.set(to.preds.indexOf(from), b);
+    b.preds.add(from);
+    b.succs.add(to);
+    b.append(new Instr(JVM.GOTO, null));
+    return b;
+  }
+
+  // Replaces the conditional branch ending b by a goto to target, which
+  // must be one of its successors.
+  public static void replaceByGoto(Block b, Block target) {
+    for (Block s : new ArrayList<Block>(b.succs))
+      if (s != target)
+        removeEdge(b, s);
+    Instr branch = b.terminator();
+    b.remove(branch);
+    b.append(new Instr(JVM.GOTO, null));
+  }
+
+  // Removes the blocks that cannot be reached from the entry. Returns
+  // the number of blocks removed. Only the edges into the blocks kept
+  // are removed, with the operands of their phis; the blocks removed
+  // are left as they are, but for the uses of their instructions.
+  public int removeUnreachable() {
+    HashSet<Block> reached = new HashSet<Block>(rpo());
+    ArrayList<Block> unreached = new ArrayList<Block>();
+    for (Block b : blocks)
+      if (!reached.contains(b))
+        unreached.add(b);
+    for (Block b : unreached)
+      for (Block s : new ArrayList<Block>(b.succs))
+        if (reached.contains(s))
+          removeEdge(b, s);
+    for (Block b : unreached) {
+      for (Instr inst : b.phis)
+        inst.dropOperands();
+      for (Instr inst : b.instrs)
+        inst.dropOperands();
+    }
+    blocks.retainAll(reached);
+    return unreached.size();
+  }
+
+  // The blocks reachable from the entry in reverse postorder, in which
+  // a block comes before its successors except along back edges.
+  public List<Block> rpo() {
+    ArrayList<Block> order = new ArrayList<Block>();
+    HashSet<Block> visited = new HashSet<Block>();
+    ArrayDeque<Block> stack = new ArrayDeque<Block>();
+    ArrayDeque<Integer> next = new ArrayDeque<Integer>();
+    visited.add(entry());
+    stack.push(entry());
+    next.push(0);
+    while (!stack.isEmpty()) {
+      Block b = stack.peek();
+      int i = next.pop();
+      if (i < b.succs.size()) {
+        next.push(i + 1);
+        Block s = b.succs.get(i);
+        if (visited.add(s)) {
+          stack.push(s);
+          next.push(0);
+        }
+      } else {
+        stack.pop();
+        order.add(b);
+      }
+    }
+    Collections.reverse(order);
+    return order;
+  }
+
+  // Numbers the blocks and the instructions in order.
+  public void number() {
+    int n = 0;
+    for (Block b : blocks) {
+      for (Instr inst : b.phis)
+        inst.id = n++;
+      for (Instr inst : b.instrs)
+        inst.id = n++;
+    }
+  }
+
+  // Checks the invariants of the IR, throwing an IllegalStateException
+  // if one is broken.
+  public void verify() {
+    HashSet<Block> all = new HashSet<Block>(blocks);
+    for (Block b : blocks) {
+      if (b.terminator() == null || !b.terminator().isTerminator())
+        fail(b + " has no terminator");
+      for (Instr inst : b.instrs)
+        if (inst.isTerminator() != (inst == b.terminator()) || inst.block != b)
+          fail(b + ": misplaced " + inst);
+      for (Instr phi : b.phis)
+        if (phi.operandCount() != b.preds.size() || phi.block != b)
+          fail(b + ": bad " + phi);
+      for (Block s : b.succs)
+        if (!s.preds.contains(b) || !all.contains(s))
+          fail("bad edge " + b + " -> " + s);
+      for (Block p : b.preds)
+        if (!p.succs.contains(b))
+          fail("bad edge " + p + " -> " + b);
+      if (new HashSet<Block>(b.succs).size() != b.succs.size())
+        fail(b + " has two edges to a block");
+      ArrayList<Instr> insts = new ArrayList<Instr>(b.phis);
+      insts.addAll(b.instrs);
+      for (Instr inst : insts)
+        for (Value v : inst.operands) {
+          if (!v.users.contains(inst))
+            fail(inst + " is not a user of " + v);
+          if (v instanceof Instr && !all.contains(((Instr) v).block))
+            fail(inst + " uses the removed " + v);
+        }
+    }
+  }
+
+  private static void fail(String message) {
+    throw new IllegalStateException(message);
+  }
+
+  public String toString() {
+    number();
+    StringBuffer sb = new StringBuffer();
+    sb.append(name).append(descriptor).append(" {\n");
+    for (Block b : blocks) {
+      sb.append(b.name()).append(":");
+      if (!b.preds.isEmpty())
+        sb.append("  ; preds ").append(b.preds);
+      sb.append("\n");
+      for (Instr inst : b.phis)
+        sb.append("  ").append(inst).append("\n");
+      for (Instr inst : b.instrs)
+        sb.append("  ").append(inst).append("\n");
+    }
+    return sb.append("}\n").toString();
+  }
+
+}
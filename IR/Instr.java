@@ -0,0 +1,161 @@
+/*
+ * Instr.java
+ *
+ * An instruction of the IR. Its opcode is that of the JVM instruction
+ * it stands for (see VC.CodeGen.JVM), but its operands are values
+ * instead of the entries of the operand stack, and its result, if any,
+ * is a value of its own. The local variables of the JVM are gone:
+ * their loads and stores become uses of the values last stored.
+ *
+ * A few instructions differ from the JVM's:
+ *
+ *   PHI       the value of one operand for each predecessor of the
+ *             block, in the order of the predecessors
+ *   NEW       creates and initialises an object of className, i.e.,
+ *             new; dup; invokespecial <init>()V
+ *   branches  the last instruction of a block; their targets are the
+ *             successors of the block, the target of a conditional
+ *             branch first and the next block second
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import VC.CodeGen.JVM;
+import VC.CodeGen.MemberRef;
+
+public final class Instr extends Value {
+
+  public static final int PHI = -2;
+
+  public int opcode;
+  final ArrayList<Value> operands = new ArrayList<Value>();
+  public Block block;
+
+  public MemberRef member;  // getstatic, putstatic, the invokes and new (<init>)
+  public int arrayType;     // newarray
+  public String className;  // new
+
+  int id;
+
+  public Instr(int opcode, String type, Value... operands) {
+    super(type);
+    this.opcode = opcode;
+    for (Value v : operands)
+      addOperand(v);
+  }
+
+  // Operands
+
+  public int operandCount() {
+    return operands.size();
+  }
+
+  public Value operand(int i) {
+    return operands.get(i);
+  }
+
+  public List<Value> operands() {
+    return operands;
+  }
+
+  public void setOperand(int i, Value v) {
+    operands.get(i).users.remove(this);
+    operands.set(i, v);
+    v.users.add(this);
+  }
+
+  public void addOperand(Value v) {
+    operands.add(v);
+    v.users.add(this);
+  }
+
+  public void removeOperand(int i) {
+    operands.remove(i).users.remove(this);
+  }
+
+  // Removes the instruction from the uses of its operands.
+  public void dropOperands() {
+    while (!operands.isEmpty())
+      removeOperand(operands.size() - 1);
+  }
+
+  // Properties
+
+  public boolean isPhi() {
+    return opcode == PHI;
+  }
+
+  public boolean isTerminator() {
+    return JVM.isBranch(opcode) || JVM.isReturn(opcode);
+  }
+
+  public boolean isConditionalBranch() {
+    return JVM.isConditionalBranch(opcode);
+  }
+
+  // true if the instruction only computes its result from its operands:
+  // it has no effect, cannot throw and reads no variable or array, so
+  // it can be removed if unused, moved or computed once for equal
+  // operands
+  public boolean isPure() {
+    switch (opcode) {
+    case PHI:
+    case JVM.IADD: case JVM.ISUB: case JVM.IMUL: case JVM.INEG:
+    case JVM.ISHL: case JVM.ISHR: case JVM.IUSHR: case JVM.IAND: case JVM.IOR: case JVM.IXOR:
+    case JVM.FADD: case JVM.FSUB: case JVM.FMUL: case JVM.FDIV: case JVM.FNEG:
+    case JVM.FCMPL: case JVM.FCMPG: case JVM.I2F:
+      return true;
+    case JVM.IDIV: case JVM.IREM:
+      // only a zero divisor throws
+      return operand(1).isConstant() && ((Constant) operand(1)).intValue() != 0;
+    default:
+      return false;
+    }
+  }
+
+  // true if the instruction reads a global variable or an array
+  public boolean readsMemory() {
+    return opcode == JVM.GETSTATIC || opcode == JVM.IALOAD || opcode == JVM.FALOAD
+           || opcode == JVM.BALOAD;
+  }
+
+  // true if the instruction may be removed when its result is unused:
+  // it is pure or only reads a global variable
+  public boolean isRemovable() {
+    return isPure() || opcode == JVM.GETSTATIC;
+  }
+
+  // Printing
+
+  public String name() {
+    return "v" + id;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    if (type != null)
+      sb.append(name()).append(" = ");
+    sb.append(opcode == PHI ? "phi" : JVM.mnemonic(opcode));
+    if (className != null)
+      sb.append(" ").append(className);
+    else if (member != null)
+      sb.append(" ").append(member);
+    if (opcode == JVM.NEWARRAY)
+      sb.append(arrayType == JVM.T_INT ? " int" : arrayType == JVM.T_FLOAT ? " float" : " boolean");
+    for (int i = 0; i < operands.size(); i++) {
+      sb.append(i == 0 ? " " : ", ");
+      if (opcode == PHI)
+        sb.append("[").append(block.preds.get(i).name()).append(": ").append(operands.get(i).name()).append("]");
+      else
+        sb.append(operands.get(i).name());
+    }
+    if (block != null && isTerminator())
+      for (Block s : block.succs)
+        sb.append(" -> ").append(s.name());
+    return sb.toString();
+  }
+
+}
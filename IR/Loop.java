@@ -0,0 +1,63 @@
+/*
+ * Loop.java
+ *
+ * A natural loop: its header and the blocks from which a back edge into
+ * the header, i.e., an edge from a block the header dominates, can be
+ * reached without going through the header. The loops with the same
+ * header are one loop.
+ */
+
+package VC.IR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+final class Loop {
+
+  final Block header;
+  final HashSet<Block> blocks = new HashSet<Block>();
+
+  private Loop(Block header) {
+    this.header = header;
+    blocks.add(header);
+  }
+
+  boolean contains(Value v) {
+    return v instanceof Instr && blocks.contains(((Instr) v).block);
+  }
+
+  // The loops of f, the inner ones before those containing them.
+  static List<Loop> find(Function f) {
+    Dominators dom = new Dominators(f);
+    LinkedHashMap<Block, Loop> loops = new LinkedHashMap<Block, Loop>();
+    for (Block b : f.rpo())
+      for (Block h : b.succs)
+        if (dom.dominates(h, b)) {
+          Loop loop = loops.get(h);
+          if (loop == null) {
+            loop = new Loop(h);
+            loops.put(h, loop);
+          }
+          ArrayDeque<Block> work = new ArrayDeque<Block>();
+          if (loop.blocks.add(b))
+            work.push(b);
+          while (!work.isEmpty())
+            for (Block p : work.pop().preds)
+              if (loop.blocks.add(p))
+                work.push(p);
+        }
+    ArrayList<Loop> result = new ArrayList<Loop>(loops.values());
+    Collections.sort(result, new Comparator<Loop>() {
+      public int compare(Loop a, Loop b) {
+        return a.blocks.size() - b.blocks.size();
+      }
+    });
+    return result;
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * LoopInvariants.java
+ *
+ * Loop-invariant code motion: an instruction of a loop whose operands
+ * are all defined outside the loop computes the same value in every
+ * iteration, and is moved into the preheader of the loop, a block of
+ * its own through which the loop is entered. The inner loops are done
+ * first, so that what they hoist can be hoisted out of the outer ones.
+ *
+ * The loop may run no iteration at all, while the preheader always
+ * runs, so only the instructions that do no harm when run in vain are
+ * hoisted freely:
+ *
+ *   - the pure instructions (see Instr.isPure()), and
+ *   - the loads of a global stored by no instruction of the loop,
+ *
+ * where a call to a VC function may store into any global or array,
+ * unlike the I/O functions of VC.lang.System. The instructions that may
+ * throw, i.e., the loads of array elements (of a type not stored into
+ * by the loop) and the divisions, are hoisted only from the header, if
+ * no instruction with an effect comes before them there: the header
+ * runs as soon as the loop is entered, so they would have thrown at the
+ * same point.
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import VC.CodeGen.JVM;
+
+final class LoopInvariants implements Pass {
+
+  public String name() {
+    return "licm";
+  }
+
+  public int run(Function f) {
+    List<Loop> loops = Loop.find(f);
+    int hoisted = 0;
+    for (Loop loop : loops) {
+      Block preheader = preheader(f, loop);
+      // a preheader added inside an outer loop belongs to it
+      for (Loop outer : loops)
+        if (outer != loop && outer.blocks.contains(loop.header))
+          for (Block p : preheader.preds)
+            if (outer.blocks.contains(p))
+              outer.blocks.add(preheader);
+      hoisted += hoist(f, loop, preheader);
+    }
+    return hoisted;
+  }
+
+  // The block entering the loop, added if the loop has none: the only
+  // predecessor of the header outside the loop, if it has no other
+  // successor.
+  private static Block preheader(Function f, Loop loop) {
+    Block h = loop.header;
+    ArrayList<Block> outside = new ArrayList<Block>();
+    ArrayList<Integer> indices = new ArrayList<Integer>();
+    for (int i = 0; i < h.preds.size(); i++)
+      if (!loop.blocks.contains(h.preds.get(i))) {
+        outside.add(h.preds.get(i));
+        indices.add(i);
+      }
+    if (outside.size() == 1 && outside.get(0).succs.size() == 1)
+      return outside.get(0);
+
+    Block p = f.newBlock();
+    f.blocks.remove(p);
+    f.blocks.add(f.blocks.indexOf(h), p);
+    p.append(new Instr(JVM.GOTO, null));
+    for (Block o : outside) {
+      o.succs.set(o.succs.indexOf(h), p);
+      p.preds.add(o);
+    }
+    // the phis of the header take the values from outside the loop
+    // through the preheader, merged there by phis of its own
+    for (Instr phi : h.phis) {
+      Value v;
+      if (outside.size() == 1) {
+        v = phi.operand(indices.get(0));
+      } else {
+        Instr merge = new Instr(Instr.PHI, phi.type);
+        for (int i : indices)
+          merge.addOperand(phi.operand(i));
+        p.addPhi(merge);
+        v = merge;
+      }
+      for (int k = indices.size() - 1; k >= 0; k--)
+        phi.removeOperand(indices.get(k));
+      phi.addOperand(v);
+    }
+    for (int k = indices.size() - 1; k >= 0; k--)
+      h.preds.remove((int) indices.get(k));
+    h.preds.add(p);
+    p.succs.add(h);
+    return p;
+  }
+
+  private static int hoist(Function f, Loop loop, Block preheader) {
+    // what the loop may store into
+    HashSet<Object> stored = new HashSet<Object>();
+    boolean calls = false;
+    for (Block b : loop.blocks)
+      for (Instr inst : b.instrs) {
+        int op = inst.opcode;
+        if (op == JVM.PUTSTATIC)
+          stored.add(inst.member);
+        else if (op == JVM.IASTORE || op == JVM.FASTORE || op == JVM.BASTORE)
+          stored.add(op - JVM.IASTORE + JVM.IALOAD);
+        else if (inst.member != null && inst.member.isMethod() && op != JVM.NEW
+                 && !inst.member.owner.equals("VC/lang/System"))
+          calls = true;
+      }
+
+    int hoisted = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Block b : f.rpo()) {
+        if (!loop.blocks.contains(b))
+          continue;
+        // true while no instruction with an effect has been seen in
+        // the header
+        boolean first = b == loop.header;
+        for (Instr inst : new ArrayList<Instr>(b.instrs)) {
+          if (invariant(loop, inst) && hoistable(inst, first, stored, calls)) {
+            b.instrs.remove(inst);
+            preheader.insertBeforeTerminator(inst);
+            hoisted++;
+            changed = true;
+          } else if (!inst.isRemovable()) {
+            first = false;
+          }
+        }
+      }
+    }
+    return hoisted;
+  }
+
+  private static boolean invariant(Loop loop, Instr inst) {
+    if (inst.isTerminator() || inst.type == null)
+      return false;
+    for (Value v : inst.operands)
+      if (loop.contains(v))
+        return false;
+    return true;
+  }
+
+  private static boolean hoistable(Instr inst, boolean first, HashSet<Object> stored,
+                                   boolean calls) {
+    int op = inst.opcode;
+    if (inst.isPure())
+      return true;
+    if (op == JVM.GETSTATIC)
+      return !calls && !stored.contains(inst.member);
+    if (op == JVM.IALOAD || op == JVM.FALOAD || op == JVM.BALOAD)
+      return first && !calls && !stored.contains(op);
+    if (op == JVM.IDIV || op == JVM.IREM)
+      return first;
+    return false;
+  }
+
+}
@@ -0,0 +1,516 @@
+/*
+ * Lowering.java
+ *
+ * Lowers the IR of a method back to JVM instructions, replacing the
+ * code of its CodeBuffer.
+ *
+ * The operand stack holds the values used once, right after they are
+ * computed: an instruction whose result has a single use by a later
+ * instruction of its block is left on the stack for it if no other
+ * instruction with an effect comes between them, or, if it is pure,
+ * moved to its use. This is done backwards over each block, as in
+ *
+ *   D Gohman, WebAssembly's register stackifier, LLVM, 2016.
+ *
+ * The other values live in local variables: each gets a virtual
+ * register, and the phis are replaced by copies at the ends of the
+ * predecessors of their blocks, the critical edges being split first.
+ * The registers are then allocated to the local variable slots by
+ * colouring their interference graph greedily, the arguments keeping
+ * the slots in which they are passed. A copy between two registers that
+ * do not interfere is coalesced, i.e., both get the same slot and the
+ * copy disappears.
+ *
+ * The constants are pushed where they are used. The scopes of the local
+ * variables of the source are rebuilt from the slots allocated: each
+ * variable, in each slot holding its values, ranges from the first to
+ * the last load or store of them, from the start for an argument.
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import VC.CodeGen.CodeBuffer;
+import VC.CodeGen.Instruction;
+import VC.CodeGen.JVM;
+import VC.CodeGen.Label;
+
+final class Lowering {
+
+  private Function f;
+
+  // the virtual register of each value living in a local variable
+  private IdentityHashMap<Value, Integer> registers;
+  private ArrayList<Value> values;
+
+  // the instructions left on the operand stack for their user
+  private HashSet<Instr> stackified;
+
+  // the code of each block, without its terminator; the loads and
+  // stores refer to virtual registers until they are allocated
+  private HashMap<Block, ArrayList<Instruction>> code;
+
+  // the registers interfering with each register and the register each
+  // has been coalesced with, if any
+  private ArrayList<HashSet<Integer>> interference;
+  private int[] parent;
+
+  // the virtual register of each load and store laid out
+  private IdentityHashMap<Instruction, Integer> registerOf;
+  private int labelCount;
+
+  static void lower(Function f, CodeBuffer m) {
+    new Lowering().run(f, m);
+  }
+
+  private void run(Function f, CodeBuffer m) {
+    this.f = f;
+    registers = new IdentityHashMap<Value, Integer>();
+    values = new ArrayList<Value>();
+    stackified = new HashSet<Instr>();
+    code = new HashMap<Block, ArrayList<Instruction>>();
+
+    for (Argument a : f.arguments)
+      register(a);
+    splitCriticalEdges();
+    for (Block b : f.blocks)
+      stackify(b);
+    for (Block b : f.blocks)
+      generate(b);
+    buildInterference();
+    coalesce();
+    int[] slot = colour();
+
+    ArrayList<Instruction> result = layout(slot);
+    int maxLocals = f.argumentSlots;
+    for (int s : slot)
+      maxLocals = Math.max(maxLocals, s + 1);
+
+    List<CodeBuffer.LocalVar> vars = scopes(result);
+    m.instructions().clear();
+    m.instructions().addAll(result);
+    m.vars().clear();
+    m.vars().addAll(vars);
+    m.maxLocals = maxLocals;
+  }
+
+  // Phis are replaced by copies at the ends of the predecessors, so a
+  // predecessor with several successors needs a block of its own.
+  private void splitCriticalEdges() {
+    for (Block b : new ArrayList<Block>(f.blocks))
+      if (!b.phis.isEmpty())
+        for (Block p : new ArrayList<Block>(b.preds))
+          if (p.succs.size() > 1)
+            f.splitEdge(p, b);
+  }
+
+  private int register(Value v) {
+    Integer r = registers.get(v);
+    if (r == null) {
+      r = values.size();
+      registers.put(v, r);
+      values.add(v);
+    }
+    return r;
+  }
+
+  // Stackification
+
+  private void stackify(Block b) {
+    ArrayList<Instr> insts = b.instrs;
+    for (int i = insts.size() - 1; i >= 0; i--)
+      if (!stackified.contains(insts.get(i)))
+        stackify(insts, insts.get(i), i, false);
+  }
+
+  // Decides which operands of user are left on the stack, the last
+  // first, given that its code starts at index pos of the block (or is
+  // moved, if inMoved). Returns the index where the code of user and
+  // its stackified operands starts.
+  private int stackify(ArrayList<Instr> insts, Instr user, int pos, boolean inMoved) {
+    for (int k = user.operandCount() - 1; k >= 0; k--) {
+      if (!(user.operand(k) instanceof Instr))
+        continue;
+      Instr def = (Instr) user.operand(k);
+      if (def.isPhi() || def.block != user.block || def.users.size() != 1 || stackified.contains(def))
+        continue;
+      int prev = pos - 1;
+      while (prev >= 0 && stackified.contains(insts.get(prev)))
+        prev--;
+      if (!inMoved && prev >= 0 && insts.get(prev) == def) {
+        stackified.add(def);
+        pos = stackify(insts, def, prev, false);
+      } else if (def.isPure()) {
+        stackified.add(def);
+        stackify(insts, def, insts.indexOf(def), true);
+      }
+    }
+    return pos;
+  }
+
+  // Code generation
+
+  private void generate(Block b) {
+    ArrayList<Instruction> c = new ArrayList<Instruction>();
+    for (Instr inst : b.instrs) {
+      if (stackified.contains(inst) || inst == b.terminator())
+        continue;
+      emit(c, inst);
+      if (inst.type == null)
+        continue;
+      if (inst.users.isEmpty())
+        c.add(new Instruction(JVM.POP));
+      else
+        c.add(new Instruction(storeOpcode(inst.type), register(inst)));
+    }
+    Instr t = b.terminator();
+    for (Value v : t.operands)
+      push(c, v);
+    if (b.succs.size() == 1 && !b.succs.get(0).phis.isEmpty())
+      copyPhis(c, b, b.succs.get(0));
+    code.put(b, c);
+  }
+
+  // the code of inst with its operands
+  private void emit(ArrayList<Instruction> c, Instr inst) {
+    for (Value v : inst.operands)
+      push(c, v);
+    switch (inst.opcode) {
+    case JVM.NEW:
+      c.add(Instruction.newObject(inst.className));
+      c.add(new Instruction(JVM.DUP));
+      c.add(new Instruction(JVM.INVOKESPECIAL, inst.member));
+      break;
+    case JVM.NEWARRAY:
+      c.add(new Instruction(JVM.NEWARRAY, inst.arrayType));
+      break;
+    default:
+      if (inst.member != null)
+        c.add(new Instruction(inst.opcode, inst.member));
+      else
+        c.add(new Instruction(inst.opcode));
+    }
+  }
+
+  private void push(ArrayList<Instruction> c, Value v) {
+    if (v instanceof Constant)
+      c.add(constant((Constant) v, null));
+    else if (v instanceof Instr && stackified.contains(v))
+      emit(c, (Instr) v);
+    else
+      c.add(new Instruction(loadOpcode(v.type), register(v)));
+  }
+
+  // The instruction pushing c; an undefined value of the given type is
+  // pushed as 0.
+  private static Instruction constant(Constant c, String type) {
+    if (c == Constant.UNDEF) {
+      if ("I".equals(type))
+        return JVM.iconst(0);
+      if ("F".equals(type))
+        return new Instruction(JVM.FCONST_0);
+      throw new UnsupportedOperationException("undefined " + type);
+    }
+    if (c.isInt())
+      return JVM.iconst(c.intValue());
+    if (c.isFloat()) {
+      float x = c.floatValue();
+      if (Float.floatToRawIntBits(x) == 0 || x == 1.0f || x == 2.0f)
+        return new Instruction(JVM.FCONST_0 + (int) x);
+    }
+    return Instruction.ldc(c.value);
+  }
+
+  // The copies of the operands of the phis of b for the edge from p
+  // into their registers. The copies happen at once, so one into a
+  // register read by another copy must come after it; the copies left
+  // in a cycle go through the operand stack.
+  private void copyPhis(ArrayList<Instruction> c, Block p, Block b) {
+    int k = b.preds.indexOf(p);
+    ArrayList<Instr> phis = new ArrayList<Instr>();
+    for (Instr phi : b.phis)
+      if (phi.operand(k) != phi)
+        phis.add(phi);
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (Instr phi : new ArrayList<Instr>(phis)) {
+        boolean read = false;
+        for (Instr other : phis)
+          read |= other != phi && other.operand(k) == phi;
+        if (!read) {
+          copy(c, phi.operand(k), phi);
+          c.add(new Instruction(storeOpcode(phi.type), register(phi)));
+          phis.remove(phi);
+          progress = true;
+        }
+      }
+    }
+    for (Instr phi : phis)
+      copy(c, phi.operand(k), phi);
+    for (int i = phis.size() - 1; i >= 0; i--)
+      c.add(new Instruction(storeOpcode(phis.get(i).type), register(phis.get(i))));
+  }
+
+  private void copy(ArrayList<Instruction> c, Value v, Instr phi) {
+    if (v instanceof Constant)
+      c.add(constant((Constant) v, phi.type));
+    else
+      push(c, v);
+  }
+
+  private static int loadOpcode(String type) {
+    return type.equals("I") ? JVM.ILOAD : type.equals("F") ? JVM.FLOAD : JVM.ALOAD;
+  }
+
+  private static int storeOpcode(String type) {
+    return type.equals("I") ? JVM.ISTORE : type.equals("F") ? JVM.FSTORE : JVM.ASTORE;
+  }
+
+  // Register allocation
+
+  // Builds the interference graph from the liveness of the registers
+  // at the ends of the blocks: a register stored interferes with those
+  // live after the store, except the one copied into it.
+  private void buildInterference() {
+    int n = values.size();
+    interference = new ArrayList<HashSet<Integer>>();
+    for (int r = 0; r < n; r++)
+      interference.add(new HashSet<Integer>());
+
+    HashMap<Block, BitSet> liveIn = new HashMap<Block, BitSet>();
+    for (Block b : f.blocks)
+      liveIn.put(b, new BitSet(n));
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = f.blocks.size() - 1; i >= 0; i--) {
+        Block b = f.blocks.get(i);
+        BitSet live = liveOut(b, liveIn);
+        transfer(code.get(b), live, false);
+        if (!live.equals(liveIn.get(b))) {
+          liveIn.put(b, live);
+          changed = true;
+        }
+      }
+    }
+    for (Block b : f.blocks)
+      transfer(code.get(b), liveOut(b, liveIn), true);
+
+    // the arguments are live together on entry
+    BitSet entry = liveIn.get(f.entry());
+    for (Argument a : f.arguments)
+      entry.set(registers.get(a));
+    for (int r = entry.nextSetBit(0); r >= 0; r = entry.nextSetBit(r + 1))
+      for (int s = entry.nextSetBit(0); s >= 0; s = entry.nextSetBit(s + 1))
+        if (r != s)
+          interference.get(r).add(s);
+  }
+
+  private static BitSet liveOut(Block b, HashMap<Block, BitSet> liveIn) {
+    BitSet live = new BitSet();
+    for (Block s : b.succs)
+      live.or(liveIn.get(s));
+    return live;
+  }
+
+  // Updates live backwards over c, adding the interferences if asked.
+  private void transfer(ArrayList<Instruction> c, BitSet live, boolean interfere) {
+    for (int i = c.size() - 1; i >= 0; i--) {
+      Instruction inst = c.get(i);
+      if (JVM.isStore(inst.opcode)) {
+        int r = inst.operand;
+        live.clear(r);
+        if (interfere) {
+          int copied = i > 0 && JVM.isLoad(c.get(i - 1).opcode) ? c.get(i - 1).operand : -1;
+          for (int s = live.nextSetBit(0); s >= 0; s = live.nextSetBit(s + 1))
+            if (s != copied) {
+              interference.get(r).add(s);
+              interference.get(s).add(r);
+            }
+        }
+      } else if (JVM.isLoad(inst.opcode)) {
+        live.set(inst.operand);
+      }
+    }
+  }
+
+  // Coalesces the registers of each copy that do not interfere, unless
+  // both are arguments.
+  private void coalesce() {
+    parent = new int[values.size()];
+    for (int r = 0; r < parent.length; r++)
+      parent[r] = r;
+    for (Block b : f.blocks) {
+      ArrayList<Instruction> c = code.get(b);
+      for (int i = 1; i < c.size(); i++)
+        if (JVM.isStore(c.get(i).opcode) && JVM.isLoad(c.get(i - 1).opcode)) {
+          int r = find(c.get(i - 1).operand), s = find(c.get(i).operand);
+          if (r == s || interference.get(r).contains(s)
+              || (values.get(r) instanceof Argument && values.get(s) instanceof Argument))
+            continue;
+          if (values.get(s) instanceof Argument) {
+            int t = r;
+            r = s;
+            s = t;
+          }
+          // s joins r
+          parent[s] = r;
+          for (int t : interference.get(s)) {
+            interference.get(t).remove(s);
+            interference.get(t).add(r);
+            interference.get(r).add(t);
+          }
+        }
+    }
+  }
+
+  private int find(int r) {
+    while (parent[r] != r)
+      r = parent[r] = parent[parent[r]];
+    return r;
+  }
+
+  // The slot of each register: its argument's if it has been coalesced
+  // with one, or the first not taken by a register interfering with it.
+  private int[] colour() {
+    int n = values.size();
+    int[] slot = new int[n];
+    for (int r = 0; r < n; r++)
+      slot[r] = -1;
+    for (int r = 0; r < n; r++)
+      if (find(r) == r && values.get(r) instanceof Argument)
+        slot[r] = ((Argument) values.get(r)).slot;
+    for (int r = 0; r < n; r++)
+      if (find(r) == r && slot[r] < 0) {
+        BitSet taken = new BitSet();
+        for (int s : interference.get(r))
+          if (slot[s] >= 0)
+            taken.set(slot[s]);
+        slot[r] = taken.nextClearBit(0);
+      }
+    for (int r = 0; r < n; r++)
+      slot[r] = slot[find(r)];
+    return slot;
+  }
+
+  // Layout
+
+  // The code of the blocks in order, with the registers replaced by
+  // their slots and the copies within a slot removed. A branch to a
+  // block doing nothing but jumping on goes where the jumps end.
+  private ArrayList<Instruction> layout(int[] slot) {
+    HashMap<Block, Label> labels = new HashMap<Block, Label>();
+    registerOf = new IdentityHashMap<Instruction, Integer>();
+    for (Block b : f.blocks) {
+      ArrayList<Instruction> c = new ArrayList<Instruction>();
+      for (int i = 0; i < code.get(b).size(); i++) {
+        Instruction inst = code.get(b).get(i);
+        if (i + 1 < code.get(b).size() && JVM.isLoad(inst.opcode)
+            && JVM.isStore(code.get(b).get(i + 1).opcode)
+            && slot[inst.operand] == slot[code.get(b).get(i + 1).operand]) {
+          i++;
+          continue;
+        }
+        if (JVM.isLoad(inst.opcode) || JVM.isStore(inst.opcode)) {
+          int r = inst.operand;
+          inst = JVM.local(inst.opcode, slot[r]);
+          registerOf.put(inst, r);
+        }
+        c.add(inst);
+      }
+      code.put(b, c);
+      labels.put(b, new Label(labelCount++));
+    }
+
+    // the blocks doing nothing but jumping on are left out
+    ArrayList<Block> blocks = new ArrayList<Block>();
+    for (Block b : f.blocks)
+      if (b == f.entry() || jumpTarget(b) == b)
+        blocks.add(b);
+
+    ArrayList<Instruction> result = new ArrayList<Instruction>();
+    for (int i = 0; i < blocks.size(); i++) {
+      Block b = blocks.get(i);
+      Block next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+      result.add(new Instruction(JVM.LABEL, labels.get(b)));
+      result.addAll(code.get(b));
+      Instr t = b.terminator();
+      if (JVM.isReturn(t.opcode)) {
+        result.add(new Instruction(t.opcode));
+      } else if (t.opcode == JVM.GOTO) {
+        Block target = jumpTarget(b.succs.get(0));
+        if (target != next)
+          result.add(new Instruction(JVM.GOTO, labels.get(target)));
+      } else {
+        Block taken = jumpTarget(b.succs.get(0)), other = jumpTarget(b.succs.get(1));
+        if (taken == next) {
+          result.add(new Instruction(JVM.negate(t.opcode), labels.get(other)));
+        } else {
+          result.add(new Instruction(t.opcode, labels.get(taken)));
+          if (other != next)
+            result.add(new Instruction(JVM.GOTO, labels.get(other)));
+        }
+      }
+    }
+    return result;
+  }
+
+  // The scopes of the variables of the source in the code laid out, for
+  // which labels are inserted into it. Each has its own name and slot,
+  // so no two are alike and none is empty.
+  private List<CodeBuffer.LocalVar> scopes(ArrayList<Instruction> result) {
+    LinkedHashMap<List<Object>, int[]> ranges = new LinkedHashMap<List<Object>, int[]>();
+    for (int i = 0; i < result.size(); i++) {
+      Integer r = registerOf.get(result.get(i));
+      if (r == null)
+        continue;
+      Value v = values.get(r);
+      CodeBuffer.LocalVar var = f.variables.get(v);
+      if (var == null)
+        continue;
+      List<Object> key = Arrays.<Object>asList(var.name, var.descriptor, JVM.localIndex(result.get(i)));
+      int[] range = ranges.get(key);
+      if (range == null) {
+        range = new int[] { i, i + 1 };
+        ranges.put(key, range);
+      }
+      if (v instanceof Argument)
+        range[0] = 0;
+      range[1] = i + 1;
+    }
+
+    // the labels at each position, inserted from the last
+    Label[] labels = new Label[result.size() + 1];
+    ArrayList<CodeBuffer.LocalVar> vars = new ArrayList<CodeBuffer.LocalVar>();
+    for (List<Object> key : ranges.keySet()) {
+      int[] range = ranges.get(key);
+      for (int p : range)
+        if (labels[p] == null)
+          labels[p] = new Label(labelCount++);
+      vars.add(new CodeBuffer.LocalVar((Integer) key.get(2), (String) key.get(0), (String) key.get(1),
+                                       labels[range[0]], labels[range[1]]));
+    }
+    for (int p = result.size(); p >= 0; p--)
+      if (labels[p] != null)
+        result.add(p, new Instruction(JVM.LABEL, labels[p]));
+    return vars;
+  }
+
+  // The block reached from b through blocks with no code of their own
+  private Block jumpTarget(Block b) {
+    HashSet<Block> seen = new HashSet<Block>();
+    while (code.get(b).isEmpty() && b.terminator().opcode == JVM.GOTO && seen.add(b))
+      b = b.succs.get(0);
+    return b;
+  }
+
+}
@@ -0,0 +1,17 @@
+/*
+ * Pass.java
+ *
+ * An optimisation pass over the IR of a method (see PassManager).
+ */
+
+package VC.IR;
+
+public interface Pass {
+
+  // the name of the pass, as reported
+  String name();
+
+  // Optimises f and returns the number of changes made, 0 if none.
+  int run(Function f);
+
+}
@@ -0,0 +1,108 @@
+/*
+ * PassManager.java
+ *
+ * Optimises the code of a method through the IR: builds the IR of the
+ * method (see Builder), runs the passes of the pipeline selected by the
+ * optimisation level over it and lowers it back into the method (see
+ * Lowering). The IR is verified after each pass.
+ *
+ *   -O0  no IR at all
+ *   -O1  the cheap passes once
+ *   -O2  also value numbering and loop-invariant code motion, and the
+ *        passes until none changes anything
+ *
+ * A method the IR cannot represent is left as it is. The number of
+ * changes made by each pass and the size of the code before and after
+ * are kept for report().
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import VC.CodeGen.Assembler;
+import VC.CodeGen.CodeBuffer;
+
+public final class PassManager {
+
+  public final int level;
+
+  private ArrayList<Pass> passes;
+  private LinkedHashMap<String, Integer> changes;
+  private boolean dumping;
+
+  private int methods, skipped, bytesBefore, bytesAfter;
+
+  public PassManager(int level) {
+    this.level = level;
+    passes = new ArrayList<Pass>();
+    if (level >= 1) {
+      passes.add(new SimplifyCFG());
+      passes.add(new ConstantFolding());
+      if (level >= 2) {
+        passes.add(new ValueNumbering());
+        passes.add(new LoopInvariants());
+      }
+      passes.add(new DeadValues());
+      passes.add(new SimplifyCFG());
+    }
+    changes = new LinkedHashMap<String, Integer>();
+    for (Pass p : passes)
+      changes.put(p.name(), 0);
+  }
+
+  // Prints the IR of every method after the passes.
+  public void enableDumping() {
+    dumping = true;
+  }
+
+  public void optimise(String classname, CodeBuffer m) {
+    if (level == 0)
+      return;
+    Function f;
+    try {
+      f = Builder.build(classname, m);
+    } catch (UnsupportedOperationException e) {
+      skipped++;
+      return;
+    }
+    f.verify();
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Pass p : passes) {
+        int n = p.run(f);
+        f.verify();
+        changes.put(p.name(), changes.get(p.name()) + n);
+        changed |= n > 0;
+      }
+      if (level < 2)
+        break;
+    }
+    if (dumping)
+      System.out.print(f);
+
+    int before = new Assembler(null).codeSize(m);
+    try {
+      Lowering.lower(f, m);
+    } catch (UnsupportedOperationException e) {
+      skipped++;
+      return;
+    }
+    methods++;
+    bytesBefore += before;
+    bytesAfter += new Assembler(null).codeSize(m);
+  }
+
+  public void report() {
+    System.out.println("IR optimisation (-O" + level + "):");
+    for (String name : changes.keySet())
+      System.out.println("  " + name + ": " + changes.get(name) + " changes");
+    System.out.println("  " + skipped + " methods skipped");
+    System.out.println("  code size of " + methods + " methods: "
+                       + bytesBefore + " -> " + bytesAfter + " bytes");
+  }
+
+}
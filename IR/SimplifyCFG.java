@@ -0,0 +1,63 @@
+/*
+ * SimplifyCFG.java
+ *
+ * Simplifies the control flow graph: removes the blocks that cannot be
+ * reached, replaces the phis of a block with one predecessor by their
+ * operands and merges a block into its predecessor if each is the
+ * other's only neighbour along that edge, so that the other passes see
+ * longer blocks.
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+
+import VC.CodeGen.JVM;
+
+final class SimplifyCFG implements Pass {
+
+  public String name() {
+    return "simplify-cfg";
+  }
+
+  public int run(Function f) {
+    int changes = f.removeUnreachable();
+    for (Block b : f.blocks)
+      if (b.preds.size() == 1)
+        for (Instr phi : new ArrayList<Instr>(b.phis)) {
+          phi.replaceAllUsesWith(phi.operand(0));
+          b.remove(phi);
+          changes++;
+        }
+
+    for (int i = 0; i < f.blocks.size(); i++) {
+      Block b = f.blocks.get(i);
+      while (b.succs.size() == 1 && b.terminator().opcode == JVM.GOTO) {
+        Block s = b.succs.get(0);
+        if (s.preds.size() != 1 || s == b || s == f.entry())
+          break;
+        merge(b, s);
+        f.blocks.remove(s);
+        changes++;
+      }
+    }
+    return changes;
+  }
+
+  // Appends s, the only successor of b, of which b is the only
+  // predecessor, to b.
+  private static void merge(Block b, Block s) {
+    b.remove(b.terminator());
+    for (Instr inst : s.instrs)
+      b.append(inst);
+    s.instrs.clear();
+    b.succs.clear();
+    for (Block t : s.succs) {
+      b.succs.add(t);
+      t.preds.set(t.preds.indexOf(s), b);
+    }
+    s.succs.clear();
+    s.preds.clear();
+  }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Value.java
+ *
+ * A value of the IR: a constant, an argument of the method or the
+ * result of an instruction (see Instr). A value is defined once and
+ * never changes (SSA form). The instructions using it are kept, one
+ * entry for each operand, so that it can be replaced everywhere.
+ */
+
+package VC.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public abstract class Value {
+
+  // the JVM type of the value, e.g., I, F, [I or Ljava/lang/String;;
+  // booleans are ints, and null for an instruction with no result
+  public String type;
+
+  final ArrayList<Instr> users = new ArrayList<Instr>();
+
+  Value(String type) {
+    this.type = type;
+  }
+
+  // The instructions using this value, once for each use.
+  public List<Instr> users() {
+    return users;
+  }
+
+  // Makes every user of this value use v instead.
+  public void replaceAllUsesWith(Value v) {
+    if (v == this)
+      return;
+    for (Instr user : new ArrayList<Instr>(users))
+      for (int i = 0; i < user.operands.size(); i++)
+        if (user.operands.get(i) == this)
+          user.setOperand(i, v);
+  }
+
+  public boolean isConstant() {
+    return false;
+  }
+
+  // the name of the value in the printed IR
+  public abstract String name();
+
+  public String toString() {
+    return name();
+  }
+
+}
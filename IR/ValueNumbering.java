@@ -0,0 +1,211 @@
+/*
+ * ValueNumbering.java
+ *
+ * Global value numbering: an instruction computing the same value as
+ * one that dominates it, i.e., the same operation on the same operands,
+ * is replaced by the earlier one, whose value then lives in a local
+ * variable if it is used more than once (see Lowering). The dominator
+ * tree is walked with a scoped table of the values computed so far, as
+ * in
+ *
+ *   P Briggs, K D Cooper and L T Simpson, Value Numbering, Software
+ *   Practice and Experience, 1997.
+ *
+ * Besides the pure instructions, the table holds the divisions, which
+ * cannot throw if the same division earlier did not, and the loads of
+ * globals and array elements. A load is only reused while the memory it
+ * reads is known not to have changed: each global and each type of
+ * array has an epoch, renewed by a store to it, and the epoch is part
+ * of the entry of a load. A store enters the value stored as the value
+ * of the next load of the same global or element, and a store of the
+ * value such a load would give is removed. A call to a VC function
+ * renews every epoch, but not a call to the I/O functions of
+ * VC.lang.System. The array parameters of a function may refer to the
+ * same array as each other or as a global, so a store into an int array
+ * renews the epoch of all int arrays, and similarly for the others.
+ *
+ * The epochs are carried from a block into a successor of which it is
+ * the only predecessor; at a join, every epoch is new.
+ */
+
+package VC.IR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import VC.CodeGen.JVM;
+
+final class ValueNumbering implements Pass {
+
+  // The epochs of the memory at a point: those of the globals and the
+  // types of array stored since the last call or join, the others
+  // being base.
+  private static final class Memory {
+    int base;
+    HashMap<Object, Integer> epochs = new HashMap<Object, Integer>();
+
+    Memory copy() {
+      Memory m = new Memory();
+      m.base = base;
+      m.epochs.putAll(epochs);
+      return m;
+    }
+
+    int epoch(Object location) {
+      Integer e = epochs.get(location);
+      return e == null ? base : e;
+    }
+  }
+
+  private HashMap<List<Object>, Value> table;
+  private ArrayList<List<Object>> scope;
+  private IdentityHashMap<Value, Integer> order;
+  private HashMap<Block, Memory> memoryOut;
+  private int epochs, replaced;
+
+  public String name() {
+    return "gvn";
+  }
+
+  public int run(Function f) {
+    table = new HashMap<List<Object>, Value>();
+    scope = new ArrayList<List<Object>>();
+    order = new IdentityHashMap<Value, Integer>();
+    memoryOut = new HashMap<Block, Memory>();
+    epochs = 0;
+    replaced = 0;
+    for (Argument a : f.arguments)
+      order.put(a, order.size());
+
+    // the blocks in preorder of the dominator tree, each followed, after
+    // its subtree, by the size of the table to go back to
+    Dominators dom = new Dominators(f);
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+    work.push(f.entry());
+    while (!work.isEmpty()) {
+      Object top = work.pop();
+      if (top instanceof Integer) {
+        while (scope.size() > (Integer) top)
+          table.remove(scope.remove(scope.size() - 1));
+        continue;
+      }
+      Block b = (Block) top;
+      work.push(scope.size());
+      number(b);
+      List<Block> c = dom.children(b);
+      for (int i = c.size() - 1; i >= 0; i--)
+        work.push(c.get(i));
+    }
+    return replaced;
+  }
+
+  private void number(Block b) {
+    Memory memory = b.preds.size() == 1 && memoryOut.containsKey(b.preds.get(0))
+                    ? memoryOut.get(b.preds.get(0)).copy() : fresh();
+    for (Instr phi : new ArrayList<Instr>(b.phis)) {
+      ArrayList<Object> key = new ArrayList<Object>();
+      key.add(b);
+      key.addAll(phi.operands);
+      reuse(phi, key);
+    }
+    for (Instr inst : new ArrayList<Instr>(b.instrs)) {
+      int op = inst.opcode;
+      if (inst.isPure() || op == JVM.IDIV || op == JVM.IREM) {
+        reuse(inst, key(inst, null));
+      } else if (op == JVM.GETSTATIC) {
+        reuse(inst, key(inst, memory.epoch(inst.member)));
+      } else if (op == JVM.IALOAD || op == JVM.FALOAD || op == JVM.BALOAD) {
+        reuse(inst, key(inst, memory.epoch(op)));
+      } else if (op == JVM.PUTSTATIC) {
+        if (table.get(Arrays.<Object>asList(JVM.GETSTATIC, inst.member, memory.epoch(inst.member)))
+            == inst.operand(0)) {
+          b.remove(inst);
+          replaced++;
+          continue;
+        }
+        memory.epochs.put(inst.member, ++epochs);
+        // a boolean is stored as its lowest bit
+        if (!inst.member.descriptor.equals("Z"))
+          enter(Arrays.<Object>asList(JVM.GETSTATIC, inst.member, epochs), inst.operand(0));
+      } else if (op == JVM.IASTORE || op == JVM.FASTORE || op == JVM.BASTORE) {
+        int load = op - JVM.IASTORE + JVM.IALOAD;
+        if (table.get(Arrays.<Object>asList(load, inst.operand(0), inst.operand(1), memory.epoch(load)))
+            == inst.operand(2)) {
+          b.remove(inst);
+          replaced++;
+          continue;
+        }
+        memory.epochs.put(load, ++epochs);
+        if (op != JVM.BASTORE)
+          enter(Arrays.<Object>asList(load, inst.operand(0), inst.operand(1), epochs),
+                inst.operand(2));
+      } else if (inst.member != null && inst.member.isMethod()
+                 && !inst.member.owner.equals("VC/lang/System") && op != JVM.NEW) {
+        memory = fresh();
+      }
+      order.put(inst, order.size());
+    }
+    memoryOut.put(b, memory);
+  }
+
+  private Memory fresh() {
+    Memory m = new Memory();
+    m.base = ++epochs;
+    return m;
+  }
+
+  // The entry of inst in the table: its operation and operands, the
+  // operands of a commutative operation in a fixed order.
+  private List<Object> key(Instr inst, Integer epoch) {
+    ArrayList<Object> key = new ArrayList<Object>();
+    key.add(inst.opcode);
+    if (inst.member != null)
+      key.add(inst.member);
+    ArrayList<Value> operands = new ArrayList<Value>(inst.operands);
+    if (commutative(inst.opcode) && rank(operands.get(0)) > rank(operands.get(1)))
+      operands.add(operands.remove(0));
+    key.addAll(operands);
+    if (epoch != null)
+      key.add(epoch);
+    return key;
+  }
+
+  // constants last, the other values in the order of their definitions
+  private int rank(Value v) {
+    Integer r = order.get(v);
+    return r != null ? r : v.isConstant() ? Integer.MAX_VALUE : Integer.MAX_VALUE - 1;
+  }
+
+  private static boolean commutative(int opcode) {
+    switch (opcode) {
+    case JVM.IADD: case JVM.IMUL: case JVM.IAND: case JVM.IOR: case JVM.IXOR:
+    case JVM.FADD: case JVM.FMUL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  // Replaces inst by the value entered for key, or enters inst.
+  private void reuse(Instr inst, List<Object> key) {
+    Value v = table.get(key);
+    if (v == null) {
+      enter(key, inst);
+      order.put(inst, order.size());
+      return;
+    }
+    inst.replaceAllUsesWith(v);
+    inst.block.remove(inst);
+    replaced++;
+  }
+
+  private void enter(List<Object> key, Value v) {
+    if (table.put(key, v) == null)
+      scope.add(key);
+  }
+
+}
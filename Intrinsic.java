@@ -0,0 +1,35 @@
+/*
+ * Intrinsic.java
+ *
+ * A function that is not declared by the programmer but provided by
+ * the run-time system, e.g., the built-in I/O functions of VC. It
+ * consists of the "declaration" that the checker binds applied
+ * occurrences to and the static Java method that the code generator
+ * invokes for it.
+ *
+ * Intrinsics are immutable and may be shared by any number of
+ * compilations.
+ */
+
+package VC;
+
+import VC.ASTs.FuncDecl;
+
+public final class Intrinsic {
+
+  public final FuncDecl decl;
+
+  // The Java method in the form expected by invokestatic, e.g.,
+  // "VC/lang/System/putInt(I)V"
+  public final String target;
+
+  // true if calling the intrinsic performs I/O
+  public final boolean performsIO;
+
+  public Intrinsic(FuncDecl decl, String target, boolean performsIO) {
+    this.decl = decl;
+    this.target = target;
+    this.performsIO = performsIO;
+  }
+
+}
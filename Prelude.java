@@ -0,0 +1,96 @@
+/*
+ * Prelude.java
+ *
+ * The outermost scope of every VC program: the built-in functions of
+ * the standard environment plus any extra intrinsics registered by the
+ * embedding application.
+ *
+ * A Prelude is immutable. The symbol table of a checker is layered over
+ * one, so any number of checkers, possibly running concurrently, can
+ * share the same Prelude without copying it.
+ *
+ * Prelude.standard() returns the current standard prelude. Extra
+ * intrinsics are added to it through the registry method register(),
+ * which publishes a new, extended prelude; checkers that have already
+ * been created keep seeing the one they started with. Alternatively,
+ * extend() creates a private prelude for a single compilation.
+ */
+
+package VC;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import VC.ASTs.Decl;
+import VC.ASTs.FuncDecl;
+import VC.ASTs.Type;
+import VC.Checker.Scope;
+
+public final class Prelude implements Scope {
+
+  private static volatile Prelude standard = new Prelude(Collections.<String, Intrinsic>emptyMap())
+    .extend(StdEnvironment.putBoolDecl, "VC/lang/System/putBool(Z)V", true)
+    .extend(StdEnvironment.putBoolLnDecl, "VC/lang/System/putBoolLn(Z)V", true)
+    .extend(StdEnvironment.getIntDecl, "VC/lang/System/getInt()I", true)
+    .extend(StdEnvironment.putIntDecl, "VC/lang/System/putInt(I)V", true)
+    .extend(StdEnvironment.putIntLnDecl, "VC/lang/System/putIntLn(I)V", true)
+    .extend(StdEnvironment.getFloatDecl, "VC/lang/System/getFloat()F", true)
+    .extend(StdEnvironment.putFloatDecl, "VC/lang/System/putFloat(F)V", true)
+    .extend(StdEnvironment.putFloatLnDecl, "VC/lang/System/putFloatLn(F)V", true)
+    .extend(StdEnvironment.putStringDecl, "VC/lang/System/putString(Ljava/lang/String;)V", true)
+    .extend(StdEnvironment.putStringLnDecl, "VC/lang/System/putStringLn(Ljava/lang/String;)V", true)
+    .extend(StdEnvironment.putLnDecl, "VC/lang/System/putLn()V", true);
+
+  private final Map<String, Intrinsic> intrinsics;
+
+  private Prelude(Map<String, Intrinsic> intrinsics) {
+    this.intrinsics = Collections.unmodifiableMap(intrinsics);
+  }
+
+  public static Prelude standard() {
+    return standard;
+  }
+
+  // Registers an extra intrinsic in the standard prelude. The checkers
+  // created afterwards will accept calls to it.
+
+  public static synchronized Intrinsic register(Type resultType, String id, Type[] paraTypes,
+                                                String target, boolean performsIO) {
+    FuncDecl decl = StdEnvironment.declareStdFunc(resultType, id, paraTypes);
+    standard = standard.extend(decl, target, performsIO);
+    return standard.intrinsics.get(id);
+  }
+
+  // Returns a new prelude that contains all intrinsics of this one plus
+  // the given one, which replaces an existing intrinsic of the same name.
+
+  public Prelude extend(FuncDecl decl, String target, boolean performsIO) {
+    Intrinsic intrinsic = new Intrinsic(decl, target, performsIO);
+    LinkedHashMap<String, Intrinsic> map = new LinkedHashMap<String, Intrinsic>(intrinsics);
+    map.put(decl.I.spelling, intrinsic);
+    return new Prelude(map);
+  }
+
+  // Returns the declaration of id or null if id is not an intrinsic.
+
+  public Decl retrieve(String id) {
+    Intrinsic intrinsic = intrinsics.get(id);
+    return intrinsic == null ? null : intrinsic.decl;
+  }
+
+  public Collection<Intrinsic> intrinsics() {
+    return intrinsics.values();
+  }
+
+  // Returns the intrinsic of this prelude declared by decl or null if
+  // decl is not the "declaration" of one. The code generator asks the
+  // prelude the program was checked with.
+
+  public Intrinsic intrinsicOf(Decl decl) {
+    Intrinsic intrinsic = decl == null ? null : intrinsics.get(decl.I.spelling);
+    return intrinsic != null && intrinsic.decl == decl ? intrinsic : null;
+  }
+
+}
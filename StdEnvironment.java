@@ -20,25 +20,75 @@
  * declaration. In the case of a built-in function, its declaration
  * will not be given by the programmer. The compiler must construct
  * explicitly its "declaration" and enter the name of the corresponding 
- * function into the symbol table. This is accomplished by the method
- * establishStdEnvironment of the class Checker in Checker.java.
+ * function into the symbol table.
+ *
+ * The types and the "declarations" below are constructed exactly once,
+ * when this class is loaded, and are never modified afterwards. They
+ * are therefore shared by all compilations running in the same JVM.
+ * The built-in functions are entered into the immutable scope
+ * Prelude.standard(), which every symbol table is layered over.
  * 
  */
 
 package VC;
 
 import VC.ASTs.*;
+import VC.Scanner.SourcePosition;
 
 public final class StdEnvironment {
 
-  public static Type booleanType, intType, floatType, stringType, voidType, errorType;
+  private static final SourcePosition dummyPos = new SourcePosition();
+
+  public static final Type
+    booleanType = new BooleanType(dummyPos),
+    intType = new IntType(dummyPos),
+    floatType = new FloatType(dummyPos),
+    stringType = new StringType(dummyPos),
+    voidType = new VoidType(dummyPos),
+    errorType = new ErrorType(dummyPos);
+
+  // Small ASTs representing "declarations" of the built-in functions
+
+  public static final FuncDecl
+    putBoolDecl = declareStdFunc(voidType, "putBool", booleanType),
+    putBoolLnDecl = declareStdFunc(voidType, "putBoolLn", booleanType),
+    getIntDecl = declareStdFunc(intType, "getInt"),
+    putIntDecl = declareStdFunc(voidType, "putInt", intType),
+    putIntLnDecl = declareStdFunc(voidType, "putIntLn", intType),
+    getFloatDecl = declareStdFunc(floatType, "getFloat"),
+    putFloatDecl = declareStdFunc(voidType, "putFloat", floatType),
+    putFloatLnDecl = declareStdFunc(voidType, "putFloatLn", floatType),
+    putStringDecl = declareStdFunc(voidType, "putString", stringType),
+    putStringLnDecl = declareStdFunc(voidType, "putStringLn", stringType),
+    putLnDecl = declareStdFunc(voidType, "putLn");
+
+  // Creates a small AST to represent the "declaration" of a built-in
+  // function. The types are copied so that the shared types above do
+  // not acquire a parent.
 
-  // Small ASTs representing "declarations" of nine built-in functions
+  public static FuncDecl declareStdFunc(Type resultType, String id, Type... paraTypes) {
+    List pl = new EmptyParaList(dummyPos);
+    for (int i = paraTypes.length - 1; i >= 0; i--)
+      pl = new ParaList(new ParaDecl(copyOf(paraTypes[i]), new Ident("x" + i, dummyPos), dummyPos),
+                        pl, dummyPos);
+    return new FuncDecl(copyOf(resultType), new Ident(id, dummyPos), pl, new EmptyStmt(dummyPos), dummyPos);
+  }
 
-  public static FuncDecl
-    putBoolDecl, putBoolLnDecl, 
-    getIntDecl, putIntDecl, putIntLnDecl, 
-    getFloatDecl, putFloatDecl, putFloatLnDecl, 
-    putStringDecl, putStringLnDecl, putLnDecl;
+  private static Type copyOf(Type t) {
+    if (t.isBooleanType())
+      return new BooleanType(dummyPos);
+    else if (t.isIntType())
+      return new IntType(dummyPos);
+    else if (t.isFloatType())
+      return new FloatType(dummyPos);
+    else if (t.isStringType())
+      return new StringType(dummyPos);
+    else if (t.isVoidType())
+      return new VoidType(dummyPos);
+    else if (t.isArrayType())
+      return new ArrayType(copyOf(((ArrayType) t).T), new EmptyExpr(dummyPos), dummyPos);
+    else
+      return new ErrorType(dummyPos);
+  }
 
 }
@@ -0,0 +1,16 @@
+#!/bin/sh
+# Compiles the code generation tests CodeGen/t*.vc at each optimisation
+# level, runs them and compares what they print with the .sol files.
+cd CodeGen
+for i in $(ls t*.vc);
+    do
+    name=${i%.*};
+    for level in 0 1 2;
+        do
+        echo "$i -O$level";
+        java VC.vc -O$level $i > /dev/null;
+        java -cp "$CLASSPATH:." $name > $name.s 2>&1;
+        diff $name.sol $name.s;
+        rm -f $name.s $name.class;
+        done;
+    done;
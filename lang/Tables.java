@@ -0,0 +1,59 @@
+/*
+ * Tables.java
+ */
+
+// Unpacks the constant elements of an array initialiser, which the
+// code generator packs into a string (see Emitter.visitInitExpr).
+//
+// Each element is first made an unsigned int: an int by zigzag (0, -1,
+// 1, -2, ... become 0, 1, 2, 3, ...), a float by reversing its bits (so
+// that the zero low-order bits of a short fraction become leading zeros)
+// and a boolean by 0 or 1. The result is written in base 63, least
+// significant digit first, as the character 64 + d for a digit followed
+// by more and 1 + d for the last. Every character is thus in 1..126 and
+// takes one byte in the class file.
+
+package VC.lang;
+
+public class Tables {
+
+  public final static void unpack(int[] a, int start, String data) {
+    int[] u = decode(data);
+    for (int i = 0; i < u.length; i++)
+      a[start + i] = (u[i] >>> 1) ^ -(u[i] & 1);
+  }
+
+  public final static void unpack(float[] a, int start, String data) {
+    int[] u = decode(data);
+    for (int i = 0; i < u.length; i++)
+      a[start + i] = Float.intBitsToFloat(Integer.reverse(u[i]));
+  }
+
+  public final static void unpack(boolean[] a, int start, String data) {
+    int[] u = decode(data);
+    for (int i = 0; i < u.length; i++)
+      a[start + i] = u[i] != 0;
+  }
+
+  private static int[] decode(String data) {
+    int n = 0;
+    for (int p = 0; p < data.length(); p++)
+      if (data.charAt(p) < 64)
+        n++;
+    int[] u = new int[n];
+    long value = 0, scale = 1;
+    for (int p = 0, i = 0; p < data.length(); p++) {
+      char c = data.charAt(p);
+      if (c >= 64) {
+        value += (c - 64) * scale;
+        scale *= 63;
+      } else {
+        u[i++] = (int) (value + (c - 1) * scale);
+        value = 0;
+        scale = 1;
+      }
+    }
+    return u;
+  }
+
+}
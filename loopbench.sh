@@ -0,0 +1,22 @@
+#!/bin/sh
+# Times the tight-loop programs CodeGen/loop_*.vc compiled with and
+# without loop rotation. JAVA_OPTS (e.g., -Xint) is passed to the JVM
+# running the programs.
+cd CodeGen
+for i in $(ls loop_*.vc);
+    do
+    name=${i%.*};
+    for rotation in off on;
+        do
+        if [ $rotation = on ]; then
+            java VC.vc $i > /dev/null;
+        else
+            java VC.vc --no-loop-rotation $i > /dev/null;
+        fi;
+        start=$(date +%s%N);
+        result=$(java $JAVA_OPTS -cp "$CLASSPATH:." $name);
+        end=$(date +%s%N);
+        echo "$name, rotation $rotation: $(( (end - start) / 1000000 )) ms (prints $result)";
+        rm -f $name.class;
+        done;
+    done;
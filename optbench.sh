@@ -0,0 +1,18 @@
+#!/bin/sh
+# Times the tight-loop programs CodeGen/loop_*.vc compiled at each
+# optimisation level, with the number of changes made by each IR pass.
+# JAVA_OPTS (e.g., -Xint) is passed to the JVM running the programs.
+cd CodeGen
+for i in $(ls loop_*.vc);
+    do
+    name=${i%.*};
+    for level in 0 1 2;
+        do
+        passes=$(java VC.vc -O$level --report-passes $i | grep "changes" | sed 's/^ *\([a-z-]*\): \([0-9]*\) changes/\1 \2/' | tr '\n' ',' | sed 's/,$//');
+        start=$(date +%s%N);
+        result=$(java $JAVA_OPTS -cp "$CLASSPATH:." $name);
+        end=$(date +%s%N);
+        echo "$name, -O$level: $(( (end - start) / 1000000 )) ms (prints $result) $passes";
+        rm -f $name.class;
+        done;
+    done;
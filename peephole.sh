@@ -0,0 +1,20 @@
+#!/bin/sh
+# Measures the size of the code generated for the Parser and CodeGen
+# test programs before and after the peephole optimisation. Programs
+# that do not compile are listed as skipped.
+before=0
+after=0
+for i in $(ls ./Parser/*.vc ./CodeGen/*.vc);
+    do
+    size=$(java VC.vc --report-peephole $i | grep "code size of" | sed 's/.*: \([0-9]*\) -> \([0-9]*\) bytes/\1 \2/');
+    if [ -z "$size" ]; then
+        echo "$i: skipped";
+    else
+        set -- $size;
+        echo "$i: $1 -> $2 bytes";
+        before=$((before + $1));
+        after=$((after + $2));
+    fi;
+    rm -f ${i%.*}.class;
+    done;
+echo "total: $before -> $after bytes";
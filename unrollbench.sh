@@ -0,0 +1,22 @@
+#!/bin/sh
+# Times the tight-loop programs CodeGen/loop_*.vc compiled with and
+# without loop unrolling. JAVA_OPTS (e.g., -Xint) is passed to the JVM
+# running the programs.
+cd CodeGen
+for i in $(ls loop_*.vc);
+    do
+    name=${i%.*};
+    for unrolling in off on;
+        do
+        if [ $unrolling = on ]; then
+            java VC.vc $i > /dev/null;
+        else
+            java VC.vc --no-unroll $i > /dev/null;
+        fi;
+        start=$(date +%s%N);
+        result=$(java $JAVA_OPTS -cp "$CLASSPATH:." $name);
+        end=$(date +%s%N);
+        echo "$name, unrolling $unrolling: $(( (end - start) / 1000000 )) ms (prints $result)";
+        rm -f $name.class;
+        done;
+    done;
@@ -10,11 +10,27 @@ import VC.Scanner.Scanner;
 import VC.Scanner.SourceFile;
 import VC.Parser.Parser;
 import VC.ASTs.AST;
+import VC.ASTs.Decl;
+import VC.ASTs.FuncDecl;
+import VC.ASTs.Program;
+import VC.Analyser.CallGraph;
+import VC.Analyser.EffectAnalyser;
+import VC.Analyser.Inliner;
+import VC.Analyser.RangeAnalyser;
+import VC.Analyser.Unroller;
 import VC.TreeDrawer.Drawer;
 import VC.TreePrinter.Printer;
 import VC.UnParser.UnParser;
 import VC.Checker.Checker;
+import VC.Checker.IncrementalChecker;
+import VC.CodeGen.DeadCode;
 import VC.CodeGen.Emitter;
+import VC.CodeGen.Peephole;
+import VC.IR.PassManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 public class vc {
 
@@ -25,11 +41,32 @@ public class vc {
     private static Printer printer;
     private static UnParser unparser;
     private static Checker checker; 
+    private static CallGraph callGraph; 
     private static Emitter emitter; 
 
     private static int drawingAST = 0;
     private static boolean printingAST = false;
     private static boolean unparsingAST = false;
+    private static boolean reportingEffects = false;
+    private static boolean reportingBounds = false;
+    private static boolean watching = false;
+    private static boolean writingJasmin = false;
+    private static boolean reportingPeephole = false;
+    private static boolean rotatingLoops = true;
+    private static boolean staticMethods = false;
+    private static boolean promotingGlobals = true;
+    private static boolean eliminatingTailCalls = true;
+    private static boolean inlining = true;
+    private static boolean reducingStrength = true;
+    private static boolean reportingInlining = false;
+    private static int unrollingBudget = Unroller.BUDGET;
+    private static boolean reportingUnrolling = false;
+    private static int optimisationLevel = 0;
+    private static boolean reportingPasses = false;
+    private static boolean dumpingIR = false;
+    private static DeadCode deadCode = new DeadCode();
+    private static boolean reportingDeadCode = false;
+    private static Peephole peephole = new Peephole();
     private static String inputFilename; 
     private static String astFilename = ""; 
     private static String unparsingFilename = ""; 
@@ -49,6 +86,38 @@ public class vc {
       System.out.println("	                    (or filename + \"t\" if <file> is unspecified)"); 
       System.out.println("	-u [file]  	    unparse the (non-annotated) AST into <file>");
       System.out.println("	                    (or filename + \"u\" if <file> is unspecified)"); 
+      System.out.println("	-j                  also write the Jasmin assembly code into");
+      System.out.println("	                    filename + \".j\" (the class file is written directly)");
+      System.out.println("	--report-effects    print the side effects of every function");
+      System.out.println("	--report-bounds     print the array subscripts and divisors inside loops");
+      System.out.println("	                    that could not be proved in range and non-zero");
+      System.out.println("	--static            emit the VC functions as static methods");
+      System.out.println("	--no-loop-rotation  test the condition of a loop at its top");
+      System.out.println("	--no-global-promotion  do not keep globals in local variables");
+      System.out.println("	--no-tail-calls     emit self-recursive tail calls as calls");
+      System.out.println("	--no-inline         do not inline the calls of small functions");
+      System.out.println("	--report-inlining   print the calls inlined into each function");
+      System.out.println("	--no-unroll         do not unroll the for loops with constant bounds");
+      System.out.println("	--unroll-budget=n   unroll a loop only if its copies cost at most n");
+      System.out.println("	                    (statements and expressions, default " + Unroller.BUDGET + ")");
+      System.out.println("	--report-unrolling  print the loops unrolled");
+      System.out.println("	--no-strength-reduction  keep the multiplications and divisions by");
+      System.out.println("	                    constants");
+      System.out.println("	-O[012]             optimise the code of each function through the IR:");
+      System.out.println("	                    0:  not at all (the default)");
+      System.out.println("	                    1:  with each pass once");
+      System.out.println("	                    2:  with the passes repeated until nothing changes");
+      System.out.println("	--report-passes     print how much each IR pass changed");
+      System.out.println("	--dump-ir           print the IR of each function after the passes");
+      System.out.println("	--no-dead-code      keep unreachable code, constant branches and dead");
+      System.out.println("	                    stores");
+      System.out.println("	--report-dead-code  print how much dead code was removed");
+      System.out.println("	--no-peephole[=r,...] do not apply the peephole rules r, ... (or any");
+      System.out.println("	                    rule if none is given)");
+      System.out.println("	--report-peephole   print how often each peephole rule was applied and");
+      System.out.println("	                    the size of the code before and after");
+      System.out.println("	-w                  check the file again whenever it changes,");
+      System.out.println("	                    re-checking only the affected declarations");
       System.exit(1);
     }
 
@@ -101,6 +170,59 @@ public class vc {
             else if (i < args.length && !args[i].startsWith("-"))
                 astFilename = args[i++];
             // the default is inputFilename + "p"
+          } else if (arg.equals("-j")) {
+            writingJasmin = true;
+          } else if (arg.equals("-w")) {
+            watching = true;
+          } else if (arg.equals("--report-effects")) {
+            reportingEffects = true;
+          } else if (arg.equals("--report-bounds")) {
+            reportingBounds = true;
+          } else if (arg.equals("--static")) {
+            staticMethods = true;
+          } else if (arg.equals("--no-loop-rotation")) {
+            rotatingLoops = false;
+          } else if (arg.equals("--no-global-promotion")) {
+            promotingGlobals = false;
+          } else if (arg.equals("--no-inline")) {
+            inlining = false;
+          } else if (arg.equals("--report-inlining")) {
+            reportingInlining = true;
+          } else if (arg.equals("--no-unroll")) {
+            unrollingBudget = 0;
+          } else if (arg.startsWith("--unroll-budget=")) {
+            try {
+              unrollingBudget = Integer.parseInt(arg.substring("--unroll-budget=".length()));
+            } catch (NumberFormatException e) {
+              System.out.println("[# vc #]: invalid option " + arg);
+              cmdLineOptions();
+            }
+          } else if (arg.equals("--report-unrolling")) {
+            reportingUnrolling = true;
+          } else if (arg.equals("--no-strength-reduction")) {
+            reducingStrength = false;
+          } else if (arg.equals("--no-tail-calls")) {
+            eliminatingTailCalls = false;
+          } else if (arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2")) {
+            optimisationLevel = arg.charAt(2) - '0';
+          } else if (arg.equals("--report-passes")) {
+            reportingPasses = true;
+          } else if (arg.equals("--dump-ir")) {
+            dumpingIR = true;
+          } else if (arg.equals("--no-dead-code")) {
+            deadCode = null;
+          } else if (arg.equals("--report-dead-code")) {
+            reportingDeadCode = true;
+          } else if (arg.equals("--no-peephole")) {
+            peephole = null;
+          } else if (arg.startsWith("--no-peephole=")) {
+            for (String rule : arg.substring("--no-peephole=".length()).split(","))
+              if (peephole != null && !peephole.disable(rule)) {
+                System.out.println("[# vc #]: unknown peephole rule " + rule);
+                cmdLineOptions();
+              }
+          } else if (arg.equals("--report-peephole")) {
+            reportingPeephole = true;
           } else if (arg.startsWith("-u")) {
             unparsingAST = true;
             if (! arg.equals("-u")) 
@@ -119,6 +241,11 @@ public class vc {
         } else
            inputFilename = args[i];
 
+        if (watching) {
+          watch();
+          return;
+        }
+
         SourceFile source = new SourceFile(inputFilename);
 
         reporter = new ErrorReporter();
@@ -157,14 +284,85 @@ public class vc {
           }
 
           System.out.println("Pass 2: Semantic Analysis");
-          checker  = new Checker(reporter);
+          Prelude prelude = Prelude.standard();
+          checker  = new Checker(reporter, prelude);
           checker.check(theAST);
 
           if (reporter.numErrors == 0) {
+            // Functions and global variables that main can never reach
+            // are not worth emitting.
+            callGraph = new CallGraph((Program) theAST);
+            for (Decl d : callGraph.eliminateDeadDecls()) {
+              if (d instanceof FuncDecl)
+                System.out.println("[# vc #]: unreachable function " + d.I.spelling + " removed");
+              else
+                System.out.println("[# vc #]: unused global variable " + d.I.spelling + " removed");
+            }
+
+            EffectAnalyser effects = null;
+            if (reportingEffects || promotingGlobals)
+              effects = new EffectAnalyser((Program) theAST, prelude);
+            if (reportingEffects)
+              effects.report();
+
+            // Annotates the array subscripts and divisions whose
+            // run-time checks are provably redundant.
+            RangeAnalyser ranges = new RangeAnalyser((Program) theAST);
+            if (reportingBounds)
+              ranges.report();
+
             System.out.println("Pass 3: Code Generation");
             System.out.println();
-            emitter = new Emitter(inputFilename, reporter);
+            emitter = new Emitter(inputFilename, reporter, prelude);
+            if (writingJasmin)
+              emitter.enableJasmin();
+            if (!rotatingLoops)
+              emitter.disableLoopRotation();
+            if (staticMethods)
+              emitter.enableStaticMethods();
+            if (promotingGlobals)
+              emitter.enableGlobalPromotion(effects);
+            if (!eliminatingTailCalls)
+              emitter.disableTailCalls();
+            if (!reducingStrength) {
+              emitter.disableStrengthReduction();
+              if (peephole != null) {
+                peephole.disable("mul-shift");
+                peephole.disable("div-shift");
+              }
+            }
+            Inliner inliner = null;
+            if (inlining) {
+              inliner = new Inliner(callGraph);
+              emitter.enableInlining(inliner);
+            }
+            Unroller unroller = null;
+            if (unrollingBudget > 0) {
+              unroller = new Unroller(unrollingBudget);
+              emitter.enableUnrolling(unroller);
+            }
+            PassManager passes = null;
+            if (optimisationLevel > 0) {
+              passes = new PassManager(optimisationLevel);
+              if (dumpingIR)
+                passes.enableDumping();
+              emitter.enableOptimisation(passes);
+            }
+            if (deadCode != null)
+              emitter.enableDeadCodeElimination(deadCode);
+            if (peephole != null)
+              emitter.enablePeephole(peephole);
             emitter.gen(theAST);
+            if (reportingInlining && inliner != null)
+              inliner.report();
+            if (reportingUnrolling && unroller != null)
+              unroller.report();
+            if (reportingPasses && passes != null)
+              passes.report();
+            if (reportingDeadCode && deadCode != null)
+              deadCode.report();
+            if (reportingPeephole && peephole != null)
+              peephole.report();
             if (reporter.numErrors == 0) 
               System.out.println ("Compilation was successful.");
             else
@@ -183,5 +381,52 @@ public class vc {
          System.out.println ("Compilation was unsuccessful.");
     }
 
+    // Parses and checks the input file every time it is modified, until
+    // the compiler is interrupted. The results of checking the previous
+    // versions are reused by the incremental checker.
+
+    private static void watch() {
+        IncrementalChecker incremental = new IncrementalChecker();
+        File file = new File(inputFilename);
+        long lastModified = -1;
+
+        while (true) {
+          if (file.lastModified() == lastModified) {
+            try {
+              Thread.sleep(500);
+            } catch (InterruptedException e) {
+              return;
+            }
+            continue;
+          }
+          lastModified = file.lastModified();
+
+          java.util.List<String> lines;
+          try {
+            lines = Files.readAllLines(file.toPath());
+          } catch (IOException e) {
+            System.out.println("[# vc #]: can't read: " + inputFilename);
+            continue;
+          }
+
+          reporter = new ErrorReporter();
+          scanner = new Scanner(new SourceFile(inputFilename), reporter);
+          parser = new Parser(scanner, reporter);
+          theAST = parser.parseProgram();
+
+          if (reporter.numErrors == 0) {
+            incremental.update((Program) theAST, lines);
+            incremental.check(reporter);
+            System.out.println("[# vc #]: " + incremental.rechecked() + " of "
+                               + incremental.declarations() + " declarations re-checked");
+          }
+          if (reporter.numErrors == 0)
+            System.out.println ("Checking was successful.");
+          else
+            System.out.println ("Checking was unsuccessful.");
+          System.out.println();
+        }
+    }
+
 }
 